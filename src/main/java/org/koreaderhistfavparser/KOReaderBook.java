@@ -24,10 +24,11 @@
 
 package org.koreaderhistfavparser;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * The class for a book with properties read from KOReader sdr files.
@@ -35,21 +36,23 @@ import java.io.File;
 public class KOReaderBook {
     // %t: title, %a: first author, %p: progress in percent, %s: series, %l: language
     private static final String STRING_FORMAT_DEFAULT = "[%a: ]%t[ (%p%)]";
-    private static String stringFormat = STRING_FORMAT_DEFAULT;
+    private static volatile KOReaderBookFormat stringFormat =
+            new KOReaderBookFormat(STRING_FORMAT_DEFAULT);
+    private static volatile KOReaderSdrRetention sdrRetention =
+            KOReaderSdrRetention.DROP_AFTER_PARSE;
+    // the only values read from the sdr file for the book's properties
+    private static final KOReaderLuaParser.Projection SDR_PROJECTION =
+            KOReaderLuaParser.Projection.of("summary.status", "doc_props.authors",
+                    "doc_props.keywords", "doc_props.language", "doc_props.series",
+                    "doc_props.title", "stats.pages", "percent_finished");
+    // the number of formats, for which each book caches the formatted string
+    static final int LABEL_CACHE_SIZE = 4;
 
     private String filePath;
-    private Boolean finished = false;
-    private Double percentFinished;     // progress in range [0, 1]
-    private Long lastRead = (long) 0;   // time in Unix time
-    private Integer pages;
-    private String title;
-    private String[] authors;
-    private String[] keywords;
-    private String language;
-    private String series;
+    private volatile Long lastRead = (long) 0;   // time in Unix time
     private String sdrFilePath;
-    private Long sdrFileLastModified = (long) 0;
-    private JSONObject sdrJson;
+    // the properties read from the sdr file, shared with the copies of the book
+    private final SdrState sdr;
 
     /**
      * Constructs a new KOReaderBook with the specified file path.
@@ -58,8 +61,36 @@ public class KOReaderBook {
      * @throws IllegalArgumentException if given file path is invalid, e.g. without extension
      */
     public KOReaderBook(String filePath) throws IllegalArgumentException {
+        this(filePath, KOReaderPollingFileMonitor.DEFAULT);
+    }
+
+    /**
+     * Constructs a new KOReaderBook with the specified file path, detecting modifications of the
+     * sdr file by the given file monitor.
+     *
+     * @param filePath the book's file path
+     * @param fileMonitor the file monitor
+     * @throws IllegalArgumentException if given file path is invalid, e.g. without extension
+     */
+    KOReaderBook(String filePath, KOReaderFileMonitor fileMonitor)
+            throws IllegalArgumentException {
         this.filePath = filePath;
         sdrFilePath = sdrFilePath(filePath);
+        sdr = new SdrState(this, fileMonitor.watch(sdrFilePath));
+    }
+
+    /**
+     * Constructs a copy of the given book with the given time of last reading, sharing the
+     * properties read from the sdr file.
+     *
+     * @param book the book
+     * @param lastRead the time of last reading
+     */
+    private KOReaderBook(KOReaderBook book, Long lastRead) {
+        filePath = book.filePath;
+        sdrFilePath = book.sdrFilePath;
+        sdr = book.sdr;
+        this.lastRead = lastRead;
     }
 
     /**
@@ -79,7 +110,7 @@ public class KOReaderBook {
      * @return the string format
      */
     static public String getStringFormat() {
-        return stringFormat;
+        return stringFormat.getFormat();
     }
 
     /**
@@ -94,15 +125,43 @@ public class KOReaderBook {
      *     <li><code>%d: directory</code>.
      * </ul>
      * Optional classifiers are set by square brackets.
-     * Defaults to <code>[%a: ]%t[ (%p%)]</code>.
+     * Defaults to <code>[%a: ]%t[ (%p%)]</code>. The string format is compiled once, see
+     * {@link KOReaderBookFormat}. Each call compiles a new format, for which the strings cached
+     * by the books are not reused; to switch between string formats, keep one
+     * {@link KOReaderBookFormat} per string format instead.
      *
      * @param stringFormat the string format
      */
     static public void setStringFormat(String stringFormat) {
         if (stringFormat != null)
-            KOReaderBook.stringFormat = stringFormat;
+            KOReaderBook.stringFormat = new KOReaderBookFormat(stringFormat);
         else
-            KOReaderBook.stringFormat = STRING_FORMAT_DEFAULT;
+            KOReaderBook.stringFormat = new KOReaderBookFormat(STRING_FORMAT_DEFAULT);
+    }
+
+    /**
+     * Returns the policy for retaining the complete parsed sdr documents of all books. Defaults
+     * to {@link KOReaderSdrRetention#DROP_AFTER_PARSE}.
+     *
+     * @return the sdr retention policy
+     */
+    static public KOReaderSdrRetention getSdrRetention() {
+        return sdrRetention;
+    }
+
+    /**
+     * Sets the policy for retaining the complete parsed sdr documents of all books, see
+     * {@link KOReaderSdrRetention}. The documents retained by the previous policy are released.
+     *
+     * @param sdrRetention the sdr retention policy or null for the default
+     */
+    static public void setSdrRetention(KOReaderSdrRetention sdrRetention) {
+        if (sdrRetention == null)
+            sdrRetention = KOReaderSdrRetention.DROP_AFTER_PARSE;
+        KOReaderSdrRetention previousSdrRetention = KOReaderBook.sdrRetention;
+        KOReaderBook.sdrRetention = sdrRetention;
+        if (previousSdrRetention != sdrRetention)
+            previousSdrRetention.releaseAll();
     }
 
     /**
@@ -151,59 +210,7 @@ public class KOReaderBook {
      */
     @Override
     public String toString() {
-        String output = stringFormat;
-        if (output.contains("%t")) {
-            getTitle();
-            if (title != null && !title.equals(""))
-                output = output.replace("%t", title);
-        }
-        if (output.contains("%a")) {
-            getAuthors();
-            if (authors != null && authors.length != 0 && authors[0] != null)
-                output = output.replace("%a", authors[0]);
-        }
-        if (output.contains("%p")) {
-            getPercentFinished();
-            if (percentFinished != null)
-                output = output.replace("%p", String.valueOf(Math.round(100 * percentFinished)));
-        }
-        if (output.contains("%s")) {
-            getSeries();
-            if (series != null && !series.equals(""))
-                output = output.replace("%s", series);
-        }
-        if (output.contains("%l")) {
-            getLanguage();
-            if (language != null && !language.equals(""))
-                output = output.replace("%l", language);
-        }
-        if (output.contains("%f")) {
-            String fileName = new File(getFilePath()).getName();
-            output = output.replace("%f", fileName);
-        }
-        if (output.contains("%d")) {
-            String dirName = new File(getFilePath()).getParent();
-            if (dirName != null)
-                output = output.replace("%d", dirName);
-        }
-        String r1 = "\\[[^\\[\\]]*%[tapslfd][^\\[\\]]*\\]"; // matches e.g. [%a: ], [ (%p%)]
-        String r2 = "\\[([^\\[\\]]*)\\]";                   // e.g. [XY: ], [ (24%)], not [*[*]*]
-        while (output.matches(".*" + r2 + ".*")) {
-            while (output.matches(".*" + r1 + ".*")) {
-                output = output.replaceAll(r1, "");
-            }
-            output = output.replaceAll(r2, "$1");
-        }
-
-        // if not optional by [] and not replaced above, replace by following terms
-        output = output.replaceAll("%t", "(no title)");
-        output = output.replaceAll("%a", "(no author)");
-        output = output.replaceAll("%p", "0");
-        output = output.replaceAll("%s", "(no series)");
-        output = output.replaceAll("%l", "(no language)");
-        output = output.replaceAll("%f", "(no file)");
-        output = output.replaceAll("%d", "(no directory)");
-        return output;
+        return stringFormat.format(this);
     }
 
     /**
@@ -221,9 +228,8 @@ public class KOReaderBook {
      * @return true if book is finished, otherwise false
      */
     public Boolean getFinished() {
-        if (sdrFileModified())
-            readSdr();
-        return finished;
+        loadSdr();
+        return sdr.finished;
     }
 
     /**
@@ -245,23 +251,13 @@ public class KOReaderBook {
      * @return true if successfully changed finished state, otherwise false
      */
     public Boolean setFinished() {
-        if (finished)
-            return false;
-        if (sdrJson == null)
-            sdrJson = new JSONObject();
-        JSONObject summaryJson;
-        summaryJson = sdrJson.optJSONObject("summary");
-        if (summaryJson == null) {
-            summaryJson = new JSONObject();
+        synchronized (sdr) {
+            if (sdr.finished)
+                return false;
+            sdr.finished = patchSdrStatus("complete") || writeSdrStatus("complete", true);
+            metadataChanged();
+            return sdr.finished;
         }
-        try {
-            summaryJson.put("status", "complete");
-            sdrJson.put("summary", summaryJson);
-        } catch (JSONException e) {
-            return false;
-        }
-        finished = writeSdr();
-        return finished;
     }
 
     /**
@@ -270,16 +266,13 @@ public class KOReaderBook {
      * @return true if successfully changed finished state, otherwise false
      */
     public Boolean setReading() {
-        if (!finished || sdrJson == null)
-            return false;
-        JSONObject summaryJson = sdrJson.optJSONObject("summary");
-        try {
-            summaryJson.put("status", "reading");
-        } catch (JSONException e) {
-            return false;
+        synchronized (sdr) {
+            if (!sdr.finished)
+                return false;
+            sdr.finished = !patchSdrStatus("reading") && !writeSdrStatus("reading", false);
+            metadataChanged();
+            return !sdr.finished;
         }
-        finished = !writeSdr();
-        return !finished;
     }
 
     /**
@@ -288,9 +281,8 @@ public class KOReaderBook {
      * @return the percent finished; null if not extractable from sdr file
      */
     public Double getPercentFinished() {
-        if (sdrFileModified())
-            readSdr();
-        return percentFinished;
+        loadSdr();
+        return sdr.percentFinished;
     }
 
     /**
@@ -303,7 +295,9 @@ public class KOReaderBook {
     }
 
     /**
-     * Sets the time of last reading in Unix time format.
+     * Sets the time of last reading in Unix time format. Only for books not managed by a
+     * {@link KOReaderHistFav}, which orders its history by the times of last reading; use
+     * {@link KOReaderHistFav#addBookToHistory} or {@link KOReaderHistFav#edit} instead.
      *
      * @param lastRead the time of last reading
      */
@@ -311,15 +305,36 @@ public class KOReaderBook {
         this.lastRead = lastRead;
     }
 
+    /**
+     * Returns a copy of the book with the given time of last reading, sharing the properties
+     * read from the sdr file with this book. Used instead of {@link #setLastRead} for books of a
+     * library, as these are shared with the published lists of history and favorites.
+     *
+     * @param lastRead the time of last reading
+     * @return the copy of the book
+     */
+    KOReaderBook withLastRead(Long lastRead) {
+        return new KOReaderBook(this, lastRead);
+    }
+
+    /**
+     * Returns whether the given book is this book or a copy of it, see {@link #withLastRead}.
+     *
+     * @param book the book
+     * @return true if this book or a copy, otherwise false
+     */
+    boolean isCopyOf(KOReaderBook book) {
+        return sdr == book.sdr;
+    }
+
     /**
      * Returns the number of pages.
      *
      * @return the number of pages; null if not extractable from sdr file
      */
     public Integer getPages() {
-        if (sdrFileModified())
-            readSdr();
-        return pages;
+        loadSdr();
+        return sdr.pages;
     }
 
     /**
@@ -328,9 +343,8 @@ public class KOReaderBook {
      * @return the title; null if not extractable from sdr file
      */
     public String getTitle() {
-        if (sdrFileModified())
-            readSdr();
-        return title;
+        loadSdr();
+        return sdr.title;
     }
 
     /**
@@ -339,9 +353,8 @@ public class KOReaderBook {
      * @return the array of authors; null if not extractable from sdr file
      */
     public String[] getAuthors() {
-        if (sdrFileModified())
-            readSdr();
-        return authors;
+        loadSdr();
+        return sdr.authors;
     }
 
     /**
@@ -350,9 +363,8 @@ public class KOReaderBook {
      * @return the array of keywords; null if not extractable from sdr file
      */
     public String[] getKeywords() {
-        if (sdrFileModified())
-            readSdr();
-        return keywords;
+        loadSdr();
+        return sdr.keywords;
     }
 
     /**
@@ -361,9 +373,8 @@ public class KOReaderBook {
      * @return the language; null if not extractable from sdr file
      */
     public String getLanguage() {
-        if (sdrFileModified())
-            readSdr();
-        return language;
+        loadSdr();
+        return sdr.language;
     }
 
     /**
@@ -372,9 +383,20 @@ public class KOReaderBook {
      * @return the series; null if not extractable from sdr file
      */
     public String getSeries() {
-        if (sdrFileModified())
-            readSdr();
-        return series;
+        loadSdr();
+        return sdr.series;
+    }
+
+    /**
+     * Returns true if the properties from the sdr file are read and the sdr file has not been
+     * modified since, i.e. the getters return without reading the sdr file. Never blocks, so that
+     * e.g. a list can show a placeholder until the book has been loaded by a
+     * {@link KOReaderPrefetchScheduler}.
+     *
+     * @return true if the properties are read, otherwise false
+     */
+    public Boolean isMetadataLoaded() {
+        return !sdr.loading && !sdrFileModified();
     }
 
     /**
@@ -401,59 +423,370 @@ public class KOReaderBook {
      * @return true if sdr file has been modified, otherwise false
      */
     private Boolean sdrFileModified() {
-        return sdrFileLastModified < new File(sdrFilePath).lastModified();
+        return sdr.fileWatch.modified();
+    }
+
+    /**
+     * Reads the sdr file, if modified since last reading. Synchronized, so that the sdr file is
+     * read only once and the properties are visible to all threads, e.g. after preloading.
+     *
+     * @return true if the sdr file has been read, otherwise false
+     */
+    Boolean loadSdr() {
+        synchronized (sdr) {
+            if (sdrFileModified()) {
+                sdr.loading = true;
+                try {
+                    return readSdr();
+                } finally {
+                    sdr.loading = false;
+                }
+            }
+            return false;
+        }
     }
 
     /**
-     * Read the sdr file and convert internally to JSON object.
+     * Returns the string formatted by the given format. The strings of the last
+     * {@link #LABEL_CACHE_SIZE} formats are cached until the properties are read again from the
+     * sdr file, so that e.g. repeated calls of {@link #toString} cost only the check for sdr file
+     * modifications, even if e.g. a list and its details format the book alternately.
+     *
+     * @param format the format
+     * @return the formatted string
+     */
+    String label(KOReaderBookFormat format) {
+        loadSdr();
+        int version = sdr.metadataVersion;
+        Label[] labels = sdr.labels;
+        for (Label label : labels)
+            if (label.format == format && label.metadataVersion == version)
+                return label.text;
+        // replaced as a whole, so that concurrent readers see a consistent cache
+        Label label = new Label(format, version, format.render(this));
+        ArrayList<Label> newLabels = new ArrayList<>(LABEL_CACHE_SIZE);
+        newLabels.add(label);
+        for (Label oldLabel : labels)
+            if (newLabels.size() < LABEL_CACHE_SIZE && oldLabel.format != format
+                    && oldLabel.metadataVersion == version)
+                newLabels.add(oldLabel);
+        sdr.labels = newLabels.toArray(new Label[newLabels.size()]);
+        return label.text;
+    }
+
+    /**
+     * Writes the time of last reading, the properties and the stamp (modification time and length)
+     * of the sdr file, from which they have been read, to the given snapshot output, see
+     * {@link KOReaderSnapshot}.
+     *
+     * @param output the snapshot output
+     * @throws IOException if writing fails
+     */
+    void writeSnapshot(DataOutput output) throws IOException {
+        synchronized (sdr) {
+            KOReaderSnapshot.writeStamp(output, sdr.stamp);
+            output.writeLong(lastRead);
+            output.writeBoolean(sdr.finished);
+            output.writeBoolean(sdr.percentFinished != null);
+            if (sdr.percentFinished != null)
+                output.writeDouble(sdr.percentFinished);
+            output.writeInt(sdr.pages != null ? sdr.pages : -1);
+            KOReaderSnapshot.writeString(output, sdr.title);
+            KOReaderSnapshot.writeStrings(output, sdr.authors);
+            KOReaderSnapshot.writeStrings(output, sdr.keywords);
+            KOReaderSnapshot.writeString(output, sdr.language);
+            KOReaderSnapshot.writeString(output, sdr.series);
+        }
+    }
+
+    /**
+     * Reads the time of last reading and the properties written by {@link #writeSnapshot}. The
+     * sdr file is read again on next access, if it does not match the stamp of the sdr file, from
+     * which the properties have been read, see {@link KOReaderFileStamp#matches}.
+     *
+     * @param input the snapshot input
+     * @throws IOException if reading fails
+     */
+    void readSnapshot(DataInput input) throws IOException {
+        synchronized (sdr) {
+            KOReaderFileStamp stamp = KOReaderSnapshot.readStamp(input);
+            lastRead = input.readLong();
+            sdr.finished = input.readBoolean();
+            sdr.percentFinished = input.readBoolean() ? input.readDouble() : null;
+            int pages = input.readInt();
+            sdr.pages = pages >= 0 ? pages : null;
+            sdr.title = KOReaderSnapshot.readString(input);
+            sdr.authors = KOReaderSnapshot.readStrings(input);
+            sdr.keywords = KOReaderSnapshot.readStrings(input);
+            sdr.language = KOReaderSnapshot.readString(input);
+            if (sdr.language != null)
+                sdr.language = sdr.language.intern();
+            sdr.series = KOReaderSnapshot.readString(input);
+            // read again on next access, unless the sdr file is unmodified since
+            if (stamp != null && stamp.matches(sdrFilePath)) {
+                sdr.fileWatch.restore(stamp.lastModified);
+                sdr.stamp = stamp;
+            }
+            metadataChanged();
+        }
+    }
+
+    /**
+     * Sets the trie of the library with the book, which is notified about changes of the
+     * properties, see {@link KOReaderPathTrie#invalidate}.
+     *
+     * @param pathTrie the trie or null
+     */
+    void setPathTrie(KOReaderPathTrie pathTrie) {
+        sdr.pathTrie = pathTrie;
+    }
+
+    /**
+     * Invalidates the cached labels and notifies the trie of the library about changed
+     * properties.
+     */
+    private void metadataChanged() {
+        sdr.metadataVersion++;
+        KOReaderPathTrie pathTrie = sdr.pathTrie;
+        if (pathTrie != null)
+            pathTrie.invalidate(this);
+    }
+
+    /**
+     * Stops detecting modifications of the sdr file, e.g. after removal of the book from library.
+     */
+    void close() {
+        sdr.fileWatch.close();
+        sdrRetention.release(sdr.book);
+    }
+
+    /**
+     * Read the book's properties from the sdr file. Only the values needed for the properties are
+     * parsed, all others like highlights and bookmarks are skipped, unless the complete document
+     * is retained according to the sdr retention policy.
      *
      * @return true, if reading and conversion successfully, otherwise false
      */
     private Boolean readSdr() {
-        sdrFileLastModified = new File(sdrFilePath).lastModified();
-        sdrJson = KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
-        if (sdrJson != null) {
-            JSONObject docPropsJson;
-            try {
-                String finishedString = sdrJson.getJSONObject("summary").getString("status");
-                finished = (finishedString.equals("complete"));
-            } catch (JSONException e) {}
-            try {
-                docPropsJson = sdrJson.getJSONObject("doc_props");
-                try {
-                    String authorsString = docPropsJson.getString("authors");
-                    authors = authorsString.split(";;;;");
-                } catch (JSONException e) {}
-                try {
-                    String keywordsString = docPropsJson.getString("keywords");
-                    keywords = keywordsString.split(";;;;");
-                } catch (JSONException e) {}
-                try {
-                    language = docPropsJson.getString("language");
-                } catch (JSONException e) {}
-                try {
-                    series = docPropsJson.getString("series");
-                } catch (JSONException e) {}
-                try {
-                    title = docPropsJson.getString("title");
-                } catch (JSONException e) {}
-            } catch (JSONException e) {}
-            try {
-                pages = sdrJson.getJSONObject("stats").getInt("pages");
-            } catch (JSONException e) {}
-            try {
-                percentFinished = sdrJson.getDouble("percent_finished");
-            } catch (JSONException e) {}
+        File sdrFile = new File(sdrFilePath);
+        sdr.stamp = new KOReaderFileStamp(sdrFile.lastModified(), sdrFile.length(), null,
+                System.currentTimeMillis());
+        sdr.fileWatch.update();
+        KOReaderLuaTable sdrTable;
+        KOReaderSdrRetention retention = sdrRetention;
+        if (retention.retainsDocuments()) {
+            sdrTable = KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
+            if (sdrTable != null)
+                retention.retain(sdr.book, new KOReaderSdrRetention.Document(sdrTable, sdrStamp()));
+        } else {
+            sdrTable = KOReaderLuaReadWrite.readLuaFile(sdrFilePath, SDR_PROJECTION);
+        }
+        if (sdrTable != null) {
+            KOReaderLuaTable summaryTable = sdrTable.getTable("summary");
+            if (summaryTable != null && summaryTable.getString("status") != null)
+                sdr.finished = summaryTable.getString("status").equals("complete");
+            KOReaderLuaTable docPropsTable = sdrTable.getTable("doc_props");
+            if (docPropsTable != null) {
+                if (docPropsTable.getString("authors") != null)
+                    sdr.authors = docPropsTable.getString("authors").split("\n");
+                if (docPropsTable.getString("keywords") != null)
+                    sdr.keywords = docPropsTable.getString("keywords").split("\n");
+                // interned, as most books share a few languages
+                if (docPropsTable.getString("language") != null)
+                    sdr.language = docPropsTable.getString("language").intern();
+                if (docPropsTable.getString("series") != null)
+                    sdr.series = docPropsTable.getString("series");
+                if (docPropsTable.getString("title") != null)
+                    sdr.title = docPropsTable.getString("title");
+            }
+            KOReaderLuaTable statsTable = sdrTable.getTable("stats");
+            if (statsTable != null && statsTable.isNumber("pages"))
+                sdr.pages = (int) statsTable.getLong("pages", 0);
+            if (sdrTable.isNumber("percent_finished"))
+                sdr.percentFinished = sdrTable.getDouble("percent_finished", 0);
+            metadataChanged();
+        } else if (Thread.currentThread().isInterrupted()) {
+            // read again on next access, if reading has been cancelled
+            sdr.fileWatch.invalidate();
+            sdr.stamp = null;
+        }
+        return (sdrTable != null);
+    }
+
+    /**
+     * Returns the stamp of the sdr file taken when it was last read completely or written.
+     *
+     * @return the stamp
+     */
+    private KOReaderFileStamp sdrStamp() {
+        KOReaderFileStamp stamp = KOReaderLuaReadWrite.getStamp(sdrFilePath);
+        if (stamp != null)
+            return stamp;
+        // stamp without content digest, not matching files modified within the time resolution
+        File sdrFile = new File(sdrFilePath);
+        return new KOReaderFileStamp(sdrFile.lastModified(), sdrFile.length(), null,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the complete sdr content, i.e. the retained document if the sdr file has not been
+     * modified since parsing, otherwise the newly read sdr file. The caller owns the returned
+     * document and has to write it by {@link #writeSdr}.
+     *
+     * @return the document with the complete sdr content or null if reading failed
+     */
+    private KOReaderSdrRetention.Document completeSdrDocument() {
+        KOReaderSdrRetention.Document document = sdrRetention.take(sdr.book);
+        if (document != null && document.stamp.matches(sdrFilePath))
+            return document;
+        KOReaderLuaTable sdrTable = KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
+        return sdrTable != null ? new KOReaderSdrRetention.Document(sdrTable, sdrStamp()) : null;
+    }
+
+    /**
+     * Sets the status in the summary of the complete sdr content and writes the sdr file. If the
+     * sdr file has been modified by others, e.g. by KOReader, after reading, the sdr file is read
+     * again and the status is set again, so that the modifications of others are kept.
+     *
+     * @param status the status
+     * @param create true to create the sdr file and its summary, if missing
+     * @return true, if writing successfully, otherwise false
+     */
+    private Boolean writeSdrStatus(String status, boolean create) {
+        for (int attempt = 0; attempt < KOReaderLuaReadWrite.WRITE_ATTEMPTS; attempt++) {
+            KOReaderSdrRetention.Document document;
+            if (new File(sdrFilePath).exists())
+                document = completeSdrDocument();
+            else if (create)
+                document = new KOReaderSdrRetention.Document(new KOReaderLuaTable(),
+                        KOReaderFileStamp.MISSING);
+            else
+                return false;
+            if (document == null)
+                return false;
+            KOReaderLuaTable summaryTable = document.sdrTable.getTable("summary");
+            if (summaryTable == null) {
+                if (!create)
+                    return false;
+                summaryTable = new KOReaderLuaTable();
+                document.sdrTable.put("summary", summaryTable);
+            }
+            summaryTable.put("status", status);
+            if (writeSdr(document))
+                return true;
+            if (document.stamp.matches(sdrFilePath))
+                return false;
         }
-        return (sdrJson != null);
+        return false;
     }
 
     /**
-     * Converts the internal JSON object and writes the output to the sdr file.
+     * Converts the complete sdr content of the given document and writes the output to the sdr
+     * file, if the sdr file has not been modified since the document was read. The written
+     * document is retained according to the sdr retention policy. If the properties were up to
+     * date, the modification time is recorded, so that the file is not read again.
      *
+     * @param document the document with the complete sdr content
      * @return true, if conversion and writing successfully, otherwise false
      */
-    private Boolean writeSdr() {
-        return KOReaderLuaReadWrite.writeLuaFile(sdrFilePath, sdrJson);
+    private Boolean writeSdr(KOReaderSdrRetention.Document document) {
+        // if the properties are up to date, the written file needs not to be read again
+        boolean loaded = !sdrFileModified();
+        if (!KOReaderLuaReadWrite.writeLuaFile(sdrFilePath, document.sdrTable, document.stamp))
+            return false;
+        if (loaded) {
+            sdr.fileWatch.update();
+            sdr.stamp = sdrStamp();
+        }
+        KOReaderSdrRetention retention = sdrRetention;
+        if (retention.retainsDocuments())
+            retention.retain(sdr.book, new KOReaderSdrRetention.Document(document.sdrTable,
+                    sdrStamp()));
+        return true;
+    }
+
+    /**
+     * Replaces the status in the summary of the sdr file by patching, so that the other content
+     * of the sdr file, e.g. highlights and bookmarks, is neither parsed nor converted, see
+     * {@link KOReaderLuaReadWrite#patchLuaFile}. The retained document is updated as well.
+     *
+     * @param status the status
+     * @return true, if patching successfully, false if the sdr file has no status and needs to be
+     *         written completely
+     */
+    private Boolean patchSdrStatus(String status) {
+        if (!new File(sdrFilePath).exists())
+            return false;
+        // if the properties are up to date, the patched file needs not to be read again
+        boolean loaded = !sdrFileModified();
+        KOReaderSdrRetention.Document document = sdrRetention.take(sdr.book);
+        boolean documentCurrent = document != null && document.stamp.matches(sdrFilePath);
+        if (!KOReaderLuaReadWrite.patchLuaFile(sdrFilePath, status, "summary", "status")) {
+            if (document != null)
+                sdrRetention.retain(sdr.book, document);
+            return false;
+        }
+        if (loaded) {
+            sdr.fileWatch.update();
+            sdr.stamp = sdrStamp();
+        }
+        if (documentCurrent) {
+            KOReaderLuaTable summaryTable = document.sdrTable.getTable("summary");
+            if (summaryTable != null) {
+                summaryTable.put("status", status);
+                sdrRetention.retain(sdr.book, new KOReaderSdrRetention.Document(document.sdrTable,
+                        sdrStamp()));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The properties read from the sdr file and the state derived from them, shared by a book and
+     * its copies with other times of last reading, see {@link #withLastRead}. The copies
+     * synchronize on it and the sdr retention policy keys the retained document by the book
+     * constructed first.
+     */
+    private static final class SdrState {
+        final KOReaderBook book;
+        final KOReaderFileMonitor.Watch fileWatch;
+        // the stamp of the sdr file, from which the properties have been read, null if not read
+        KOReaderFileStamp stamp;
+        Boolean finished = false;
+        Double percentFinished;     // progress in range [0, 1]
+        Integer pages;
+        String title;
+        String[] authors;
+        String[] keywords;
+        String language;
+        String series;
+        // true while the sdr file is read by loadSdr()
+        volatile boolean loading = false;
+        // incremented on each change of the properties, invalidating the cached labels
+        volatile int metadataVersion = 0;
+        // the labels of the last formats, the latest first
+        volatile Label[] labels = new Label[0];
+        // the trie of the library with the book, notified about changes of the properties
+        volatile KOReaderPathTrie pathTrie;
+
+        SdrState(KOReaderBook book, KOReaderFileMonitor.Watch fileWatch) {
+            this.book = book;
+            this.fileWatch = fileWatch;
+        }
+    }
+
+    /**
+     * A string formatted by a format for a version of the book's properties.
+     */
+    private static final class Label {
+        final KOReaderBookFormat format;
+        final int metadataVersion;
+        final String text;
+
+        Label(KOReaderBookFormat format, int metadataVersion, String text) {
+            this.format = format;
+            this.metadataVersion = metadataVersion;
+            this.text = text;
+        }
     }
 }
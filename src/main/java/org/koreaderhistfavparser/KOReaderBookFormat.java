@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A string format for books compiled into a tree of literals, placeholders and optional groups
+ * with the format classifiers
+ * <ul>
+ *     <li><code>%t: title</code>,</li>
+ *     <li><code>%a: first author</code>,</li>
+ *     <li><code>%p: progress in percent</code>,</li>
+ *     <li><code>%s: series</code>,</li>
+ *     <li><code>%l: language</code>,</li>
+ *     <li><code>%f: file name</code> and</li>
+ *     <li><code>%d: directory</code>.
+ * </ul>
+ * Optional classifiers are set by square brackets, e.g. <code>[%a: ]%t[ (%p%)]</code>. An
+ * optional group is omitted, if one of its classifiers (outside of nested groups) has no value.
+ * Classifiers without value outside of optional groups are replaced by e.g.
+ * <code>(no title)</code>. Unmatched brackets are kept as they are.<br>
+ * Formats are immutable and may be used by several threads at the same time. Each book caches
+ * the strings formatted by {@link #format} for the last four formats until its properties are
+ * read again. Formatting by more formats alternately renders the strings again each time, as do
+ * new instances of the same string format. {@link #formatTo} renders directly into the given
+ * appendable without creating or caching a string.
+ */
+public class KOReaderBookFormat {
+    private static final String CLASSIFIERS = "tapslfd";
+    private static final String[] NO_VALUES = {"(no title)", "(no author)", "0", "(no series)",
+            "(no language)", "(no file)", "(no directory)"};
+
+    private final String format;
+    private final Group root;
+    // bit mask of the classifiers used in the format
+    private final int classifiers;
+
+    /**
+     * Constructs a new KOReaderBookFormat by compiling the given string format.
+     *
+     * @param format the string format
+     * @throws NullPointerException if the string format is null
+     */
+    public KOReaderBookFormat(String format) throws NullPointerException {
+        this.format = format;
+        // stack of the open groups, the root group at the bottom
+        ArrayList<Group> groups = new ArrayList<>();
+        groups.add(new Group());
+        StringBuilder literal = new StringBuilder();
+        int classifiers = 0;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            Group group = groups.get(groups.size() - 1);
+            int classifier = i + 1 < format.length() && c == '%'
+                    ? CLASSIFIERS.indexOf(format.charAt(i + 1)) : -1;
+            if (classifier >= 0) {
+                group.addLiteral(literal);
+                group.tokens.add(new Placeholder(classifier));
+                group.classifiers |= 1 << classifier;
+                classifiers |= 1 << classifier;
+                i++;
+            } else if (c == '[') {
+                group.addLiteral(literal);
+                groups.add(new Group());
+            } else if (c == ']' && groups.size() > 1) {
+                group.addLiteral(literal);
+                groups.remove(groups.size() - 1);
+                groups.get(groups.size() - 1).tokens.add(group);
+            } else {
+                literal.append(c);
+            }
+        }
+        // unmatched opening brackets are literals, their content belongs to the enclosing group
+        while (groups.size() > 1) {
+            Group group = groups.remove(groups.size() - 1);
+            group.addLiteral(literal);
+            Group parent = groups.get(groups.size() - 1);
+            parent.tokens.add(new Literal("["));
+            parent.tokens.addAll(group.tokens);
+            parent.classifiers |= group.classifiers;
+        }
+        root = groups.get(0);
+        root.addLiteral(literal);
+        root.optional = false;
+        this.classifiers = classifiers;
+    }
+
+    /**
+     * Returns the string format.
+     *
+     * @return the string format
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the formatted string of the given book.
+     *
+     * @param book the book
+     * @return the formatted string
+     */
+    public String format(KOReaderBook book) {
+        return book.label(this);
+    }
+
+    /**
+     * Appends the formatted string of the given book to the given string builder.
+     *
+     * @param book the book
+     * @param stringBuilder the string builder
+     */
+    public void formatTo(KOReaderBook book, StringBuilder stringBuilder) {
+        try {
+            root.render(values(book), stringBuilder);
+        } catch (IOException e) {
+            // never thrown by StringBuilder
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends the formatted string of the given book to the given appendable, e.g. a writer.
+     *
+     * @param book the book
+     * @param appendable the appendable
+     * @throws IOException if appending fails
+     */
+    public void formatTo(KOReaderBook book, Appendable appendable) throws IOException {
+        root.render(values(book), appendable);
+    }
+
+    /**
+     * Returns the formatted string of the given book without using the cached string of the book.
+     *
+     * @param book the book
+     * @return the formatted string
+     */
+    String render(KOReaderBook book) {
+        StringBuilder stringBuilder = new StringBuilder();
+        formatTo(book, stringBuilder);
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns the values of the classifiers used in the format, indexed by their position in
+     * CLASSIFIERS. Only the used values are read from the book.
+     *
+     * @param book the book
+     * @return the values, null for classifiers without value
+     */
+    private String[] values(KOReaderBook book) {
+        String[] values = new String[CLASSIFIERS.length()];
+        if ((classifiers & 1) != 0)
+            values[0] = nonEmpty(book.getTitle());
+        if ((classifiers & 1 << 1) != 0) {
+            String[] authors = book.getAuthors();
+            if (authors != null && authors.length != 0)
+                values[1] = authors[0];
+        }
+        if ((classifiers & 1 << 2) != 0) {
+            Double percentFinished = book.getPercentFinished();
+            if (percentFinished != null)
+                values[2] = String.valueOf(Math.round(100 * percentFinished));
+        }
+        if ((classifiers & 1 << 3) != 0)
+            values[3] = nonEmpty(book.getSeries());
+        if ((classifiers & 1 << 4) != 0)
+            values[4] = nonEmpty(book.getLanguage());
+        if ((classifiers & 1 << 5) != 0)
+            values[5] = new File(book.getFilePath()).getName();
+        if ((classifiers & 1 << 6) != 0)
+            values[6] = new File(book.getFilePath()).getParent();
+        return values;
+    }
+
+    private static String nonEmpty(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private interface Token {
+        void render(String[] values, Appendable appendable) throws IOException;
+    }
+
+    private static class Literal implements Token {
+        private final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public void render(String[] values, Appendable appendable) throws IOException {
+            appendable.append(text);
+        }
+    }
+
+    private static class Placeholder implements Token {
+        private final int classifier;
+
+        Placeholder(int classifier) {
+            this.classifier = classifier;
+        }
+
+        @Override
+        public void render(String[] values, Appendable appendable) throws IOException {
+            String value = values[classifier];
+            // only rendered without value outside of optional groups
+            appendable.append(value != null ? value : NO_VALUES[classifier]);
+        }
+    }
+
+    private static class Group implements Token {
+        private final ArrayList<Token> tokens = new ArrayList<>();
+        // bit mask of the classifiers in the group, but not in nested groups
+        private int classifiers = 0;
+        private boolean optional = true;
+
+        void addLiteral(StringBuilder literal) {
+            if (literal.length() != 0) {
+                tokens.add(new Literal(literal.toString()));
+                literal.setLength(0);
+            }
+        }
+
+        @Override
+        public void render(String[] values, Appendable appendable) throws IOException {
+            if (optional) {
+                for (int i = 0; i < values.length; i++)
+                    if ((classifiers & 1 << i) != 0 && values[i] == null)
+                        return;
+            }
+            for (Token token : tokens)
+                token.render(values, appendable);
+        }
+    }
+}
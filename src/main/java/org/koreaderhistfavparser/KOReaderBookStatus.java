@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+/**
+ * The membership of a book in history and favorites, as returned for file browser listings by
+ * {@link KOReaderHistFav#getBookStatus} and {@link KOReaderHistFav#getDirectoryStatuses}. The
+ * membership is an immutable snapshot, the finished flag and progress are read from the book's
+ * sdr file on demand.
+ */
+public final class KOReaderBookStatus {
+    private final KOReaderBook book;
+    private final boolean inHistory;
+    private final boolean inFavorites;
+
+    KOReaderBookStatus(KOReaderBook book, boolean inHistory, boolean inFavorites) {
+        this.book = book;
+        this.inHistory = inHistory;
+        this.inFavorites = inFavorites;
+    }
+
+    /**
+     * Returns the book.
+     *
+     * @return the book
+     */
+    public KOReaderBook getBook() {
+        return book;
+    }
+
+    /**
+     * Returns whether the book is in history.
+     *
+     * @return true if in history, otherwise false
+     */
+    public Boolean isInHistory() {
+        return inHistory;
+    }
+
+    /**
+     * Returns whether the book is in favorites.
+     *
+     * @return true if in favorites, otherwise false
+     */
+    public Boolean isInFavorites() {
+        return inFavorites;
+    }
+
+    /**
+     * Returns the finished flag of the book, see {@link KOReaderBook#getFinished}.
+     *
+     * @return true if finished, otherwise false
+     */
+    public Boolean getFinished() {
+        return book.getFinished();
+    }
+
+    /**
+     * Returns the progress of the book, see {@link KOReaderBook#getPercentFinished}.
+     *
+     * @return the percent finished; null if not extractable from sdr file
+     */
+    public Double getPercentFinished() {
+        return book.getPercentFinished();
+    }
+
+    @Override
+    public String toString() {
+        return book.getFilePath() + (inHistory ? " [history]" : "")
+                + (inFavorites ? " [favorites]" : "");
+    }
+}
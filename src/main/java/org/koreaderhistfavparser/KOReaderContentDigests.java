@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least recently used cache of the stamps with the content digests of the last read or
+ * written lua files, so that writing content equal to the content of the file can be skipped
+ * without reading the file, see {@link KOReaderFileStamp}. The cache is thread-safe.
+ */
+class KOReaderContentDigests {
+    private final Map<String, KOReaderFileStamp> stamps;
+    private long written = 0;
+    private long skipped = 0;
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param capacity the maximum number of cached stamps
+     */
+    KOReaderContentDigests(final int capacity) {
+        stamps = new LinkedHashMap<String, KOReaderFileStamp>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, KOReaderFileStamp> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Records the stamp with the digest of the content of the given file, taken before reading or
+     * after writing.
+     *
+     * @param filePath the file path
+     * @param stamp    the stamp
+     */
+    synchronized void put(String filePath, KOReaderFileStamp stamp) {
+        if (stamp.lastModified == 0 || stamp.digest == null)
+            return;
+        stamps.put(filePath, stamp);
+    }
+
+    /**
+     * Returns the stamp recorded for the given file.
+     *
+     * @param filePath the file path
+     * @return the stamp or null if not recorded
+     */
+    synchronized KOReaderFileStamp get(String filePath) {
+        return stamps.get(filePath);
+    }
+
+    /**
+     * Removes the stamp of the given file, e.g. after writing the file failed.
+     *
+     * @param filePath the file path
+     */
+    synchronized void invalidate(String filePath) {
+        stamps.remove(filePath);
+    }
+
+    /**
+     * Returns whether the file has the content with the given digest, i.e. whether the digest has
+     * been recorded and the file has not been modified since. Counts a skipped write, if so.
+     *
+     * @param filePath the file path
+     * @param digest   the content digest
+     * @return true if unchanged, otherwise false
+     */
+    Boolean unchanged(String filePath, byte[] digest) {
+        KOReaderFileStamp stamp = get(filePath);
+        if (stamp == null || !Arrays.equals(stamp.digest, digest))
+            return false;
+        long now = System.currentTimeMillis();
+        if (!stamp.matches(filePath))
+            return false;
+        // the content is known to be unchanged now, so that it is not compared again
+        put(filePath, new KOReaderFileStamp(stamp.lastModified, stamp.length, digest, now));
+        countSkip();
+        return true;
+    }
+
+    /**
+     * Counts a skipped write of an unchanged file.
+     */
+    synchronized void countSkip() {
+        skipped++;
+    }
+
+    /**
+     * Counts a written file.
+     */
+    synchronized void countWrite() {
+        written++;
+    }
+
+    /**
+     * Returns the number of written files.
+     *
+     * @return the number of written files
+     */
+    synchronized long written() {
+        return written;
+    }
+
+    /**
+     * Returns the number of skipped writes of unchanged files.
+     *
+     * @return the number of skipped writes
+     */
+    synchronized long skipped() {
+        return skipped;
+    }
+}
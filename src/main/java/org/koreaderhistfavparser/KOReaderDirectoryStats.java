@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+/**
+ * Aggregate statistics of the books of the library in a directory and its subdirectories, e.g.
+ * for folder badges, see {@link KOReaderHistFav#getDirectoryStats}. The statistics are an
+ * immutable snapshot.
+ */
+public final class KOReaderDirectoryStats {
+    private final int books;
+    private final int readBooks;
+    private final int favoriteBooks;
+    private final int finishedBooks;
+    private final Double averageProgress;
+    private final long lastRead;
+
+    KOReaderDirectoryStats(int books, int readBooks, int favoriteBooks, int finishedBooks,
+                           Double averageProgress, long lastRead) {
+        this.books = books;
+        this.readBooks = readBooks;
+        this.favoriteBooks = favoriteBooks;
+        this.finishedBooks = finishedBooks;
+        this.averageProgress = averageProgress;
+        this.lastRead = lastRead;
+    }
+
+    /**
+     * Returns the number of books of the library.
+     *
+     * @return the number of books
+     */
+    public int getBooks() {
+        return books;
+    }
+
+    /**
+     * Returns the number of books in history.
+     *
+     * @return the number of read books
+     */
+    public int getReadBooks() {
+        return readBooks;
+    }
+
+    /**
+     * Returns the number of books in favorites.
+     *
+     * @return the number of favorite books
+     */
+    public int getFavoriteBooks() {
+        return favoriteBooks;
+    }
+
+    /**
+     * Returns the number of finished books.
+     *
+     * @return the number of finished books
+     */
+    public int getFinishedBooks() {
+        return finishedBooks;
+    }
+
+    /**
+     * Returns the average progress in the range [0,1] of the books with progress.
+     *
+     * @return the average progress; null if no book has progress
+     */
+    public Double getAverageProgress() {
+        return averageProgress;
+    }
+
+    /**
+     * Returns the most recent time of last reading of the books in history in Unix time format.
+     *
+     * @return the most recent time of last reading; 0 if no book has been read
+     */
+    public Long getLastRead() {
+        return lastRead;
+    }
+
+    @Override
+    public String toString() {
+        return books + " books, " + readBooks + " read, " + favoriteBooks + " favorites, "
+                + finishedBooks + " finished";
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A file monitor getting notified about modifications by events of the watched directories. The
+ * directory of a file is watched, or the closest existing parent directory, if the directory does
+ * not exist yet, e.g. for books without sdr directory.<br>
+ * Watches compare the modification time of their file only after an event for the file (or for
+ * the missing directory), so that accesses between modifications cost no system calls. Watches,
+ * which could not be registered, compare the modification time on each access.
+ */
+abstract class KOReaderEventFileMonitor extends KOReaderFileMonitor {
+    // watches by path of the watched directory
+    private final HashMap<String, ArrayList<EventWatch>> watches = new HashMap<>();
+    private boolean closed = false;
+
+    /**
+     * Starts watching the given directory.
+     *
+     * @param directoryPath the directory path
+     * @return true if successfully, otherwise false
+     */
+    abstract boolean startWatching(String directoryPath);
+
+    /**
+     * Stops watching the given directory.
+     *
+     * @param directoryPath the directory path
+     */
+    abstract void stopWatching(String directoryPath);
+
+    @Override
+    Watch watch(String filePath) {
+        EventWatch watch = new EventWatch(filePath);
+        register(watch);
+        return watch;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (String directoryPath : watches.keySet()) {
+            stopWatching(directoryPath);
+            for (EventWatch watch : watches.get(directoryPath))
+                watch.directoryPath = null;
+        }
+        watches.clear();
+    }
+
+    /**
+     * Marks the watches modified, whose file or missing directory has the given name in the given
+     * directory. To be called by implementations for each event of a watched directory.
+     *
+     * @param directoryPath the directory path
+     * @param name the name of the modified file or directory or null, if events were lost
+     */
+    synchronized void onFileEvent(String directoryPath, String name) {
+        ArrayList<EventWatch> directoryWatches = watches.get(directoryPath);
+        if (directoryWatches == null)
+            return;
+        ArrayList<EventWatch> movedWatches = new ArrayList<>();
+        for (EventWatch watch : directoryWatches) {
+            if (name == null || name.equals(watch.name)) {
+                watch.dirty = true;
+                // watch the created directory instead of its parent
+                if (!watch.name.equals(new File(watch.filePath).getName()))
+                    movedWatches.add(watch);
+            }
+        }
+        for (EventWatch watch : movedWatches) {
+            unregister(watch);
+            register(watch);
+        }
+    }
+
+    /**
+     * Moves the watches of the given directory to the closest existing parent directory and marks
+     * them modified. To be called by implementations if the directory has been deleted or moved.
+     *
+     * @param directoryPath the directory path
+     */
+    synchronized void onDirectoryInvalid(String directoryPath) {
+        ArrayList<EventWatch> directoryWatches = watches.remove(directoryPath);
+        if (directoryWatches == null)
+            return;
+        stopWatching(directoryPath);
+        for (EventWatch watch : directoryWatches) {
+            watch.directoryPath = null;
+            watch.dirty = true;
+            register(watch);
+        }
+    }
+
+    private synchronized void register(EventWatch watch) {
+        if (closed)
+            return;
+        File child = new File(watch.filePath).getAbsoluteFile();
+        File directory = child.getParentFile();
+        while (directory != null && !directory.isDirectory()) {
+            child = directory;
+            directory = directory.getParentFile();
+        }
+        if (directory == null)
+            return;
+        String directoryPath = directory.getPath();
+        ArrayList<EventWatch> directoryWatches = watches.get(directoryPath);
+        if (directoryWatches == null) {
+            if (!startWatching(directoryPath))
+                return;
+            directoryWatches = new ArrayList<>();
+            watches.put(directoryPath, directoryWatches);
+        }
+        directoryWatches.add(watch);
+        watch.name = child.getName();
+        watch.directoryPath = directoryPath;
+    }
+
+    private synchronized void unregister(EventWatch watch) {
+        if (watch.directoryPath == null)
+            return;
+        ArrayList<EventWatch> directoryWatches = watches.get(watch.directoryPath);
+        directoryWatches.remove(watch);
+        if (directoryWatches.isEmpty()) {
+            watches.remove(watch.directoryPath);
+            stopWatching(watch.directoryPath);
+        }
+        watch.directoryPath = null;
+    }
+
+    private class EventWatch extends Watch {
+        // set by events, cleared on update or if the modification time has not changed
+        private volatile boolean dirty = true;
+        // the watched directory (null if not watched) and the name of the file or the missing
+        // directory in it
+        private volatile String directoryPath;
+        private String name;
+
+        EventWatch(String filePath) {
+            super(filePath);
+        }
+
+        @Override
+        boolean modified() {
+            if (!dirty && directoryPath != null)
+                return false;
+            // cleared before comparing, so that events during the comparison are not lost
+            dirty = false;
+            if (modificationTimeChanged()) {
+                dirty = true;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        void update() {
+            dirty = false;
+            super.update();
+        }
+
+        @Override
+        void invalidate() {
+            super.invalidate();
+            dirty = true;
+        }
+
+        @Override
+        void close() {
+            unregister(this);
+        }
+    }
+}
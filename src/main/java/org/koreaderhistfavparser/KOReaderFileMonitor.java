@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.File;
+
+/**
+ * A monitor detecting modifications of the files read by {@link KOReaderHistFav} and
+ * {@link KOReaderBook}, i.e. the history, collection and sdr files, so that a file is only read
+ * again after it has been modified. Available implementations are
+ * <ul>
+ *     <li>{@link KOReaderPollingFileMonitor}: compares the modification time of the file on
+ *     access, at most once per revalidation interval (default),</li>
+ *     <li>{@link KOReaderWatchServiceFileMonitor}: gets notified about modifications by a
+ *     {@link java.nio.file.WatchService} (Android API level 26 and above) and</li>
+ *     <li>{@link KOReaderFileObserverMonitor}: gets notified about modifications by Android
+ *     {@link android.os.FileObserver}s.</li>
+ * </ul>
+ * A monitor can be shared by several {@link KOReaderHistFav} instances, see
+ * {@link KOReaderHistFav#KOReaderHistFav(String, KOReaderFileMonitor)}.
+ */
+public abstract class KOReaderFileMonitor {
+    /**
+     * Returns a new watch for the given file.
+     *
+     * @param filePath the file path
+     * @return the watch
+     */
+    abstract Watch watch(String filePath);
+
+    /**
+     * Stops monitoring and releases all resources. Afterwards, the watches created by the monitor
+     * compare the modification time of their files on each access.
+     */
+    public void close() {}
+
+    /**
+     * A watch for a single file, which is modified, if its modification time is later than the one
+     * recorded at the last update. Watches may be checked concurrently, but are only updated by one
+     * thread at a time. A watch stays modified until the next update.
+     */
+    abstract static class Watch {
+        final String filePath;
+        private volatile long lastModified = 0;
+
+        Watch(String filePath) {
+            this.filePath = filePath;
+        }
+
+        /**
+         * Returns true if the file has been modified since the last update, otherwise false.
+         *
+         * @return true if the file has been modified, otherwise false
+         */
+        abstract boolean modified();
+
+        /**
+         * Records the modification time of the file, i.e. before reading or after writing it.
+         */
+        void update() {
+            lastModified = new File(filePath).lastModified();
+        }
+
+        /**
+         * Records the given modification time of the file, e.g. the one of a file read in a
+         * previous process and restored from a snapshot, so that the file is read again only if
+         * it has been modified since. The file is compared on the next access.
+         *
+         * @param lastModified the modification time
+         */
+        void restore(long lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the modification time of the file recorded at the last update.
+         *
+         * @return the modification time or 0 if not updated or invalidated
+         */
+        long lastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Marks the file modified until the next update, e.g. if reading it has been interrupted.
+         */
+        void invalidate() {
+            lastModified = 0;
+        }
+
+        /**
+         * Returns true if the modification time of the file is later than the one recorded at the
+         * last update.
+         *
+         * @return true if the modification time is later, otherwise false
+         */
+        boolean modificationTimeChanged() {
+            return new File(filePath).lastModified() > lastModified;
+        }
+
+        /**
+         * Stops watching the file.
+         */
+        void close() {}
+    }
+}
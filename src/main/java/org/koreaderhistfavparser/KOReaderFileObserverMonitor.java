@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import android.os.FileObserver;
+
+import java.util.HashMap;
+
+/**
+ * A file monitor getting notified about modifications by Android {@link FileObserver}s, one for
+ * each watched directory.
+ */
+public class KOReaderFileObserverMonitor extends KOReaderEventFileMonitor {
+    private static final int FILE_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.CREATE
+            | FileObserver.DELETE | FileObserver.MODIFY | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO;
+    private static final int DIRECTORY_EVENTS = FileObserver.DELETE_SELF
+            | FileObserver.MOVE_SELF;
+
+    private final HashMap<String, FileObserver> fileObservers = new HashMap<>();
+
+    @Override
+    boolean startWatching(final String directoryPath) {
+        FileObserver fileObserver = new FileObserver(directoryPath,
+                FILE_EVENTS | DIRECTORY_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                if ((event & DIRECTORY_EVENTS) != 0)
+                    onDirectoryInvalid(directoryPath);
+                else if ((event & FILE_EVENTS) != 0)
+                    onFileEvent(directoryPath, path);
+            }
+        };
+        fileObserver.startWatching();
+        fileObservers.put(directoryPath, fileObserver);
+        return true;
+    }
+
+    @Override
+    void stopWatching(String directoryPath) {
+        FileObserver fileObserver = fileObservers.remove(directoryPath);
+        if (fileObserver != null)
+            fileObserver.stopWatching();
+    }
+}
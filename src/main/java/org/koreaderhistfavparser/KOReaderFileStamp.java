@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The modification time, length and content digest of a file at the time it was read or written,
+ * to detect modifications by others, e.g. by KOReader, before the file is written again.<br>
+ * Files modified shortly before the stamp was taken may have been modified again within the
+ * resolution of the modification time, e.g. two seconds on FAT file systems. The content of such
+ * files is compared by its digest. Stamps are immutable.
+ */
+final class KOReaderFileStamp {
+    // resolution of modification times of all supported file systems
+    static final long TIME_RESOLUTION = 2000;
+    // stamp of a missing file
+    static final KOReaderFileStamp MISSING = new KOReaderFileStamp(0, 0, null, 0);
+    private static final int BUFFER_SIZE = 8192;
+
+    final long lastModified;
+    final long length;
+    // the content digest, null if unknown
+    final byte[] digest;
+    // the time the stamp was taken, i.e. before reading or after writing
+    final long taken;
+
+    /**
+     * Constructs a new stamp.
+     *
+     * @param lastModified the modification time of the file
+     * @param length       the length of the file
+     * @param digest       the content digest or null if unknown
+     * @param taken        the time the stamp was taken
+     */
+    KOReaderFileStamp(long lastModified, long length, byte[] digest, long taken) {
+        this.lastModified = lastModified;
+        this.length = length;
+        this.digest = digest;
+        this.taken = taken;
+    }
+
+    /**
+     * Returns whether the given file has not been modified since the stamp was taken. Files
+     * modified within the time resolution before, are only considered unmodified, if their
+     * content has the digest of the stamp.
+     *
+     * @param filePath the file path
+     * @return true if unmodified, otherwise false
+     */
+    Boolean matches(String filePath) {
+        File file = new File(filePath);
+        long lastModified = file.lastModified();
+        if (this.lastModified == 0)
+            return lastModified == 0 && !file.exists();
+        if (lastModified != this.lastModified || file.length() != length)
+            return false;
+        if (lastModified < taken - TIME_RESOLUTION)
+            return true;
+        // possibly modified again within the time resolution, compare the content
+        return digest != null && Arrays.equals(digest, digest(file));
+    }
+
+    /**
+     * Returns a new message digest for the content digests.
+     *
+     * @return the message digest
+     */
+    static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is supported by every Java and Android platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the content digest of the given bytes.
+     *
+     * @param content the bytes
+     * @return the digest
+     */
+    static byte[] digest(byte[] content) {
+        return newMessageDigest().digest(content);
+    }
+
+    /**
+     * Returns the content digest of the given file.
+     *
+     * @param file the file
+     * @return the digest or null if reading failed
+     */
+    static byte[] digest(File file) {
+        MessageDigest messageDigest = newMessageDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            int n;
+            while ((n = inputStream.read(buffer)) != -1)
+                messageDigest.update(buffer, 0, n);
+            return messageDigest.digest();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
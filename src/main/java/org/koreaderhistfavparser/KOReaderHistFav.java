@@ -27,16 +27,27 @@ package org.koreaderhistfavparser;
 import android.os.Environment;
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 /**
  * The class for KOReader history and favorites management.
@@ -47,6 +58,13 @@ public class KOReaderHistFav {
     // automatically detected external storage path during construction
     private static String externalStoragePath;
     private final static String EXTERNAL_STORAGE_PATH_DEFAULT = "/storage/emulated/0";
+    // E.g. on device Onyx MC_DARWIN6 the canonical paths of "/storage/emulated/0" and
+    // "/storage/emulated/legacy" are not identical, although pointing to same directory.
+    private final static Pattern EXTERNAL_STORAGE_PATH_PATTERN =
+            Pattern.compile("^/storage/emulated/(legacy|0)|(/mnt|)/sdcard");
+    // cache of file paths to unique file paths
+    private final static int PATH_CACHE_CAPACITY = 4096;
+    private final static KOReaderPathCache pathCache = new KOReaderPathCache(PATH_CACHE_CAPACITY);
 
     // something like "/storage/emulated/0/koreader"
     private String koreaderDirectoryPath;
@@ -54,14 +72,80 @@ public class KOReaderHistFav {
     private String historyFilePath;
     private final static String COLLECTION_FILE_PATH = "settings/collection.lua";
     private String collectionFilePath;
-    private JSONObject historyJson;
-    private JSONObject collectionJson;
-    private Long historyLastModified = (long) 0;
-    private Long collectionLastModified = (long) 0;
-    // Map with filePath as key and Book as value
-    private HashMap<String, KOReaderBook> books = new HashMap<>();
-    private ArrayList<KOReaderBook> history = new ArrayList<>();
-    private ArrayList<KOReaderBook> favorites = new ArrayList<>();
+    private KOReaderFileMonitor fileMonitor;
+    private KOReaderFileMonitor.Watch historyFileWatch;
+    private KOReaderFileMonitor.Watch collectionFileWatch;
+    // optional file of the binary snapshot, restored at construction
+    private String snapshotFilePath;
+    // snapshot of library, history and favorites, replaced on each modification
+    private final AtomicReference<State> state = new AtomicReference<>(new State());
+    // aggregate statistics by directory, synchronized with the state on demand
+    private final KOReaderPathTrie pathTrie = new KOReaderPathTrie();
+    // file paths of books added to or removed from the library, passed to the trie on publishing
+    private final ArrayList<String> libraryChanges = new ArrayList<>();
+    // lock serializing reading and writing of the files and modifications of the state
+    private final Object writeLock = new Object();
+    // by default as many parallel reads of sdr files as processors, at most 4 for flash storage
+    private final static int PRELOAD_PARALLELISM_DEFAULT =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+    private volatile KOReaderMetadataPreloader preloader;
+    // delay of writing the history and favorites after modifications, 0 for immediate writing,
+    // and the write-behind state, all guarded by writeLock
+    private long writeDelay = 0;
+    private boolean historyDirty = false;
+    private boolean favoritesDirty = false;
+    private ScheduledThreadPoolExecutor writeExecutor;
+    private ScheduledFuture<?> scheduledWrite;
+    private Thread shutdownHook;
+    // stamps and content of the history and collection files as last read or written, to merge
+    // modifications by others, e.g. by KOReader, before writing, all guarded by writeLock
+    private KOReaderFileStamp historyStamp;
+    private HashMap<String, Long> historyBase = new HashMap<>();
+    private KOReaderFileStamp collectionStamp;
+    private ArrayList<String> favoritesBase = new ArrayList<>();
+
+    /**
+     * A listener for the progress of preloading the books' metadata, see {@link #preloadMetadata}.
+     */
+    public interface PreloadListener {
+        /**
+         * Called by the preloading thread after the sdr file of a book has been read (or was read
+         * before), so that the properties of the book can be shown.
+         *
+         * @param book the book
+         * @param loaded the number of books loaded so far
+         * @param total the total number of books to load
+         */
+        void onBookLoaded(KOReaderBook book, int loaded, int total);
+    }
+
+    /**
+     * The durability of the written history, collection and sdr files, see
+     * {@link #setWriteDurability}.
+     */
+    public enum Durability {
+        /**
+         * Written files are replaced atomically, but may be lost or empty after a power loss
+         * shortly after writing.
+         */
+        NONE,
+        /**
+         * Written files are synchronized to the storage device before replacing the files.
+         */
+        SYNC
+    }
+
+    /**
+     * An action modifying history, favorites and library by an {@link Editor}, see {@link #edit}.
+     */
+    public interface EditAction {
+        /**
+         * Called with the editor, which may only be used during the call.
+         *
+         * @param editor the editor
+         */
+        void edit(Editor editor);
+    }
 
     /**
      * Constructs a new KOReaderHistFav. Searches in external storage and external SD card storage
@@ -80,11 +164,50 @@ public class KOReaderHistFav {
      * @throws FileNotFoundException if KOReader settings directory not found
      */
     public KOReaderHistFav(String koreaderDirectoryPath) throws FileNotFoundException {
+        this(koreaderDirectoryPath, KOReaderPollingFileMonitor.DEFAULT);
+    }
+
+    /**
+     * Constructs a new KOReaderHistFav from given settings directory, detecting modifications of
+     * the history, collection and sdr files by the given file monitor. Defaults to a
+     * {@link KOReaderPollingFileMonitor} comparing the modification time on each access.
+     *
+     * @param koreaderDirectoryPath the koreader directory path, null to search for it
+     * @param fileMonitor the file monitor
+     * @throws FileNotFoundException if KOReader settings directory not found
+     */
+    public KOReaderHistFav(String koreaderDirectoryPath, KOReaderFileMonitor fileMonitor)
+            throws FileNotFoundException {
+        this(koreaderDirectoryPath, fileMonitor, null);
+    }
+
+    /**
+     * Constructs a new KOReaderHistFav from given settings directory, detecting modifications of
+     * the history, collection and sdr files by the given file monitor and restoring library,
+     * history and favorites from the given snapshot file, if existing. The history and favorites
+     * are restored, if the history and collection files have not been modified since the
+     * snapshot has been saved. The properties of the books are restored and read again from the
+     * sdr files only if these have been modified. The snapshot is saved by {@link #saveSnapshot}.
+     *
+     * @param koreaderDirectoryPath the koreader directory path, null to search for it
+     * @param fileMonitor the file monitor
+     * @param snapshotFilePath the snapshot file path, e.g. in the application's cache directory,
+     *                         or null for no snapshot
+     * @throws FileNotFoundException if KOReader settings directory not found
+     */
+    public KOReaderHistFav(String koreaderDirectoryPath, KOReaderFileMonitor fileMonitor,
+                           String snapshotFilePath) throws FileNotFoundException {
         this.koreaderDirectoryPath = koreaderDirectoryPath(koreaderDirectoryPath);
+        this.fileMonitor = fileMonitor;
         historyFilePath = this.koreaderDirectoryPath + "/" + HISTORY_FILE_PATH;
         collectionFilePath = this.koreaderDirectoryPath + "/" + COLLECTION_FILE_PATH;
+        historyFileWatch = fileMonitor.watch(historyFilePath);
+        collectionFileWatch = fileMonitor.watch(collectionFilePath);
         Log.d(TAG, "Set up with history file " + historyFilePath
                 + " and with collection file " + collectionFilePath);
+        this.snapshotFilePath = snapshotFilePath;
+        if (snapshotFilePath != null)
+            restoreSnapshot();
     }
 
     /**
@@ -110,13 +233,117 @@ public class KOReaderHistFav {
      */
     public static void setExternalStoragePath(String externalStoragePath)
             throws FileNotFoundException {
-        if (new File(externalStoragePath).isDirectory())
+        if (new File(externalStoragePath).isDirectory()) {
             KOReaderHistFav.externalStoragePath = externalStoragePath;
-        else
+            pathCache.invalidateAll();
+        } else
             throw new FileNotFoundException("Could not locate external storage directory "
                     + externalStoragePath);
     }
 
+    /**
+     * Returns the durability of the written history, collection and sdr files.
+     *
+     * @return the durability
+     */
+    public static Durability getWriteDurability() {
+        return KOReaderLuaReadWrite.getDurability();
+    }
+
+    /**
+     * Sets the durability of the written history, collection and sdr files for all instances.
+     * Files are always written to a temporary file first, which then replaces the file, so that
+     * KOReader and other readers never read a partially written file. With
+     * {@link Durability#SYNC} (default), the temporary file is synchronized to the storage device
+     * before, which takes longer, especially on flash storage.
+     *
+     * @param durability the durability, null for the default
+     */
+    public static void setWriteDurability(Durability durability) {
+        KOReaderLuaReadWrite.setDurability(durability != null ? durability : Durability.SYNC);
+    }
+
+    /**
+     * Returns the number of written history, collection and sdr files of all instances.
+     *
+     * @return the number of written files
+     */
+    public static long getWrittenFiles() {
+        return KOReaderLuaReadWrite.getWrittenFiles();
+    }
+
+    /**
+     * Returns the number of skipped writes of history, collection and sdr files of all instances.
+     * Writing is skipped, if the file would be written with the content it has, i.e. with the
+     * content last read or written, if the file has not been modified since.
+     *
+     * @return the number of skipped writes
+     */
+    public static long getSkippedWrites() {
+        return KOReaderLuaReadWrite.getSkippedWrites();
+    }
+
+    /**
+     * Removes the given file path from the cache of unique file paths, e.g. after the file or
+     * one of its parent directories has been moved or replaced by a symbolic link.
+     *
+     * @param filePath the file path
+     */
+    public static void invalidateFilePathCache(String filePath) {
+        pathCache.invalidate(filePath);
+    }
+
+    /**
+     * Removes all file paths from the cache of unique file paths.
+     */
+    public static void invalidateFilePathCache() {
+        pathCache.invalidateAll();
+    }
+
+    /**
+     * Returns the number of lookups in the cache of unique file paths which were found.
+     *
+     * @return the number of cache hits
+     */
+    public static long getFilePathCacheHits() {
+        return pathCache.hits();
+    }
+
+    /**
+     * Returns the number of lookups in the cache of unique file paths which were not found and
+     * required the canonicalization of the file path.
+     *
+     * @return the number of cache misses
+     */
+    public static long getFilePathCacheMisses() {
+        return pathCache.misses();
+    }
+
+    /**
+     * Returns the ratio of hits to all lookups in the cache of unique file paths.
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public static double getFilePathCacheHitRate() {
+        return pathCache.hitRate();
+    }
+
+    /**
+     * Writes pending modifications of history and favorites and stops detecting modifications of
+     * the history, collection and sdr files by the file monitor given during construction.
+     * Afterwards, modifications are not detected anymore, if the file monitor is based on events.
+     */
+    public void close() {
+        synchronized (writeLock) {
+            setWriteDelay(0);
+            historyFileWatch.close();
+            collectionFileWatch.close();
+            for (KOReaderBook book : state.get().books.values())
+                book.close();
+            pathTrie.clear();
+        }
+    }
+
     /**
      * Returns the KOReader settings' directory path.
      *
@@ -144,6 +371,112 @@ public class KOReaderHistFav {
         return collectionFilePath;
     }
 
+    /**
+     * Returns the delay of writing the history and favorites after modifications.
+     *
+     * @return the write delay in milliseconds, 0 for immediate writing
+     */
+    public long getWriteDelay() {
+        synchronized (writeLock) {
+            return writeDelay;
+        }
+    }
+
+    /**
+     * Sets the delay of writing the history and favorites after modifications. With a delay
+     * greater than zero, modifications only mark the history or favorites as modified and all
+     * modifications within the delay after the first one are written at once, e.g. on removal of
+     * several books. The pending modifications are written by {@link #flush}, by {@link #close},
+     * on exit of the virtual machine by a shutdown hook and before the history or collection
+     * file is read again after a modification by another application, i.e. the pending
+     * modifications are merged with the other application's modifications. Setting the delay to
+     * 0 writes pending modifications immediately.<br>
+     * With a delay, the modifying methods return true without writing and failures of writing are
+     * only reported by {@link #flush}. Instances with a delay are referenced until closed.<br>
+     * Shutdown hooks only run on a regular exit of the virtual machine. Android kills the
+     * processes of apps in the background without running them, so that pending modifications
+     * are lost. On Android, call {@link #flush} in <code>onPause()</code> or
+     * <code>onStop()</code> of the activity.
+     *
+     * @param writeDelay the write delay in milliseconds
+     * @throws IllegalArgumentException if the write delay is negative
+     */
+    public void setWriteDelay(long writeDelay) throws IllegalArgumentException {
+        if (writeDelay < 0)
+            throw new IllegalArgumentException("Write delay " + writeDelay + " negative");
+        synchronized (writeLock) {
+            this.writeDelay = writeDelay;
+            if (writeDelay == 0) {
+                flush();
+                if (writeExecutor != null) {
+                    writeExecutor.shutdown();
+                    writeExecutor = null;
+                }
+                if (shutdownHook != null) {
+                    try {
+                        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                    } catch (IllegalStateException e) {
+                        // already shutting down, the hook writes the pending modifications
+                    }
+                    shutdownHook = null;
+                }
+            } else if (shutdownHook == null) {
+                shutdownHook = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, "KOReaderHistFav-shutdown");
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            }
+        }
+    }
+
+    /**
+     * Writes pending modifications of history and favorites, see {@link #setWriteDelay}.
+     *
+     * @return true if successfully or nothing to write, otherwise false
+     */
+    public Boolean flush() {
+        synchronized (writeLock) {
+            if (scheduledWrite != null) {
+                scheduledWrite.cancel(false);
+                scheduledWrite = null;
+            }
+            Boolean flushedHistory = flushHistory();
+            Boolean flushedFavorites = flushFavorites();
+            return flushedHistory && flushedFavorites;
+        }
+    }
+
+    /**
+     * Saves library, history and favorites with the properties of all books to the snapshot file
+     * given during construction, so that they are restored by the next construction, e.g. in
+     * a new process.
+     *
+     * @return true if successfully, otherwise false, e.g. if no snapshot file given
+     */
+    public Boolean saveSnapshot() {
+        if (snapshotFilePath == null)
+            return false;
+        synchronized (writeLock) {
+            // the snapshot is only valid for the history and favorites written to the files
+            if (!flush())
+                return false;
+            State state = this.state.get();
+            // null stamps, if not known from which file contents, are never restored
+            KOReaderSnapshot snapshot = new KOReaderSnapshot(historyFilePath, historyStamp,
+                    collectionFilePath, collectionStamp, state.books.values(), state.history,
+                    state.favorites);
+            if (snapshot.write(snapshotFilePath)) {
+                Log.d(TAG, "--- saveSnapshot() successfully. Saved library with "
+                        + state.books.size() + " books.");
+                return true;
+            }
+            return false;
+        }
+    }
+
     /**
      * Add book to favorites (and library). If book already in favorites, move book to first
      * position.
@@ -152,16 +485,18 @@ public class KOReaderHistFav {
      * @return true if successfully, otherwise false
      */
     public Boolean addBookToFavorites(String filePath) {
-        readFavorites();
         filePath = uniqueFilePath(filePath);
-        KOReaderBook book = books.get(filePath);
-        if (book == null) {
-            book = new KOReaderBook(filePath);
-            books.put(filePath, book);
+        synchronized (writeLock) {
+            readFavorites();
+            State state = this.state.get();
+            HashMap<String, KOReaderBook> books = new HashMap<>(state.books);
+            KOReaderBook book = libraryBook(books, filePath);
+            ArrayList<KOReaderBook> favorites = new ArrayList<>(state.favorites);
+            favorites.remove(book);
+            favorites.add(0, book);
+            publish(state.withBooks(books).withFavorites(favorites));
+            return commitFavorites(favorites);
         }
-        favorites.remove(book);
-        favorites.add(0, book);
-        return writeFavorites();
     }
 
     /**
@@ -172,17 +507,20 @@ public class KOReaderHistFav {
      * @return true if successfully, otherwise false
      */
     public Boolean addBookToHistory(String filePath) {
-        readHistory();
         filePath = uniqueFilePath(filePath);
-        KOReaderBook book = books.get(filePath);
-        if (book == null) {
-            book = new KOReaderBook(filePath);
-            books.put(filePath, book);
+        synchronized (writeLock) {
+            readHistory();
+            State state = this.state.get();
+            HashMap<String, KOReaderBook> books = new HashMap<>(state.books);
+            KOReaderBook book = libraryBook(books, filePath);
+            ArrayList<KOReaderBook> history = new ArrayList<>(state.history);
+            history.remove(book);
+            book = readBook(books, book, new Date().getTime());
+            history.add(0, book);
+            publish(state.withBooks(books).withHistory(history)
+                    .withFavorites(libraryBooks(books, state.favorites)));
+            return commitHistory(history);
         }
-        history.remove(book);
-        book.setLastRead(new Date().getTime());
-        history.add(0, book);
-        return writeHistory();
     }
 
     /**
@@ -192,17 +530,83 @@ public class KOReaderHistFav {
      * @return true if successfully, otherwise false
      */
     public Boolean addBookToLibrary(String filePath) {
-        readHistory();
-        readFavorites();
         filePath = uniqueFilePath(filePath);
-        KOReaderBook book = books.get(filePath);
-        if (book == null) {
-            book = new KOReaderBook(filePath);
-            books.put(filePath, book);
+        synchronized (writeLock) {
+            readHistory();
+            readFavorites();
+            State state = this.state.get();
+            if (state.books.containsKey(filePath))
+                return false;
+            HashMap<String, KOReaderBook> books = new HashMap<>(state.books);
+            libraryBook(books, filePath);
+            publish(state.withBooks(books));
             return true;
         }
-        else {
-            return false;
+    }
+
+    /**
+     * Add books to favorites (and library) at once, as if added one after another by
+     * {@link #addBookToFavorites}, i.e. the last book at first position.
+     *
+     * @param filePaths the books' file paths
+     * @return true if successfully, otherwise false and favorites unchanged
+     */
+    public Boolean addBooksToFavorites(final Collection<String> filePaths) {
+        return edit(new EditAction() {
+            @Override
+            public void edit(Editor editor) {
+                for (String filePath : filePaths)
+                    editor.addBookToFavorites(filePath);
+            }
+        });
+    }
+
+    /**
+     * Add books to history (and library) at once, as if added one after another by
+     * {@link #addBookToHistory}, i.e. the last book at first position.
+     *
+     * @param filePaths the books' file paths
+     * @return true if successfully, otherwise false and history unchanged
+     */
+    public Boolean addBooksToHistory(final Collection<String> filePaths) {
+        return edit(new EditAction() {
+            @Override
+            public void edit(Editor editor) {
+                for (String filePath : filePaths)
+                    editor.addBookToHistory(filePath);
+            }
+        });
+    }
+
+    /**
+     * Modifies history, favorites and library by the given action at once. The history and
+     * collection files are read at most once before and written at most once after the action.
+     * The modifications are applied all or nothing: if the action throws an exception or writing
+     * fails, history, favorites and library are left unchanged (an exception is passed on).
+     * Reads of other threads observe either none or all of the modifications.<br>
+     * The history and collection files are not written atomically together. If writing the
+     * collection file fails after the history file has been written, the previous history is
+     * written again. If that fails as well, the history file keeps the modifications until the
+     * history is written again, i.e. on {@link #flush} or before the history file is read again.
+     *
+     * @param action the action
+     * @return true if successfully, otherwise false
+     */
+    public Boolean edit(EditAction action) {
+        synchronized (writeLock) {
+            readHistory();
+            readFavorites();
+            State state = this.state.get();
+            Editor editor = new Editor(state);
+            try {
+                action.edit(editor);
+            } catch (RuntimeException | Error e) {
+                editor.abort();
+                throw e;
+            } finally {
+                editor.closed = true;
+            }
+            return editor.commit(state);
         }
     }
 
@@ -213,40 +617,147 @@ public class KOReaderHistFav {
      * @return the book or null if book is not in library
      */
     public KOReaderBook getBook(String filePath) {
-        readHistory();
-        readFavorites();
-        return books.get(uniqueFilePath(filePath));
+        reload(true, true);
+        return state.get().books.get(uniqueFilePath(filePath));
+    }
+
+    /**
+     * Returns the membership in history and favorites of the book for given file path, e.g. to
+     * decorate a file browser listing. After the first lookup, the file path is not canonicalized
+     * again, until history or favorites are modified.
+     *
+     * @param filePath the book's file path
+     * @return the status or null if book is not in library
+     */
+    public KOReaderBookStatus getBookStatus(String filePath) {
+        reload(true, true);
+        return state.get().index().get(filePath);
+    }
+
+    /**
+     * Returns the memberships in history and favorites of all books of the library in the given
+     * directory by their file names, e.g. to decorate a file browser listing with one lookup per
+     * file. The map is an unmodifiable snapshot, which is not changed by later modifications.
+     *
+     * @param directoryPath the directory path
+     * @return the statuses by file name, empty if no book of the directory is in the library
+     */
+    public Map<String, KOReaderBookStatus> getDirectoryStatuses(String directoryPath) {
+        reload(true, true);
+        return state.get().index().getDirectory(uniqueFilePath(directoryPath));
     }
 
     /**
-     * Returns the list of books in favorites, sorted by last added (last added book first).
+     * Returns the aggregate statistics of all books of the library in the given directory and its
+     * subdirectories, e.g. for folder badges. The statistics are updated incrementally with the
+     * books added to or removed from the library, the modifications of history and favorites and
+     * the properties read again from sdr files, so that they are returned without iterating the
+     * library. The properties of books added to the library are read from their sdr files, unless
+     * read already.<br>
+     * The first call builds the statistics from all books of the library and reads the sdr files
+     * of all books not read yet, while other calls of this method wait. Call it once in the
+     * background, e.g. after {@link #preloadMetadata}, to avoid the delay on first use.
+     *
+     * @param directoryPath the directory path
+     * @return the statistics
+     */
+    public KOReaderDirectoryStats getDirectoryStats(String directoryPath) {
+        reload(true, true);
+        return pathTrie.stats(state, uniqueFilePath(directoryPath));
+    }
+
+    /**
+     * Returns the list of books in favorites, sorted by last added (last added book first). The
+     * list is an unmodifiable snapshot, which is not changed by later modifications.
      *
      * @return the favorites
      */
-    public ArrayList<KOReaderBook> getFavorites() {
-        readFavorites();
-        return favorites;
+    public List<KOReaderBook> getFavorites() {
+        reload(false, true);
+        return state.get().favorites;
     }
 
     /**
-     * Returns the list of books in history, sorted by last reading (last read book first).
+     * Returns the list of books in history, sorted by last reading (last read book first). The
+     * list is an unmodifiable snapshot, which is not changed by later modifications.
      *
      * @return the history
      */
-    public ArrayList<KOReaderBook> getHistory() {
-        readHistory();
-        return history;
+    public List<KOReaderBook> getHistory() {
+        reload(true, false);
+        return state.get().history;
     }
 
     /**
-     * Returns the library with all books from favorites and history import.
+     * Returns the library with all books from favorites and history import. The map is an
+     * unmodifiable snapshot, which is not changed by later modifications.
      *
      * @return the library
      */
-    public HashMap<String, KOReaderBook> getLibrary() {
-        readHistory();
-        readFavorites();
-        return books;
+    public Map<String, KOReaderBook> getLibrary() {
+        reload(true, true);
+        return state.get().books;
+    }
+
+    /**
+     * Returns the maximum number of sdr files read in parallel by {@link #preloadMetadata}.
+     * Defaults to the number of processors, but at most 4.
+     *
+     * @return the parallelism
+     */
+    public int getPreloadParallelism() {
+        KOReaderMetadataPreloader preloader = this.preloader;
+        return preloader == null ? PRELOAD_PARALLELISM_DEFAULT : preloader.getParallelism();
+    }
+
+    /**
+     * Sets the maximum number of sdr files read in parallel by {@link #preloadMetadata}. Running
+     * preloads are not affected.
+     *
+     * @param parallelism the parallelism
+     * @throws IllegalArgumentException if the parallelism is less than one
+     */
+    public void setPreloadParallelism(int parallelism) throws IllegalArgumentException {
+        preloader = new KOReaderMetadataPreloader(parallelism);
+    }
+
+    /**
+     * Reads the metadata of the given books from their sdr files in parallel, so that later calls
+     * of their getters, e.g. for showing a list of books, do not read the sdr files. Books already
+     * read and not modified since are skipped.
+     *
+     * @param books the books
+     * @param listener the listener for the progress or null
+     * @return the future of the number of loaded books, completed with the first exception
+     *         thrown by reading an sdr file or the listener, if any; cancelling it stops preloading
+     */
+    public Future<Integer> preloadMetadata(Collection<KOReaderBook> books,
+                                           PreloadListener listener) {
+        KOReaderMetadataPreloader preloader = this.preloader;
+        if (preloader == null) {
+            synchronized (writeLock) {
+                if (this.preloader == null)
+                    this.preloader = new KOReaderMetadataPreloader(PRELOAD_PARALLELISM_DEFAULT);
+                preloader = this.preloader;
+            }
+        }
+        return preloader.preload(books, listener);
+    }
+
+    /**
+     * Reads the metadata of all books in library in parallel, history first, then favorites and
+     * other books, see {@link #preloadMetadata}.
+     *
+     * @param listener the listener for the progress or null
+     * @return the future of the number of loaded books; cancelling it stops preloading
+     */
+    public Future<Integer> preloadLibrary(PreloadListener listener) {
+        reload(true, true);
+        State state = this.state.get();
+        LinkedHashSet<KOReaderBook> books = new LinkedHashSet<>(state.history);
+        books.addAll(state.favorites);
+        books.addAll(state.books.values());
+        return preloadMetadata(books, listener);
     }
 
     /**
@@ -256,13 +767,19 @@ public class KOReaderHistFav {
      * @return true if successfully, otherwise false
      */
     public Boolean removeBookFromFavorites(String filePath) {
-        readFavorites();
         filePath = uniqueFilePath(filePath);
-        KOReaderBook book = books.get(filePath);
-        if (book != null && favorites.remove(book))
-            return writeFavorites();
-        else
-            return false;
+        synchronized (writeLock) {
+            readFavorites();
+            State state = this.state.get();
+            KOReaderBook book = state.books.get(filePath);
+            ArrayList<KOReaderBook> favorites = new ArrayList<>(state.favorites);
+            if (book != null && favorites.remove(book)) {
+                publish(state.withFavorites(favorites));
+                return commitFavorites(favorites);
+            }
+            else
+                return false;
+        }
     }
 
     /**
@@ -272,13 +789,19 @@ public class KOReaderHistFav {
      * @return true if successfully, otherwise false
      */
     public Boolean removeBookFromHistory(String filePath) {
-        readHistory();
         filePath = uniqueFilePath(filePath);
-        KOReaderBook book = books.get(filePath);
-        if (book != null && history.remove(book))
-            return writeHistory();
-        else
-            return false;
+        synchronized (writeLock) {
+            readHistory();
+            State state = this.state.get();
+            KOReaderBook book = state.books.get(filePath);
+            ArrayList<KOReaderBook> history = new ArrayList<>(state.history);
+            if (book != null && history.remove(book)) {
+                publish(state.withHistory(history));
+                return commitHistory(history);
+            }
+            else
+                return false;
+        }
     }
 
     /**
@@ -288,25 +811,90 @@ public class KOReaderHistFav {
      * @return true if successfully, otherwise false
      */
     public Boolean removeBookFromLibrary(String filePath) {
-        readHistory();
-        readFavorites();
         filePath = uniqueFilePath(filePath);
-        KOReaderBook book = books.get(filePath);
-        if (book != null) {
-            Boolean writeHistory = true;
-            Boolean writeFavorites = true;
-            if (history.remove(book))
-                writeHistory =  writeHistory();
-            if (favorites.remove(book))
-                writeFavorites = writeFavorites();
-            if (writeHistory && writeFavorites) {
-                books.remove(filePath);
-                return true;
+        synchronized (writeLock) {
+            readHistory();
+            readFavorites();
+            State state = this.state.get();
+            KOReaderBook book = state.books.get(filePath);
+            if (book != null) {
+                Boolean writeHistory = true;
+                Boolean writeFavorites = true;
+                ArrayList<KOReaderBook> history = new ArrayList<>(state.history);
+                if (history.remove(book)) {
+                    publish(state.withHistory(history));
+                    writeHistory = commitHistory(history);
+                    // possibly merged with modifications by others
+                    state = this.state.get();
+                }
+                ArrayList<KOReaderBook> favorites = new ArrayList<>(state.favorites);
+                if (favorites.remove(book)) {
+                    publish(state.withFavorites(favorites));
+                    writeFavorites = commitFavorites(favorites);
+                    state = this.state.get();
+                }
+                if (writeHistory && writeFavorites) {
+                    HashMap<String, KOReaderBook> books = new HashMap<>(state.books);
+                    books.remove(filePath);
+                    libraryChanges.add(filePath);
+                    publish(state.withBooks(books));
+                    book.close();
+                    return true;
+                }
+                return false;
             }
-            return false;
+            else
+                return false;
         }
-        else
-            return false;
+    }
+
+    /**
+     * Remove books from favorites at once. Books not in favorites are skipped.
+     *
+     * @param filePaths the books' file paths
+     * @return true if successfully, otherwise false and favorites unchanged
+     */
+    public Boolean removeBooksFromFavorites(final Collection<String> filePaths) {
+        return edit(new EditAction() {
+            @Override
+            public void edit(Editor editor) {
+                for (String filePath : filePaths)
+                    editor.removeBookFromFavorites(filePath);
+            }
+        });
+    }
+
+    /**
+     * Remove books from history at once. Books not in history are skipped.
+     *
+     * @param filePaths the books' file paths
+     * @return true if successfully, otherwise false and history unchanged
+     */
+    public Boolean removeBooksFromHistory(final Collection<String> filePaths) {
+        return edit(new EditAction() {
+            @Override
+            public void edit(Editor editor) {
+                for (String filePath : filePaths)
+                    editor.removeBookFromHistory(filePath);
+            }
+        });
+    }
+
+    /**
+     * Remove books from library (and favorites and history) at once. Books not in library are
+     * skipped.
+     *
+     * @param filePaths the books' file paths
+     * @return true if successfully, otherwise false and library unchanged
+     */
+    public Boolean removeBooksFromLibrary(final Collection<String> filePaths) {
+        return edit(new EditAction() {
+            @Override
+            public void edit(Editor editor) {
+                for (String filePath : filePaths)
+                    editor.removeBookFromLibrary(filePath);
+            }
+        });
     }
 
     /**
@@ -315,19 +903,25 @@ public class KOReaderHistFav {
      * <a href=https://stackoverflow.com/questions/15841380/android-disambiguating-file-paths>
      *     Android disambiguating file path</a>.
      * The external storage path can be set by {@link #setExternalStoragePath} and is returned by
-     * {@link #getExternalStoragePath}. It defaults to <code>/storage/emulated/0</code>.
+     * {@link #getExternalStoragePath}. It defaults to <code>/storage/emulated/0</code>.<br>
+     * Results are cached, see {@link #invalidateFilePathCache}.
      *
      * @param filePath the file path
      * @return the unique file path
      */
     static String uniqueFilePath(String filePath) {
+        String uniqueFilePath = pathCache.get(filePath);
+        if (uniqueFilePath != null)
+            return uniqueFilePath;
         try {
-            filePath = new File(filePath).getCanonicalPath();
-        } catch (IOException e) {}
-        // E.g. on device Onyx MC_DARWIN6 the canonical paths of "/storage/emulated/0" and
-        // "/storage/emulated/legacy" are not identical, although pointing to same directory.
-        String replaceRegexExtStorage = "^/storage/emulated/(legacy|0)|(/mnt|)/sdcard";
-        return filePath.replaceFirst(replaceRegexExtStorage, getExternalStoragePath());
+            uniqueFilePath = new File(filePath).getCanonicalPath();
+        } catch (IOException e) {
+            uniqueFilePath = filePath;
+        }
+        uniqueFilePath = EXTERNAL_STORAGE_PATH_PATTERN.matcher(uniqueFilePath)
+                .replaceFirst(getExternalStoragePath());
+        pathCache.put(filePath, uniqueFilePath);
+        return uniqueFilePath;
     }
 
     private String koreaderDirectoryPath(String koreaderDirectoryPath)
@@ -347,190 +941,947 @@ public class KOReaderHistFav {
         }
     }
 
+    /**
+     * Reads the history and/or favorites, if modified. Without modifications, the current state is
+     * kept without locking.
+     *
+     * @param history true to read the history
+     * @param favorites true to read the favorites
+     */
+    private void reload(boolean history, boolean favorites) {
+        if ((history && historyFileModified()) || (favorites && collectionFileModified())) {
+            synchronized (writeLock) {
+                if (history)
+                    readHistory();
+                if (favorites)
+                    readFavorites();
+            }
+        }
+    }
+
+    /**
+     * Restores library, history and favorites from the snapshot file. The history and favorites
+     * are only restored, if the history and collection files have not been modified since, and
+     * read from these files otherwise.
+     */
+    private void restoreSnapshot() {
+        KOReaderSnapshot snapshot = KOReaderSnapshot.read(snapshotFilePath, fileMonitor);
+        if (snapshot == null)
+            return;
+        synchronized (writeLock) {
+            HashMap<String, KOReaderBook> books = new HashMap<>(2 * snapshot.books.size());
+            for (KOReaderBook book : snapshot.books) {
+                books.put(book.getFilePath(), book);
+                // the file paths are unique already
+                pathCache.put(book.getFilePath(), book.getFilePath());
+            }
+            State state = this.state.get().withBooks(books);
+            if (snapshot.historyMatches(historyFilePath)) {
+                state = state.withHistory(new ArrayList<>(snapshot.history));
+                historyFileWatch.restore(snapshot.historyStamp.lastModified);
+                historyStamp = snapshot.historyStamp;
+                historyBase = lastReads(snapshot.history);
+            }
+            if (snapshot.collectionMatches(collectionFilePath)) {
+                state = state.withFavorites(new ArrayList<>(snapshot.favorites));
+                collectionFileWatch.restore(snapshot.collectionStamp.lastModified);
+                collectionStamp = snapshot.collectionStamp;
+                favoritesBase = filePaths(snapshot.favorites);
+            }
+            publish(state);
+        }
+        Log.d(TAG, "--- restoreSnapshot() successfully. Restored library with "
+                + snapshot.books.size() + " books.");
+    }
+
+    /**
+     * Returns the book for the given unique file path from the given library. Adds a new book to
+     * the library, if not found.
+     *
+     * @param books the library
+     * @param filePath the unique file path
+     * @return the book
+     */
+    private KOReaderBook libraryBook(HashMap<String, KOReaderBook> books, String filePath) {
+        KOReaderBook book = books.get(filePath);
+        if (book == null) {
+            book = new KOReaderBook(filePath, fileMonitor);
+            books.put(filePath, book);
+            libraryChanges.add(filePath);
+        }
+        return book;
+    }
+
+    /**
+     * Publishes the given state, then passes the modifications of the library to the trie of the
+     * library, so that the trie finds them in the state read afterwards, see
+     * {@link KOReaderPathTrie#stats}.
+     *
+     * @param state the state
+     */
+    private void publish(State state) {
+        this.state.set(state);
+        for (String filePath : libraryChanges)
+            pathTrie.libraryChanged(filePath);
+        libraryChanges.clear();
+    }
+
+    /**
+     * Replaces the given book in the given library by a copy with the given time of last reading.
+     * The books are not modified, as they are shared with the published history and favorites,
+     * see {@link KOReaderBook#withLastRead}.
+     *
+     * @param books the library
+     * @param book the book
+     * @param lastRead the time of last reading
+     * @return the copy or the given book, if read at the given time already
+     */
+    private static KOReaderBook readBook(HashMap<String, KOReaderBook> books, KOReaderBook book,
+                                         long lastRead) {
+        if (book.getLastRead() == lastRead)
+            return book;
+        book = book.withLastRead(lastRead);
+        books.put(book.getFilePath(), book);
+        return book;
+    }
+
+    /**
+     * Returns the given list with the books replaced by the books of the given library, e.g. by
+     * copies with other times of last reading.
+     *
+     * @param books the library
+     * @param list the list of books
+     * @return the list of books of the library
+     */
+    private static ArrayList<KOReaderBook> libraryBooks(HashMap<String, KOReaderBook> books,
+                                                        List<KOReaderBook> list) {
+        ArrayList<KOReaderBook> libraryBooks = new ArrayList<>(list.size());
+        for (KOReaderBook book : list) {
+            KOReaderBook libraryBook = books.get(book.getFilePath());
+            libraryBooks.add(libraryBook != null ? libraryBook : book);
+        }
+        return libraryBooks;
+    }
+
     private Boolean historyFileModified() {
-        return (new File(historyFilePath).lastModified() > historyLastModified);
+        return historyFileWatch.modified();
+    }
+
+    /**
+     * Removes duplicate entries of the same book, keeping the entry with the highest (or lowest)
+     * number or the first one of equal numbers. Sets the unique file paths of all entries.
+     *
+     * @param entries the entries in the order of the lua file
+     * @param keepHighest true to keep the entry with the highest number, false for the lowest
+     * @return the kept entries in the order of the lua file
+     */
+    private ArrayList<Entry> uniqueEntries(ArrayList<Entry> entries, boolean keepHighest) {
+        HashMap<String, Entry> keptEntries = new HashMap<>(2 * entries.size());
+        for (Entry entry : entries) {
+            entry.uniqueFilePath = uniqueFilePath(entry.filePath);
+            Entry keptEntry = keptEntries.get(entry.uniqueFilePath);
+            if (keptEntry == null || (keepHighest ? entry.number > keptEntry.number
+                    : entry.number < keptEntry.number))
+                keptEntries.put(entry.uniqueFilePath, entry);
+        }
+        ArrayList<Entry> uniqueEntries = new ArrayList<>(keptEntries.size());
+        for (Entry entry : entries) {
+            if (keptEntries.get(entry.uniqueFilePath) == entry)
+                uniqueEntries.add(entry);
+        }
+        return uniqueEntries;
+    }
+
+    /**
+     * Forgets the stamp of the history or collection file, which could not be read, so that it is
+     * written regardless of modifications by others, like before reading.
+     *
+     * @param history true for the history file, false for the collection file
+     */
+    private void readFailed(boolean history) {
+        String filePath = history ? historyFilePath : collectionFilePath;
+        KOReaderFileStamp stamp = new File(filePath).exists() ? null : KOReaderFileStamp.MISSING;
+        if (history) {
+            historyStamp = stamp;
+            historyBase = new HashMap<>();
+        } else {
+            collectionStamp = stamp;
+            favoritesBase = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Returns the times of last reading of the given books by their file paths.
+     *
+     * @param books the books
+     * @return the times of last reading
+     */
+    private static HashMap<String, Long> lastReads(List<KOReaderBook> books) {
+        HashMap<String, Long> lastReads = new HashMap<>(2 * books.size());
+        for (KOReaderBook book : books)
+            lastReads.put(book.getFilePath(), (long) book.getLastRead());
+        return lastReads;
+    }
+
+    /**
+     * Returns the file paths of the given books.
+     *
+     * @param books the books
+     * @return the file paths
+     */
+    private static ArrayList<String> filePaths(List<KOReaderBook> books) {
+        ArrayList<String> filePaths = new ArrayList<>(books.size());
+        for (KOReaderBook book : books)
+            filePaths.add(book.getFilePath());
+        return filePaths;
     }
 
     private Boolean readHistory() {
+        // merge pending modifications with the file's content, instead of replacing them
+        if (historyDirty && historyFileModified())
+            flushHistory();
         if (historyFileModified()) {
-            historyJson = KOReaderLuaReadWrite.readLuaFile(historyFilePath);
-            historyLastModified = new File(historyFilePath).lastModified();
+            historyFileWatch.update();
         } else {
             return false;
         }
-        if (historyJson == null)
+        EntryCollector entryCollector = new EntryCollector("time");
+        if (!KOReaderLuaReadWrite.readLuaFileEntries(historyFilePath, entryCollector)) {
+            // read again on next access, if reading has been cancelled
+            if (Thread.currentThread().isInterrupted())
+                historyFileWatch.invalidate();
+            else
+                readFailed(true);
             return false;
-        boolean foundDuplicates = false;
-        history.clear();
-        Iterator keys = historyJson.keys();
-        while (keys.hasNext()) {
-            String key = (String) keys.next();
-            JSONObject keyjson;
-            String filePath;
-            Long lastRead;
-            try {
-                keyjson = historyJson.getJSONObject(key);
-                filePath = keyjson.getString("file");
-                lastRead = keyjson.getLong("time");
-            } catch (JSONException e) {
-                e.printStackTrace();
-                continue;
-            }
-            filePath = uniqueFilePath(filePath);
-            KOReaderBook book;
-            if (books.containsKey(filePath)) {
-                book = books.get(filePath);
-                int iBookInHistory = history.indexOf(book);
-                if (iBookInHistory != -1) {
-                    foundDuplicates = true;
-                    if (lastRead > history.get(iBookInHistory).getLastRead())
-                        history.remove(iBookInHistory);
-                    else
-                        continue;
-                }
-            } else {
-                book = new KOReaderBook(filePath);
-                books.put(filePath, book);
-            }
-            book.setLastRead(lastRead);
-            int historySize = history.size();
-            if (historySize == 0) {
-                history.add(book);
-            } else {
-                for (int i = 0; i < historySize; i++) {
-                    if (book.getLastRead() > history.get(i).getLastRead()) {
-                        history.add(i, book);
-                        break;
-                    } else if (i == historySize - 1) {
-                        history.add(book);
-                        break;
-                    }
-                }
-            }
         }
+        // keep the newest entry per book, then sort by last reading (stable for equal times)
+        ArrayList<Entry> entries = entryCollector.entries;
+        ArrayList<Entry> sortedEntries = uniqueEntries(entries, true);
+        boolean foundDuplicates = sortedEntries.size() < entries.size();
+        Collections.sort(sortedEntries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry entry1, Entry entry2) {
+                return entry1.number < entry2.number ? 1 : entry1.number > entry2.number ? -1 : 0;
+            }
+        });
+        historyStamp = KOReaderLuaReadWrite.getStamp(historyFilePath);
+        historyBase = new HashMap<>(2 * sortedEntries.size());
+        for (Entry entry : sortedEntries)
+            historyBase.put(entry.uniqueFilePath, entry.number);
+        State state = this.state.get();
+        HashMap<String, KOReaderBook> books = new HashMap<>(state.books);
+        ArrayList<KOReaderBook> history = new ArrayList<>(sortedEntries.size());
+        for (Entry entry : sortedEntries)
+            history.add(readBook(books, libraryBook(books, entry.uniqueFilePath), entry.number));
+        publish(state.withBooks(books).withHistory(history)
+                .withFavorites(libraryBooks(books, state.favorites)));
         Log.d(TAG, "--- readBooksFromHistory() successfully. Added "
                 + history.size() + " books.");
-        if (foundDuplicates && writeHistory())
+        if (foundDuplicates && writeHistory(history))
             Log.d(TAG, "--- readBooksFromHistory(): Found duplicates, wrote history file.");
         return true;
     }
 
-    private Boolean writeHistory() {
-        try {
-            historyJson = new JSONObject();
-            for (int key = 0; key < history.size(); key++) {
-                JSONObject keyjson = new JSONObject();
-                keyjson.put("file", history.get(key).getFilePath());
-                keyjson.put("time", history.get(key).getLastRead());
-                historyJson.put(String.valueOf(key + 1), keyjson);
-            }
-        } catch (JSONException e) {
+    /**
+     * Writes the modified history, immediately or after the write delay.
+     *
+     * @param history the history
+     * @return true if successfully written or scheduled for writing, otherwise false
+     */
+    private Boolean commitHistory(List<KOReaderBook> history) {
+        if (writeDelay == 0)
+            return writeHistory(history);
+        historyDirty = true;
+        scheduleWrite();
+        return true;
+    }
+
+    /**
+     * Writes the history, if modified since last writing.
+     *
+     * @return true if successfully or not modified, otherwise false
+     */
+    private Boolean flushHistory() {
+        if (historyDirty && !writeHistory(state.get().history))
             return false;
+        historyDirty = false;
+        return true;
+    }
+
+    /**
+     * Writes the history. If the history file has been modified by others, e.g. by KOReader,
+     * since it was read or written last, the history is merged with the history file first, see
+     * {@link #mergeHistory}.
+     *
+     * @param history the history
+     * @return true if successfully, otherwise false
+     */
+    private Boolean writeHistory(List<KOReaderBook> history) {
+        for (int attempt = 1; ; attempt++) {
+            if (historyStamp == null || historyStamp.matches(historyFilePath)) {
+                KOReaderLuaTable historyTable = new KOReaderLuaTable();
+                for (KOReaderBook book : history) {
+                    KOReaderLuaTable entryTable = new KOReaderLuaTable();
+                    entryTable.put("file", book.getFilePath());
+                    entryTable.put("time", (long) book.getLastRead());
+                    historyTable.add(entryTable);
+                }
+                if (KOReaderLuaReadWrite.writeLuaFile(historyFilePath, historyTable,
+                        historyStamp)) {
+                    historyFileWatch.update();
+                    historyStamp = KOReaderLuaReadWrite.getStamp(historyFilePath);
+                    historyBase = lastReads(history);
+                    Log.d(TAG, "--- writeHistory() successfully. Saved list with "
+                            + history.size() + " books.");
+                    return true;
+                }
+                if (historyStamp == null || historyStamp.matches(historyFilePath))
+                    return false;
+            }
+            if (attempt == KOReaderLuaReadWrite.WRITE_ATTEMPTS) {
+                Log.w(TAG, "--- writeHistory(): History file modified while writing.");
+                return false;
+            }
+            history = mergeHistory(history);
+            if (history == null)
+                return false;
         }
-        if (KOReaderLuaReadWrite.writeLuaFile(historyFilePath, historyJson)) {
-            historyLastModified = new File(historyFilePath).lastModified();
-            Log.d(TAG, "--- writeHistory() successfully. Saved list with "
-                    + history.size() + " books.");
-            return true;
+    }
+
+    /**
+     * Reads the history file modified by others, e.g. by KOReader, and merges it with the given
+     * history, which has been modified since the history file was read or written last. Books
+     * added or read again by others are added, books removed by others are removed (unless read
+     * again since) and of both times of last reading the later one is kept. The merged history is
+     * published.
+     *
+     * @param history the modified history
+     * @return the merged history or null if reading failed
+     */
+    private ArrayList<KOReaderBook> mergeHistory(List<KOReaderBook> history) {
+        historyFileWatch.update();
+        EntryCollector entryCollector = new EntryCollector("time");
+        KOReaderFileStamp stamp = KOReaderFileStamp.MISSING;
+        if (new File(historyFilePath).exists()) {
+            if (!KOReaderLuaReadWrite.readLuaFileEntries(historyFilePath, entryCollector)) {
+                historyFileWatch.invalidate();
+                return null;
+            }
+            stamp = KOReaderLuaReadWrite.getStamp(historyFilePath);
+        }
+        ArrayList<Entry> entries = uniqueEntries(entryCollector.entries, true);
+        HashMap<String, Long> lastReads = new HashMap<>(2 * entries.size());
+        for (Entry entry : entries)
+            lastReads.put(entry.uniqueFilePath, entry.number);
+        State state = this.state.get();
+        HashMap<String, KOReaderBook> books = new HashMap<>(state.books);
+        ArrayList<KOReaderBook> mergedHistory = new ArrayList<>(history.size() + entries.size());
+        HashSet<String> mergedFilePaths = new HashSet<>();
+        for (KOReaderBook book : history) {
+            Long lastRead = lastReads.get(book.getFilePath());
+            Long baseLastRead = historyBase.get(book.getFilePath());
+            // removed by others
+            if (lastRead == null && baseLastRead != null && book.getLastRead() <= baseLastRead)
+                continue;
+            if (lastRead != null && lastRead > book.getLastRead())
+                book = book.withLastRead(lastRead);
+            // the given history may hold copies not in the library yet, e.g. of an editor
+            books.put(book.getFilePath(), book);
+            mergedHistory.add(book);
+            mergedFilePaths.add(book.getFilePath());
+        }
+        for (Entry entry : entries) {
+            Long baseLastRead = historyBase.get(entry.uniqueFilePath);
+            // merged already or removed from the history
+            if (mergedFilePaths.contains(entry.uniqueFilePath)
+                    || (baseLastRead != null && entry.number <= baseLastRead))
+                continue;
+            mergedHistory.add(readBook(books, libraryBook(books, entry.uniqueFilePath),
+                    entry.number));
         }
-        return false;
+        Collections.sort(mergedHistory, new Comparator<KOReaderBook>() {
+            @Override
+            public int compare(KOReaderBook book1, KOReaderBook book2) {
+                return book2.getLastRead().compareTo(book1.getLastRead());
+            }
+        });
+        publish(state.withBooks(books).withHistory(mergedHistory)
+                .withFavorites(libraryBooks(books, state.favorites)));
+        historyStamp = stamp;
+        historyBase = lastReads;
+        Log.d(TAG, "--- mergeHistory() successfully. Merged list with "
+                + mergedHistory.size() + " books.");
+        return mergedHistory;
     }
 
     private Boolean collectionFileModified() {
-        return (new File(collectionFilePath).lastModified() > collectionLastModified);
+        return collectionFileWatch.modified();
     }
 
     private Boolean readFavorites() {
+        if (favoritesDirty && collectionFileModified())
+            flushFavorites();
         if (collectionFileModified()) {
-            collectionJson = KOReaderLuaReadWrite.readLuaFile(collectionFilePath);
-            collectionLastModified = new File(collectionFilePath).lastModified();
+            collectionFileWatch.update();
         } else {
             return false;
         }
-        if (collectionJson == null)
+        EntryCollector entryCollector = new EntryCollector("order");
+        if (!KOReaderLuaReadWrite.readLuaFileEntries(collectionFilePath, entryCollector,
+                "favorites")) {
+            if (Thread.currentThread().isInterrupted())
+                collectionFileWatch.invalidate();
+            else
+                readFailed(false);
             return false;
-        JSONObject favoritesJson = collectionJson.optJSONObject("favorites");
-        if (favoritesJson == null)
+        }
+        ArrayList<Entry> entries = entryCollector.entries;
+        ArrayList<String> filePaths = sortedFavorites(entries);
+        boolean foundDuplicates = filePaths.size() < entries.size();
+        collectionStamp = KOReaderLuaReadWrite.getStamp(collectionFilePath);
+        favoritesBase = filePaths;
+        State state = this.state.get();
+        HashMap<String, KOReaderBook> books = new HashMap<>(state.books);
+        ArrayList<KOReaderBook> favorites = new ArrayList<>(filePaths.size());
+        for (String filePath : filePaths)
+            favorites.add(libraryBook(books, filePath));
+        publish(state.withBooks(books).withFavorites(favorites));
+        Log.d(TAG, "--- readBooksFromFavorites() successfully. Added "
+                + favorites.size() + " books.");
+        if (foundDuplicates && writeFavorites(favorites))
+            Log.d(TAG, "--- readBooksFromFavorites(): Found duplicates, wrote favorites file.");
+        return true;
+    }
+
+    /**
+     * Writes the modified favorites, immediately or after the write delay.
+     *
+     * @param favorites the favorites
+     * @return true if successfully written or scheduled for writing, otherwise false
+     */
+    private Boolean commitFavorites(List<KOReaderBook> favorites) {
+        if (writeDelay == 0)
+            return writeFavorites(favorites);
+        favoritesDirty = true;
+        scheduleWrite();
+        return true;
+    }
+
+    /**
+     * Writes the favorites, if modified since last writing.
+     *
+     * @return true if successfully or not modified, otherwise false
+     */
+    private Boolean flushFavorites() {
+        if (favoritesDirty && !writeFavorites(state.get().favorites))
             return false;
-        boolean foundDuplicates = false;
-        favorites.clear();
-        ArrayList<Integer> favoritesOrder = new ArrayList<>();
-        Iterator keys = favoritesJson.keys();
-        while (keys.hasNext()) {
-            String key = (String) keys.next();
-            JSONObject keyjson;
-            String filePath;
-            Integer order;
-            try {
-                keyjson = favoritesJson.getJSONObject(key);
-                filePath = keyjson.getString("file");
-                order = keyjson.getInt("order");
-            } catch (JSONException e) {
-                e.printStackTrace();
+        favoritesDirty = false;
+        return true;
+    }
+
+    /**
+     * Schedules writing the pending modifications after the write delay, if not scheduled yet.
+     * The writing thread is a daemon thread, which terminates after one second without writing.
+     */
+    private void scheduleWrite() {
+        if (scheduledWrite != null)
+            return;
+        if (writeExecutor == null) {
+            writeExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "KOReaderHistFav-write");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            writeExecutor.setKeepAliveTime(1000, TimeUnit.MILLISECONDS);
+            writeExecutor.allowCoreThreadTimeOut(true);
+        }
+        scheduledWrite = writeExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!flush())
+                    Log.w(TAG, "--- flush(): Could not write history or favorites.");
+            }
+        }, writeDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps the entry with the lowest order per book, then sorts by order (stable for equal
+     * orders) with the index of the entry in the lower bits of a primitive sort key.
+     *
+     * @param entries the entries of the favorites in the order of the collection file
+     * @return the unique file paths of the favorites
+     */
+    private ArrayList<String> sortedFavorites(ArrayList<Entry> entries) {
+        ArrayList<Entry> uniqueEntries = uniqueEntries(entries, false);
+        int favoritesSize = uniqueEntries.size();
+        long[] sortKeys = new long[favoritesSize];
+        for (int i = 0; i < favoritesSize; i++)
+            sortKeys[i] = ((long) (int) uniqueEntries.get(i).number << 32) | i;
+        Arrays.sort(sortKeys);
+        ArrayList<String> filePaths = new ArrayList<>(favoritesSize);
+        for (long sortKey : sortKeys)
+            filePaths.add(uniqueEntries.get((int) sortKey).uniqueFilePath);
+        return filePaths;
+    }
+
+    /**
+     * Writes the favorites. If the collection file has been modified by others, e.g. by
+     * KOReader, since it was read or written last, the favorites are merged with the collection
+     * file first, see {@link #mergeFavorites}.
+     *
+     * @param favorites the favorites
+     * @return true if successfully, otherwise false
+     */
+    private Boolean writeFavorites(List<KOReaderBook> favorites) {
+        for (int attempt = 1; ; attempt++) {
+            if (collectionStamp == null || collectionStamp.matches(collectionFilePath)) {
+                KOReaderLuaTable favoritesTable = new KOReaderLuaTable();
+                for (int i = 0; i < favorites.size(); i++) {
+                    KOReaderLuaTable entryTable = new KOReaderLuaTable();
+                    entryTable.put("file", favorites.get(i).getFilePath());
+                    entryTable.put("order", (long) i + 1);
+                    favoritesTable.add(entryTable);
+                }
+                if (writeFavoritesTable(favoritesTable)) {
+                    collectionFileWatch.update();
+                    collectionStamp = KOReaderLuaReadWrite.getStamp(collectionFilePath);
+                    favoritesBase = filePaths(favorites);
+                    Log.d(TAG, "--- writeFavorites() successfully. Saved list with "
+                            + favorites.size() + " books.");
+                    return true;
+                }
+                if (collectionStamp == null || collectionStamp.matches(collectionFilePath))
+                    return false;
+            }
+            if (attempt == KOReaderLuaReadWrite.WRITE_ATTEMPTS) {
+                Log.w(TAG, "--- writeFavorites(): Collection file modified while writing.");
+                return false;
+            }
+            favorites = mergeFavorites(favorites);
+            if (favorites == null)
+                return false;
+        }
+    }
+
+    /**
+     * Writes the given favorites table to the collection file, if the collection file has not
+     * been modified since it was read or written last. The other collections, which are not read
+     * by {@link #readFavorites}, are kept by replacing only the favorites in the file, see
+     * {@link KOReaderLuaReadWrite#patchLuaFile(String, Object, KOReaderFileStamp, String...)}.
+     * Only if the collection file has no favorites yet, it is read and written completely.
+     *
+     * @param favoritesTable the favorites table
+     * @return true if successfully, otherwise false
+     */
+    private Boolean writeFavoritesTable(KOReaderLuaTable favoritesTable) {
+        KOReaderLuaTable collectionTable = new KOReaderLuaTable();
+        if (new File(collectionFilePath).exists()) {
+            if (KOReaderLuaReadWrite.patchLuaFile(collectionFilePath, favoritesTable,
+                    collectionStamp, "favorites"))
+                return true;
+            if (collectionStamp != null && !collectionStamp.matches(collectionFilePath))
+                return false;
+            collectionTable = KOReaderLuaReadWrite.readLuaFile(collectionFilePath);
+            if (collectionTable == null)
+                return false;
+        }
+        collectionTable.put("favorites", favoritesTable);
+        return KOReaderLuaReadWrite.writeLuaFile(collectionFilePath, collectionTable,
+                collectionStamp);
+    }
+
+    /**
+     * Reads the collection file modified by others, e.g. by KOReader, and merges its favorites
+     * with the given favorites, which have been modified since the collection file was read or
+     * written last. The order of the given favorites is kept, books removed by others are removed
+     * and books added by others are appended. The merged favorites are published.
+     *
+     * @param favorites the modified favorites
+     * @return the merged favorites or null if reading failed
+     */
+    private ArrayList<KOReaderBook> mergeFavorites(List<KOReaderBook> favorites) {
+        collectionFileWatch.update();
+        EntryCollector entryCollector = new EntryCollector("order");
+        KOReaderFileStamp stamp = KOReaderFileStamp.MISSING;
+        if (new File(collectionFilePath).exists()) {
+            if (!KOReaderLuaReadWrite.readLuaFileEntries(collectionFilePath, entryCollector,
+                    "favorites")) {
+                collectionFileWatch.invalidate();
+                return null;
+            }
+            stamp = KOReaderLuaReadWrite.getStamp(collectionFilePath);
+        }
+        ArrayList<String> filePaths = sortedFavorites(entryCollector.entries);
+        HashSet<String> theirFilePaths = new HashSet<>(filePaths);
+        HashSet<String> baseFilePaths = new HashSet<>(favoritesBase);
+        State state = this.state.get();
+        HashMap<String, KOReaderBook> books = new HashMap<>(state.books);
+        ArrayList<KOReaderBook> mergedFavorites = new ArrayList<>(favorites.size()
+                + filePaths.size());
+        HashSet<String> mergedFilePaths = new HashSet<>();
+        for (KOReaderBook book : favorites) {
+            // removed by others
+            if (!theirFilePaths.contains(book.getFilePath())
+                    && baseFilePaths.contains(book.getFilePath()))
                 continue;
+            mergedFavorites.add(book);
+            mergedFilePaths.add(book.getFilePath());
+        }
+        for (String filePath : filePaths) {
+            // merged already or removed from the favorites
+            if (!mergedFilePaths.contains(filePath) && !baseFilePaths.contains(filePath))
+                mergedFavorites.add(libraryBook(books, filePath));
+        }
+        publish(state.withBooks(books).withFavorites(mergedFavorites));
+        collectionStamp = stamp;
+        favoritesBase = filePaths;
+        Log.d(TAG, "--- mergeFavorites() successfully. Merged list with "
+                + mergedFavorites.size() + " books.");
+        return mergedFavorites;
+    }
+
+    /**
+     * An immutable snapshot of library, history and favorites. Modifications are published as new
+     * snapshot, so that readers never observe a partially modified state.
+     */
+    private static final class State implements KOReaderPathTrie.Library {
+        final Map<String, KOReaderBook> books;
+        final List<KOReaderBook> history;
+        final List<KOReaderBook> favorites;
+        // built on first lookup of a membership
+        private volatile KOReaderMembershipIndex index;
+
+        State() {
+            this(Collections.<String, KOReaderBook>emptyMap(),
+                    Collections.<KOReaderBook>emptyList(), Collections.<KOReaderBook>emptyList());
+        }
+
+        private State(Map<String, KOReaderBook> books, List<KOReaderBook> history,
+                      List<KOReaderBook> favorites) {
+            this.books = books;
+            this.history = history;
+            this.favorites = favorites;
+        }
+
+        @Override
+        public Map<String, KOReaderBook> getBooks() {
+            return books;
+        }
+
+        @Override
+        public List<KOReaderBook> getHistory() {
+            return history;
+        }
+
+        @Override
+        public List<KOReaderBook> getFavorites() {
+            return favorites;
+        }
+
+        State withBooks(HashMap<String, KOReaderBook> books) {
+            return new State(Collections.unmodifiableMap(books), history, favorites);
+        }
+
+        State withHistory(ArrayList<KOReaderBook> history) {
+            return new State(books, Collections.unmodifiableList(history), favorites);
+        }
+
+        State withFavorites(ArrayList<KOReaderBook> favorites) {
+            return new State(books, history, Collections.unmodifiableList(favorites));
+        }
+
+        KOReaderMembershipIndex index() {
+            KOReaderMembershipIndex index = this.index;
+            // built at most once per thread, if built concurrently
+            if (index == null) {
+                index = new KOReaderMembershipIndex(books, history, favorites);
+                this.index = index;
             }
+            return index;
+        }
+    }
+
+    /**
+     * An editor collecting modifications of history, favorites and library on copies, which are
+     * written and published at once after the {@link EditAction}, see {@link #edit}. The methods
+     * correspond to the single modifications of {@link KOReaderHistFav}.
+     */
+    public final class Editor {
+        private final HashMap<String, KOReaderBook> books;
+        private final ArrayList<KOReaderBook> history;
+        private final ArrayList<KOReaderBook> favorites;
+        private final ArrayList<KOReaderBook> addedBooks = new ArrayList<>();
+        private final ArrayList<KOReaderBook> removedBooks = new ArrayList<>();
+        private boolean historyModified = false;
+        private boolean favoritesModified = false;
+        private boolean libraryModified = false;
+        private boolean closed = false;
+
+        private Editor(State state) {
+            books = new HashMap<>(state.books);
+            history = new ArrayList<>(state.history);
+            favorites = new ArrayList<>(state.favorites);
+        }
+
+        /**
+         * Add book to favorites (and library). If book already in favorites, move book to first
+         * position.
+         *
+         * @param filePath the book's file path
+         * @return true
+         */
+        public Boolean addBookToFavorites(String filePath) {
+            KOReaderBook book = book(uniqueFilePath(filePath));
+            favorites.remove(book);
+            favorites.add(0, book);
+            favoritesModified = true;
+            return true;
+        }
+
+        /**
+         * Add book to history (and library). If book already in history, move book to first
+         * position. Sets book's last reading time to current time.
+         *
+         * @param filePath the book's file path
+         * @return true
+         */
+        public Boolean addBookToHistory(String filePath) {
+            KOReaderBook book = book(uniqueFilePath(filePath));
+            history.remove(book);
+            book = readBook(books, book, new Date().getTime());
+            int index = favorites.indexOf(book);
+            if (index >= 0)
+                favorites.set(index, book);
+            history.add(0, book);
+            historyModified = true;
+            return true;
+        }
+
+        /**
+         * Add book to library.
+         *
+         * @param filePath the book's file path
+         * @return true if added, false if already in library
+         */
+        public Boolean addBookToLibrary(String filePath) {
             filePath = uniqueFilePath(filePath);
-            KOReaderBook book;
-            if (books.containsKey(filePath)) {
-                book = books.get(filePath);
-                int iBookInFavorites = favorites.indexOf(book);
-                if (iBookInFavorites != -1) {
-                    foundDuplicates = true;
-                    if (order < favoritesOrder.get(iBookInFavorites)) {
-                        favorites.remove(iBookInFavorites);
-                        favoritesOrder.remove(iBookInFavorites);
-                    } else {
-                        continue;
-                    }
-                }
-            } else {
-                book = new KOReaderBook(filePath);
-                books.put(filePath, book);
+            if (books.containsKey(filePath))
+                return false;
+            book(filePath);
+            return true;
+        }
+
+        /**
+         * Moves book in favorites to the given position.
+         *
+         * @param filePath the book's file path
+         * @param position the new position, 0 for first position
+         * @return true if moved, false if not in favorites
+         * @throws IndexOutOfBoundsException if the position is out of range of favorites
+         */
+        public Boolean moveBookInFavorites(String filePath, int position)
+                throws IndexOutOfBoundsException {
+            checkOpen();
+            if (position < 0 || position >= favorites.size())
+                throw new IndexOutOfBoundsException("Position " + position + " out of range of "
+                        + favorites.size() + " favorites");
+            KOReaderBook book = books.get(uniqueFilePath(filePath));
+            if (book == null || !favorites.remove(book))
+                return false;
+            favorites.add(position, book);
+            favoritesModified = true;
+            return true;
+        }
+
+        /**
+         * Remove book from favorites.
+         *
+         * @param filePath the book's file path
+         * @return true if removed, false if not in favorites
+         */
+        public Boolean removeBookFromFavorites(String filePath) {
+            checkOpen();
+            KOReaderBook book = books.get(uniqueFilePath(filePath));
+            if (book == null || !favorites.remove(book))
+                return false;
+            favoritesModified = true;
+            return true;
+        }
+
+        /**
+         * Remove book from history.
+         *
+         * @param filePath the book's file path
+         * @return true if removed, false if not in history
+         */
+        public Boolean removeBookFromHistory(String filePath) {
+            checkOpen();
+            KOReaderBook book = books.get(uniqueFilePath(filePath));
+            if (book == null || !history.remove(book))
+                return false;
+            historyModified = true;
+            return true;
+        }
+
+        /**
+         * Remove book from library (and favorites and history).
+         *
+         * @param filePath the book's file path
+         * @return true if removed, false if not in library
+         */
+        public Boolean removeBookFromLibrary(String filePath) {
+            checkOpen();
+            KOReaderBook book = books.remove(uniqueFilePath(filePath));
+            if (book == null)
+                return false;
+            libraryChanges.add(book.getFilePath());
+            if (history.remove(book))
+                historyModified = true;
+            if (favorites.remove(book))
+                favoritesModified = true;
+            if (!addedBooks.remove(book))
+                removedBooks.add(book);
+            else
+                book.close();
+            libraryModified = true;
+            return true;
+        }
+
+        private void checkOpen() throws IllegalStateException {
+            if (closed)
+                throw new IllegalStateException("Editor used after end of edit action");
+        }
+
+        /**
+         * Returns the book for the given unique file path from the library copy, adding a new
+         * book if not found.
+         */
+        private KOReaderBook book(String filePath) {
+            checkOpen();
+            KOReaderBook book = books.get(filePath);
+            if (book == null) {
+                book = libraryBook(books, filePath);
+                addedBooks.add(book);
+                libraryModified = true;
             }
-            int favoritesSize = favorites.size();
-            if (favoritesSize == 0) {
-                favorites.add(book);
-                favoritesOrder.add(order);
-            } else {
-                for (int i = 0; i < favoritesSize; i++) {
-                    if (order < favoritesOrder.get(i)) {
-                        favorites.add(i, book);
-                        favoritesOrder.add(i, order);
-                        break;
-                    } else if (i == favoritesSize - 1) {
-                        favorites.add(book);
-                        favoritesOrder.add(order);
-                        break;
+            return book;
+        }
+
+        /**
+         * Discards the modifications.
+         */
+        private void abort() {
+            for (KOReaderBook book : addedBooks)
+                book.close();
+        }
+
+        /**
+         * Writes the modified history and favorites and publishes the modifications, if writing
+         * succeeded. Otherwise, the previous history file is restored, if already written.
+         *
+         * @param state the state before the modifications
+         * @return true if successfully, otherwise false
+         */
+        private Boolean commit(State state) {
+            if (!historyModified && !favoritesModified && !libraryModified)
+                return true;
+            if (writeDelay == 0) {
+                boolean historyWritten = historyModified && writeHistory(history);
+                if ((historyModified && !historyWritten)
+                        || (favoritesModified && !writeFavorites(favorites))) {
+                    if (historyWritten && !writeHistory(state.history)) {
+                        // the history file keeps the modifications until written again
+                        Log.w(TAG, "--- edit(): Restoring history file failed, retry on next"
+                                + " writing.");
+                        historyDirty = true;
                     }
+                    // possibly published by merging with modifications by others
+                    publish(state);
+                    // the books added by others while merging are removed again
+                    pathTrie.clear();
+                    historyFileWatch.invalidate();
+                    collectionFileWatch.invalidate();
+                    abort();
+                    return false;
                 }
+            } else {
+                historyDirty |= historyModified;
+                favoritesDirty |= favoritesModified;
+                if (historyModified || favoritesModified)
+                    scheduleWrite();
             }
+            // adopt the history and favorites merged with modifications by others while writing
+            State merged = KOReaderHistFav.this.state.get();
+            ArrayList<KOReaderBook> history = this.history;
+            ArrayList<KOReaderBook> favorites = this.favorites;
+            if (merged.history != state.history)
+                history = new ArrayList<>(merged.history);
+            if (merged.favorites != state.favorites)
+                favorites = new ArrayList<>(merged.favorites);
+            // the merged history holds the books with the later times of last reading
+            for (KOReaderBook book : history)
+                books.put(book.getFilePath(), book);
+            for (KOReaderBook book : favorites)
+                if (!books.containsKey(book.getFilePath()))
+                    books.put(book.getFilePath(), book);
+            favorites = libraryBooks(books, favorites);
+            publish(state.withBooks(books).withHistory(history)
+                    .withFavorites(favorites));
+            for (KOReaderBook book : removedBooks)
+                if (!history.contains(book) && !favorites.contains(book))
+                    book.close();
+            Log.d(TAG, "--- edit() successfully. Library with " + books.size() + " books.");
+            return true;
         }
-        Log.d(TAG, "--- readBooksFromFavorites() successfully. Added "
-                + favorites.size() + " books.");
-        if (foundDuplicates && writeFavorites())
-            Log.d(TAG, "--- readBooksFromFavorites(): Found duplicates, wrote favorites file.");
-        return true;
     }
 
-    private Boolean writeFavorites() {
-        try {
-            JSONObject favoritesJson = new JSONObject();
-            for (int key = 0; key < favorites.size(); key++) {
-                JSONObject keyjson = new JSONObject();
-                keyjson.put("file", favorites.get(key).getFilePath());
-                keyjson.put("order", key + 1);
-                favoritesJson.put(String.valueOf(key + 1), keyjson);
-            }
-            collectionJson.put("favorites", favoritesJson);
-        } catch (JSONException e) {
-            return false;
+    /**
+     * An entry of the history or favorites with the file path as found in the file, the time of
+     * last reading or the order and the unique file path, once determined.
+     */
+    private static class Entry {
+        final String filePath;
+        final long number;
+        String uniqueFilePath;
+
+        Entry(String filePath, long number) {
+            this.filePath = filePath;
+            this.number = number;
+        }
+    }
+
+    /**
+     * An entry handler collecting the history or favorites entries streamed by the lua parser.
+     * Invalid entries are skipped.
+     */
+    private static class EntryCollector implements KOReaderLuaParser.EntryHandler {
+        final ArrayList<Entry> entries = new ArrayList<>();
+        private final String numberKey;
+
+        /**
+         * Constructs a new entry collector.
+         *
+         * @param numberKey the key of the number in the entry tables, i.e. "time" or "order"
+         */
+        EntryCollector(String numberKey) {
+            this.numberKey = numberKey;
         }
-        if (KOReaderLuaReadWrite.writeLuaFile(collectionFilePath, collectionJson)) {
-            collectionLastModified = new File(collectionFilePath).lastModified();
-            Log.d(TAG, "--- writeFavorites() successfully. Saved list with "
-                    + favorites.size() + " books.");
+
+        @Override
+        public boolean onEntry(Object key, Object value) {
+            KOReaderLuaTable entryTable = value instanceof KOReaderLuaTable
+                    ? (KOReaderLuaTable) value : null;
+            if (entryTable == null || entryTable.getString("file") == null
+                    || !entryTable.isNumber(numberKey)) {
+                Log.w(TAG, "--- Skipped invalid entry with key " + key);
+                return true;
+            }
+            entries.add(new Entry(entryTable.getString("file"),
+                    entryTable.getLong(numberKey, 0)));
             return true;
         }
-        return false;
     }
 }
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An asynchronous facade of {@link KOReaderHistFav}, running the file I/O and parsing on an
+ * executor given by the caller and delivering the results through futures and callbacks.<br>
+ * Callbacks are run by the callback executor, e.g. on the UI thread of an Android application with
+ * <code>new Executor() { public void execute(Runnable r) { handler.post(r); } }</code>, or on the
+ * worker thread, if no callback executor is given. Callbacks of cancelled requests are not run.<br>
+ * Concurrent requests loading the history, favorites or library are coalesced into a single load,
+ * which is interrupted once all of its requests have been cancelled. Modifications, e.g.
+ * {@link #addBookToHistoryAsync}, are never interrupted, but not started if cancelled before.
+ */
+public class KOReaderHistFavAsync {
+    private static final String HISTORY_KEY = "history";
+    private static final String FAVORITES_KEY = "favorites";
+    private static final String LIBRARY_KEY = "library";
+
+    private final KOReaderHistFav histFav;
+    private final Executor executor;
+    private final Executor callbackExecutor;
+    // pending or running loads by key, also the lock for all tasks and requests
+    private final HashMap<String, Task<?>> loads = new HashMap<>();
+
+    /**
+     * A callback for the result of an asynchronous request.
+     *
+     * @param <T> the type of the result
+     */
+    public interface Callback<T> {
+        /**
+         * Called with the result of a successful request.
+         *
+         * @param result the result
+         */
+        void onResult(T result);
+
+        /**
+         * Called with the exception thrown by a failed request.
+         *
+         * @param exception the exception
+         */
+        void onError(Exception exception);
+    }
+
+    /**
+     * Constructs a new KOReaderHistFavAsync running the callbacks on the worker threads.
+     *
+     * @param histFav the KOReaderHistFav
+     * @param executor the executor for file I/O and parsing
+     */
+    public KOReaderHistFavAsync(KOReaderHistFav histFav, Executor executor) {
+        this(histFav, executor, null);
+    }
+
+    /**
+     * Constructs a new KOReaderHistFavAsync.
+     *
+     * @param histFav the KOReaderHistFav
+     * @param executor the executor for file I/O and parsing
+     * @param callbackExecutor the executor for the callbacks, null to run them on the worker
+     *                         threads
+     */
+    public KOReaderHistFavAsync(KOReaderHistFav histFav, Executor executor,
+                                Executor callbackExecutor) {
+        this.histFav = histFav;
+        this.executor = executor;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Returns the KOReaderHistFav.
+     *
+     * @return the KOReaderHistFav
+     */
+    public KOReaderHistFav getHistFav() {
+        return histFav;
+    }
+
+    /**
+     * Adds book to favorites asynchronously, see {@link KOReaderHistFav#addBookToFavorites}.
+     *
+     * @param filePath the book's file path
+     * @param callback the callback or null
+     * @return the future of the result
+     */
+    public Future<Boolean> addBookToFavoritesAsync(final String filePath,
+                                                   Callback<Boolean> callback) {
+        return submit(null, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return histFav.addBookToFavorites(filePath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Adds book to history asynchronously, see {@link KOReaderHistFav#addBookToHistory}.
+     *
+     * @param filePath the book's file path
+     * @param callback the callback or null
+     * @return the future of the result
+     */
+    public Future<Boolean> addBookToHistoryAsync(final String filePath,
+                                                 Callback<Boolean> callback) {
+        return submit(null, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return histFav.addBookToHistory(filePath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Adds book to library asynchronously, see {@link KOReaderHistFav#addBookToLibrary}.
+     *
+     * @param filePath the book's file path
+     * @param callback the callback or null
+     * @return the future of the result
+     */
+    public Future<Boolean> addBookToLibraryAsync(final String filePath,
+                                                 Callback<Boolean> callback) {
+        return submit(null, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return histFav.addBookToLibrary(filePath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Modifies history, favorites and library by the given action asynchronously, see
+     * {@link KOReaderHistFav#edit}. The action is run by the executor.
+     *
+     * @param action the action
+     * @param callback the callback or null
+     * @return the future of the result
+     */
+    public Future<Boolean> editAsync(final KOReaderHistFav.EditAction action,
+                                     Callback<Boolean> callback) {
+        return submit(null, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return histFav.edit(action);
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns the book for given file path asynchronously, see {@link KOReaderHistFav#getBook}.
+     *
+     * @param filePath the book's file path
+     * @param callback the callback or null
+     * @return the future of the book or null if book is not in library
+     */
+    public Future<KOReaderBook> getBookAsync(final String filePath,
+                                             Callback<KOReaderBook> callback) {
+        return submit(null, new Callable<KOReaderBook>() {
+            @Override
+            public KOReaderBook call() {
+                return histFav.getBook(filePath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns the memberships of the books in the given directory asynchronously, see
+     * {@link KOReaderHistFav#getDirectoryStatuses}.
+     *
+     * @param directoryPath the directory path
+     * @param callback the callback or null
+     * @return the future of the statuses by file name
+     */
+    public Future<Map<String, KOReaderBookStatus>> getDirectoryStatusesAsync(
+            final String directoryPath, Callback<Map<String, KOReaderBookStatus>> callback) {
+        return submit(null, new Callable<Map<String, KOReaderBookStatus>>() {
+            @Override
+            public Map<String, KOReaderBookStatus> call() {
+                return histFav.getDirectoryStatuses(directoryPath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns the favorites asynchronously, see {@link KOReaderHistFav#getFavorites}.
+     *
+     * @param callback the callback or null
+     * @return the future of the favorites
+     */
+    public Future<List<KOReaderBook>> getFavoritesAsync(Callback<List<KOReaderBook>> callback) {
+        return submit(FAVORITES_KEY, new Callable<List<KOReaderBook>>() {
+            @Override
+            public List<KOReaderBook> call() {
+                return histFav.getFavorites();
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns the history asynchronously, see {@link KOReaderHistFav#getHistory}.
+     *
+     * @param callback the callback or null
+     * @return the future of the history
+     */
+    public Future<List<KOReaderBook>> getHistoryAsync(Callback<List<KOReaderBook>> callback) {
+        return submit(HISTORY_KEY, new Callable<List<KOReaderBook>>() {
+            @Override
+            public List<KOReaderBook> call() {
+                return histFav.getHistory();
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns the library asynchronously, see {@link KOReaderHistFav#getLibrary}.
+     *
+     * @param callback the callback or null
+     * @return the future of the library
+     */
+    public Future<Map<String, KOReaderBook>> getLibraryAsync(
+            Callback<Map<String, KOReaderBook>> callback) {
+        return submit(LIBRARY_KEY, new Callable<Map<String, KOReaderBook>>() {
+            @Override
+            public Map<String, KOReaderBook> call() {
+                return histFav.getLibrary();
+            }
+        }, callback);
+    }
+
+    /**
+     * Removes book from favorites asynchronously, see
+     * {@link KOReaderHistFav#removeBookFromFavorites}.
+     *
+     * @param filePath the book's file path
+     * @param callback the callback or null
+     * @return the future of the result
+     */
+    public Future<Boolean> removeBookFromFavoritesAsync(final String filePath,
+                                                        Callback<Boolean> callback) {
+        return submit(null, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return histFav.removeBookFromFavorites(filePath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Removes book from history asynchronously, see {@link KOReaderHistFav#removeBookFromHistory}.
+     *
+     * @param filePath the book's file path
+     * @param callback the callback or null
+     * @return the future of the result
+     */
+    public Future<Boolean> removeBookFromHistoryAsync(final String filePath,
+                                                      Callback<Boolean> callback) {
+        return submit(null, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return histFav.removeBookFromHistory(filePath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Removes book from library asynchronously, see {@link KOReaderHistFav#removeBookFromLibrary}.
+     *
+     * @param filePath the book's file path
+     * @param callback the callback or null
+     * @return the future of the result
+     */
+    public Future<Boolean> removeBookFromLibraryAsync(final String filePath,
+                                                      Callback<Boolean> callback) {
+        return submit(null, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return histFav.removeBookFromLibrary(filePath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Submits a new request, which joins the pending or running load with the given key, if any.
+     *
+     * @param key the key of the load or null for modifications, which are not coalesced
+     * @param callable the callable
+     * @param callback the callback or null
+     * @param <T> the type of the result
+     * @return the future of the result
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Future<T> submit(String key, Callable<T> callable, Callback<T> callback) {
+        Task<T> task = null;
+        boolean execute = false;
+        Request<T> request;
+        synchronized (loads) {
+            if (key != null)
+                task = (Task<T>) loads.get(key);
+            if (task == null) {
+                task = new Task<>(key, callable);
+                execute = true;
+                if (key != null)
+                    loads.put(key, task);
+            }
+            request = new Request<>(task, callback);
+            task.requests.add(request);
+        }
+        if (execute) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.complete(null, e);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * A load or modification run by the executor for one or more requests.
+     */
+    private class Task<T> implements Runnable {
+        private final String key;
+        private final Callable<T> callable;
+        private final ArrayList<Request<T>> requests = new ArrayList<>();
+        private boolean cancelled = false;
+        private boolean interrupted = false;
+        private Thread runner;
+
+        Task(String key, Callable<T> callable) {
+            this.key = key;
+            this.callable = callable;
+        }
+
+        @Override
+        public void run() {
+            synchronized (loads) {
+                if (cancelled)
+                    return;
+                runner = Thread.currentThread();
+            }
+            T result = null;
+            Exception exception = null;
+            try {
+                result = callable.call();
+            } catch (Exception e) {
+                exception = e;
+            }
+            complete(result, exception);
+        }
+
+        /**
+         * Completes all requests not cancelled with the given result or exception.
+         */
+        void complete(T result, Exception exception) {
+            ArrayList<Request<T>> requests;
+            synchronized (loads) {
+                runner = null;
+                if (key != null && loads.get(key) == this)
+                    loads.remove(key);
+                requests = new ArrayList<>(this.requests);
+                this.requests.clear();
+            }
+            // clear the interruption by cancellation, which is not meant for the executor
+            if (interrupted)
+                Thread.interrupted();
+            for (Request<T> request : requests)
+                request.complete(result, exception);
+        }
+
+        /**
+         * Removes the cancelled request and cancels the task, if it was the last request. The
+         * running task is interrupted, if it is a load and all requests were cancelled with
+         * interruption. To be called with the lock held.
+         */
+        void remove(Request<T> request, boolean mayInterruptIfRunning) {
+            if (!requests.remove(request) || !requests.isEmpty())
+                return;
+            cancelled = true;
+            if (key != null && loads.get(key) == this) {
+                loads.remove(key);
+                if (runner != null && mayInterruptIfRunning) {
+                    interrupted = true;
+                    runner.interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * The future of a single request, completed by its task.
+     */
+    private class Request<T> extends KOReaderSettableFuture<T> {
+        private final Task<T> task;
+        private final Callback<T> callback;
+
+        Request(Task<T> task, Callback<T> callback) {
+            this.task = task;
+            this.callback = callback;
+        }
+
+        void complete(T result, Exception exception) {
+            if (exception == null)
+                set(result);
+            else
+                setException(exception);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // there is no thread running the request itself, but maybe one running its task
+            if (!super.cancel(false))
+                return false;
+            synchronized (loads) {
+                task.remove(this, mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        void done() {
+            if (callback == null || isCancelled())
+                return;
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        callback.onResult(get());
+                    } catch (ExecutionException e) {
+                        callback.onError(e.getCause() instanceof Exception
+                                ? (Exception) e.getCause() : e);
+                    } catch (InterruptedException e) {
+                        callback.onError(e);
+                    }
+                }
+            };
+            if (callbackExecutor == null)
+                runnable.run();
+            else
+                callbackExecutor.execute(runnable);
+        }
+    }
+}
@@ -0,0 +1,749 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * A single pass parser for the subset of lua used by KOReader in its history, settings and sdr
+ * metadata files, i.e. a chunk <code>return {...}</code> with nested tables, strings, numbers and
+ * booleans, optionally preceded by line comments.<br>
+ * The parser reads the UTF-8 encoded bytes from an input stream through one reusable buffer and
+ * builds the {@link KOReaderLuaTable} directly, without creating an intermediate copy of the file
+ * content. Numbers are passed to the table without boxing.<br>
+ * With a {@link Projection} only the given key paths are materialized, all other values are skipped
+ * on the byte level and parsing stops as soon as all key paths have been read.<br>
+ * With {@link #parseEntries} the entries of a table are passed one by one to an
+ * {@link EntryHandler} without building the table.<br>
+ * With {@link #locate} the byte range of a single value is determined, e.g. to replace it in the
+ * file without parsing the other values.
+ */
+class KOReaderLuaParser {
+    private static final int BUFFER_SIZE = 8192;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Object NUMBER = new Object();
+    private static final Object POSITIONAL = new Object();
+
+    private final InputStream inputStream;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private long offset = 0;    // number of bytes consumed before buffer[0]
+    // scratch buffer for decoding strings and numbers
+    private byte[] scratch = new byte[256];
+    private int scratchLength;
+    // the last parsed number, returned as NUMBER by parseValue() to avoid boxing
+    private boolean numberIsFloat;
+    private long longNumber;
+    private double doubleNumber;
+    // the leaves of the projection already read and the number of leaves still to be read
+    private boolean[] projectionLeavesRead;
+    private int projectionLeavesRemaining;
+    // the keyword value of a positional field, already parsed by parseFieldKey()
+    private Object pendingValue;
+    private boolean hasPendingValue = false;
+
+    /**
+     * A set of key paths to be read by the parser, e.g. <code>doc_props.title</code> for the value
+     * of key <code>"title"</code> in the table of key <code>"doc_props"</code>. If a key path ends
+     * at a table, the whole table is read. Integer keys are given by their decimal representation.
+     * Projections are immutable and can be shared between parsers.
+     */
+    static final class Projection {
+        private final HashMap<String, Projection> children = new HashMap<>();
+        private boolean whole = false;
+        private int leafIndex = -1;
+        private int leaves = 0;
+
+        private Projection() {
+        }
+
+        /**
+         * Constructs a new projection for the given key paths.
+         *
+         * @param keyPaths the key paths with keys separated by "."
+         * @return the projection
+         */
+        static Projection of(String... keyPaths) {
+            Projection root = new Projection();
+            for (String keyPath : keyPaths) {
+                Projection projection = root;
+                for (String key : keyPath.split("\\.")) {
+                    Projection child = projection.children.get(key);
+                    if (child == null) {
+                        child = new Projection();
+                        projection.children.put(key, child);
+                    }
+                    projection = child;
+                }
+                projection.whole = true;
+            }
+            root.index(root);
+            return root;
+        }
+
+        private void index(Projection root) {
+            for (Projection child : children.values()) {
+                if (child.whole) {
+                    // the whole value is read, including the key paths below
+                    child.children.clear();
+                    child.leafIndex = root.leaves++;
+                } else {
+                    child.index(root);
+                }
+            }
+        }
+
+        private Projection child(Object key) {
+            return children.get(key instanceof String ? (String) key : String.valueOf(key));
+        }
+
+        private boolean isLeaf() {
+            return leafIndex != -1;
+        }
+    }
+
+    /**
+     * Constructs a new parser reading from the given input stream. The stream is not closed by
+     * the parser.
+     *
+     * @param inputStream the input stream with the lua content
+     */
+    KOReaderLuaParser(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Parses the chunk <code>return {...}</code> and returns the table.
+     *
+     * @return the parsed table
+     * @throws IOException if reading fails or the content is not a valid KOReader lua table
+     */
+    KOReaderLuaTable parse() throws IOException {
+        return parse(null);
+    }
+
+    /**
+     * Parses the chunk <code>return {...}</code> and returns the table with only the values of the
+     * given projection. Parsing stops after all key paths of the projection have been read, the
+     * content following is not validated.
+     *
+     * @param projection the key paths to be read; null to read all
+     * @return the parsed table
+     * @throws IOException if reading fails or the content is not a valid KOReader lua table
+     */
+    KOReaderLuaTable parse(Projection projection) throws IOException {
+        if (projection != null) {
+            projectionLeavesRead = new boolean[projection.leaves];
+            projectionLeavesRemaining = projection.leaves;
+        } else {
+            projectionLeavesRemaining = -1;
+        }
+        skipWhitespaceAndComments();
+        expectKeyword("return");
+        skipWhitespaceAndComments();
+        if (peek() != '{')
+            throw error("Expected table after return");
+        KOReaderLuaTable table = parseTable(projection);
+        if (projectionLeavesRemaining == 0)
+            return table;
+        skipWhitespaceAndComments();
+        if (peek() != -1)
+            throw error("Unexpected content after returned table");
+        return table;
+    }
+
+    /**
+     * Parses the chunk <code>return {...}</code> and passes the entries of the table with the given
+     * key path one by one to the handler, without building the table. Only one entry is held in
+     * memory at a time. Parsing stops after the end of the table with the given key path, the
+     * content following is not validated.
+     *
+     * @param keyPath the keys of the table relative to the returned table, e.g.
+     *                <code>{"favorites"}</code>; empty for the returned table itself
+     * @param handler the handler for the entries
+     * @return true if the table was found, otherwise false
+     * @throws IOException if reading fails or the content is not a valid KOReader lua table
+     */
+    boolean parseEntries(String[] keyPath, EntryHandler handler) throws IOException {
+        projectionLeavesRemaining = -1;
+        skipWhitespaceAndComments();
+        expectKeyword("return");
+        skipWhitespaceAndComments();
+        if (peek() != '{')
+            throw error("Expected table after return");
+        return parseEntries(keyPath, 0, handler);
+    }
+
+    /**
+     * Parses the chunk <code>return {...}</code> up to the value with the given key path and
+     * returns the byte range of the value in the content, without materializing any value. Parsing
+     * stops after the value, the content following is not validated.
+     *
+     * @param keyPath the keys of the value relative to the returned table, e.g.
+     *                <code>{"summary", "status"}</code>
+     * @return the offsets of the first byte of the value and of the byte following the value or
+     *         null if the value was not found
+     * @throws IOException if reading fails or the content is not a valid KOReader lua table
+     */
+    long[] locate(String... keyPath) throws IOException {
+        projectionLeavesRemaining = -1;
+        skipWhitespaceAndComments();
+        expectKeyword("return");
+        skipWhitespaceAndComments();
+        if (peek() != '{')
+            throw error("Expected table after return");
+        return locate(keyPath, 0);
+    }
+
+    /**
+     * A handler for the entries of a table parsed by {@link #parseEntries}.
+     */
+    interface EntryHandler {
+        /**
+         * Handles one entry of the table.
+         *
+         * @param key   the key of the entry, a string or a number
+         * @param value the value of the entry, a string, boolean, number or table
+         * @return true to continue parsing, false to stop
+         */
+        boolean onEntry(Object key, Object value);
+    }
+
+    private boolean parseEntries(String[] keyPath, int depth, EntryHandler handler)
+            throws IOException {
+        expect('{');
+        long arrayIndex = 1;
+        while (true) {
+            skipWhitespaceAndComments();
+            if (peek() == '}') {
+                position++;
+                return depth == keyPath.length;
+            }
+            Object key = parseFieldKey();
+            if (key == POSITIONAL)
+                key = arrayIndex++;
+            if (depth == keyPath.length) {
+                Object value = parseFieldValue(null);
+                if (value == NUMBER)
+                    value = numberIsFloat ? (Object) doubleNumber : (Object) longNumber;
+                if (value != null && !handler.onEntry(key, value))
+                    return true;
+            } else if (keyPath[depth].equals(String.valueOf(key)) && !hasPendingValue
+                    && peek() == '{') {
+                return parseEntries(keyPath, depth + 1, handler);
+            } else {
+                skipFieldValue();
+            }
+            if (!skipFieldSeparator())
+                expectTableEnd();
+        }
+    }
+
+    private long[] locate(String[] keyPath, int depth) throws IOException {
+        expect('{');
+        long arrayIndex = 1;
+        while (true) {
+            skipWhitespaceAndComments();
+            if (peek() == '}') {
+                position++;
+                return null;
+            }
+            Object key = parseFieldKey();
+            if (key == POSITIONAL)
+                key = arrayIndex++;
+            if (!hasPendingValue && keyPath[depth].equals(String.valueOf(key))) {
+                if (depth + 1 < keyPath.length)
+                    return peek() == '{' ? locate(keyPath, depth + 1) : null;
+                long start = offset + position;
+                skipValue();
+                return new long[]{start, offset + position};
+            }
+            skipFieldValue();
+            if (!skipFieldSeparator())
+                expectTableEnd();
+        }
+    }
+
+    /**
+     * Parses a table with only the values of the given projection.
+     *
+     * @param projection the key paths to be read relative to this table; null to read all
+     */
+    private KOReaderLuaTable parseTable(Projection projection) throws IOException {
+        expect('{');
+        KOReaderLuaTable table = new KOReaderLuaTable();
+        long arrayIndex = 1;
+        while (true) {
+            skipWhitespaceAndComments();
+            if (peek() == '}') {
+                position++;
+                return table;
+            }
+            Object key = parseFieldKey();
+            if (key == POSITIONAL)
+                key = arrayIndex++;
+            if (projection == null) {
+                putValue(table, key, parseFieldValue(null));
+            } else {
+                Projection child = projection.child(key);
+                if (child == null) {
+                    skipFieldValue();
+                } else if (child.isLeaf()) {
+                    putValue(table, key, parseFieldValue(null));
+                    if (!projectionLeavesRead[child.leafIndex]) {
+                        projectionLeavesRead[child.leafIndex] = true;
+                        projectionLeavesRemaining--;
+                    }
+                } else {
+                    putValue(table, key, parseFieldValue(child));
+                }
+                if (projectionLeavesRemaining == 0)
+                    return table;
+            }
+            if (!skipFieldSeparator())
+                expectTableEnd();
+        }
+    }
+
+    /**
+     * Parses the key of a table field, i.e. <code>[key] =</code> or <code>name =</code>.
+     *
+     * @return the key or {@link #POSITIONAL} for a positional value without key
+     */
+    private Object parseFieldKey() throws IOException {
+        int c = peek();
+        if (c == '[') {
+            // ["key"] = value or [1] = value
+            position++;
+            skipWhitespaceAndComments();
+            Object key = parseValue(null);
+            if (key == NUMBER)
+                key = numberIsFloat ? (Object) doubleNumber : (Object) longNumber;
+            else if (key == null || key instanceof KOReaderLuaTable)
+                throw error("Unsupported table key");
+            skipWhitespaceAndComments();
+            expect(']');
+            skipWhitespaceAndComments();
+            expect('=');
+            skipWhitespaceAndComments();
+            return key;
+        }
+        if (isNameStart(c)) {
+            // key = value or positional true, false, nil
+            String name = parseName();
+            skipWhitespaceAndComments();
+            if (peek() == '=') {
+                position++;
+                skipWhitespaceAndComments();
+                return name;
+            }
+            pendingValue = keywordValue(name);
+            hasPendingValue = true;
+        }
+        return POSITIONAL;
+    }
+
+    /**
+     * Parses the value of a table field following {@link #parseFieldKey}.
+     */
+    private Object parseFieldValue(Projection projection) throws IOException {
+        if (hasPendingValue) {
+            hasPendingValue = false;
+            return pendingValue;
+        }
+        return parseValue(projection);
+    }
+
+    /**
+     * Skips the value of a table field following {@link #parseFieldKey}.
+     */
+    private void skipFieldValue() throws IOException {
+        if (hasPendingValue)
+            hasPendingValue = false;
+        else
+            skipValue();
+    }
+
+    private void putValue(KOReaderLuaTable table, Object key, Object value) throws IOException {
+        try {
+            if (value == NUMBER) {
+                if (numberIsFloat)
+                    table.put(key, doubleNumber);
+                else
+                    table.put(key, longNumber);
+            } else if (value != null) {
+                table.put(key, value);
+            }
+        } catch (IllegalArgumentException e) {
+            throw error(e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a value. Numbers are returned as {@link #NUMBER} with the parsed number in the
+     * fields {@link #numberIsFloat}, {@link #longNumber} and {@link #doubleNumber}.
+     *
+     * @param projection the key paths to be read, if the value is a table; null to read all
+     */
+    private Object parseValue(Projection projection) throws IOException {
+        int c = peek();
+        if (c == '{')
+            return parseTable(projection);
+        if (c == '"' || c == '\'')
+            return parseString();
+        if (c == '-' || c == '.' || (c >= '0' && c <= '9')) {
+            parseNumber();
+            return NUMBER;
+        }
+        if (isNameStart(c))
+            return keywordValue(parseName());
+        throw error("Unexpected character");
+    }
+
+    /**
+     * Skips a value without materializing it. Strings are only scanned for their end, nested tables
+     * are skipped by counting braces.
+     */
+    private void skipValue() throws IOException {
+        int c = peek();
+        if (c == '"' || c == '\'') {
+            skipString();
+        } else if (c == '{') {
+            position++;
+            int depth = 1;
+            while (depth > 0) {
+                skipWhitespaceAndComments();
+                c = peek();
+                if (c == '"' || c == '\'') {
+                    skipString();
+                } else if (c == '{') {
+                    position++;
+                    depth++;
+                } else if (c == '}') {
+                    position++;
+                    depth--;
+                } else if (c == -1) {
+                    throw error("Unfinished table");
+                } else {
+                    position++;
+                }
+            }
+        } else if (c == '-' || c == '.' || (c >= '0' && c <= '9')) {
+            parseNumber();
+        } else if (isNameStart(c)) {
+            keywordValue(parseName());
+        } else {
+            throw error("Unexpected character");
+        }
+    }
+
+    private void skipString() throws IOException {
+        int quote = read();
+        while (true) {
+            if (position == limit && !fill())
+                throw error("Unfinished string");
+            byte b = buffer[position++];
+            if (b == quote)
+                return;
+            if (b == '\n')
+                throw error("Unfinished string");
+            if (b == '\\' && read() == -1)
+                throw error("Unfinished string");
+        }
+    }
+
+    private Object keywordValue(String name) throws IOException {
+        switch (name) {
+            case "true":
+                return Boolean.TRUE;
+            case "false":
+                return Boolean.FALSE;
+            case "nil":
+                return null;
+            case "nan":
+                numberIsFloat = true;
+                doubleNumber = Double.NaN;
+                return NUMBER;
+            case "inf":
+                numberIsFloat = true;
+                doubleNumber = Double.POSITIVE_INFINITY;
+                return NUMBER;
+            default:
+                throw error("Unexpected name " + name);
+        }
+    }
+
+    private String parseString() throws IOException {
+        int quote = read();
+        scratchLength = 0;
+        while (true) {
+            int c = read();
+            if (c == quote)
+                break;
+            if (c == -1 || c == '\n')
+                throw error("Unfinished string");
+            if (c != '\\') {
+                appendScratch(c);
+                continue;
+            }
+            c = read();
+            switch (c) {
+                case 'n': appendScratch('\n'); break;
+                case 't': appendScratch('\t'); break;
+                case 'r': appendScratch('\r'); break;
+                case 'a': appendScratch(7); break;
+                case 'b': appendScratch('\b'); break;
+                case 'f': appendScratch('\f'); break;
+                case 'v': appendScratch(11); break;
+                case '\\': appendScratch('\\'); break;
+                case '"': appendScratch('"'); break;
+                case '\'': appendScratch('\''); break;
+                case '\r':
+                case '\n':
+                    // escaped line break, used by KOReader e.g. for multiple authors
+                    int next = peek();
+                    if ((next == '\r' || next == '\n') && next != c)
+                        position++;
+                    appendScratch('\n');
+                    break;
+                case 'x':
+                    appendScratch(hexDigit(read()) * 16 + hexDigit(read()));
+                    break;
+                case 'z':
+                    while (isWhitespace(peek()))
+                        position++;
+                    break;
+                default:
+                    if (c >= '0' && c <= '9') {
+                        int value = c - '0';
+                        for (int i = 0; i < 2 && peek() >= '0' && peek() <= '9'; i++)
+                            value = 10 * value + read() - '0';
+                        if (value > 255)
+                            throw error("Decimal escape too large");
+                        appendScratch(value);
+                    } else {
+                        throw error("Invalid escape sequence");
+                    }
+            }
+        }
+        return new String(scratch, 0, scratchLength, UTF_8);
+    }
+
+    private void parseNumber() throws IOException {
+        scratchLength = 0;
+        int c = peek();
+        while (c == '-' || c == '+' || c == '.' || (c >= '0' && c <= '9')
+                || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            appendScratch(c);
+            position++;
+            c = peek();
+        }
+        String number = new String(scratch, 0, scratchLength, UTF_8);
+        numberIsFloat = false;
+        try {
+            if (number.startsWith("0x") || number.startsWith("0X")) {
+                longNumber = Long.parseLong(number.substring(2), 16);
+            } else if (number.startsWith("-0x") || number.startsWith("-0X")) {
+                longNumber = -Long.parseLong(number.substring(3), 16);
+            } else if (number.indexOf('.') == -1 && number.indexOf('e') == -1
+                    && number.indexOf('E') == -1 && !number.startsWith("+")
+                    && !number.endsWith("inf") && !number.endsWith("nan")) {
+                longNumber = Long.parseLong(number);
+            } else {
+                numberIsFloat = true;
+                switch (number) {
+                    case "-nan":
+                        doubleNumber = Double.NaN;
+                        break;
+                    case "-inf":
+                        doubleNumber = Double.NEGATIVE_INFINITY;
+                        break;
+                    default:
+                        doubleNumber = Double.parseDouble(number);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw error("Invalid number " + number);
+        }
+        if (peek() == '/') {
+            // nan, inf and -inf serialized as 0/0, 1/0 and -1/0
+            position++;
+            double dividend = numberIsFloat ? doubleNumber : longNumber;
+            parseNumber();
+            double divisor = numberIsFloat ? doubleNumber : longNumber;
+            numberIsFloat = true;
+            doubleNumber = dividend / divisor;
+        }
+    }
+
+    private String parseName() throws IOException {
+        scratchLength = 0;
+        int c = peek();
+        while (isNameStart(c) || (c >= '0' && c <= '9')) {
+            appendScratch(c);
+            position++;
+            c = peek();
+        }
+        return new String(scratch, 0, scratchLength, UTF_8);
+    }
+
+    private boolean skipFieldSeparator() throws IOException {
+        skipWhitespaceAndComments();
+        int c = peek();
+        if (c == ',' || c == ';') {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expectTableEnd() throws IOException {
+        if (peek() != '}')
+            throw error("Expected field separator or end of table");
+    }
+
+    private void skipWhitespaceAndComments() throws IOException {
+        while (true) {
+            int c = peek();
+            if (isWhitespace(c)) {
+                position++;
+            } else if (c == '-' && peekSecond() == '-') {
+                position += 2;
+                if (peek() == '[' && peekSecond() == '[') {
+                    // block comment --[[ ... ]]
+                    position += 2;
+                    while (true) {
+                        c = read();
+                        if (c == -1)
+                            throw error("Unfinished block comment");
+                        if (c == ']' && peek() == ']') {
+                            position++;
+                            break;
+                        }
+                    }
+                } else {
+                    // line comment
+                    while (c != -1 && c != '\n')
+                        c = read();
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void expectKeyword(String keyword) throws IOException {
+        if (!isNameStart(peek()) || !parseName().equals(keyword))
+            throw error("Expected " + keyword);
+    }
+
+    private void expect(char expected) throws IOException {
+        if (read() != expected)
+            throw error("Expected '" + expected + "'");
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f' || c == 11;
+    }
+
+    private static boolean isNameStart(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private int hexDigit(int c) throws IOException {
+        int digit = Character.digit(c, 16);
+        if (digit == -1)
+            throw error("Invalid hexadecimal escape");
+        return digit;
+    }
+
+    private void appendScratch(int b) {
+        if (scratchLength == scratch.length) {
+            byte[] newScratch = new byte[2 * scratch.length];
+            System.arraycopy(scratch, 0, newScratch, 0, scratchLength);
+            scratch = newScratch;
+        }
+        scratch[scratchLength++] = (byte) b;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c != -1)
+            position++;
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+        return buffer[position] & 0xff;
+    }
+
+    private int peekSecond() throws IOException {
+        if (position + 1 >= limit) {
+            // keep the current byte at the start of the buffer and append
+            if (position == limit && !fill())
+                return -1;
+            if (position + 1 >= limit) {
+                int remaining = limit - position;
+                System.arraycopy(buffer, position, buffer, 0, remaining);
+                offset += position;
+                position = 0;
+                limit = remaining;
+                int n = inputStream.read(buffer, limit, buffer.length - limit);
+                if (n <= 0)
+                    return -1;
+                limit += n;
+            }
+        }
+        return buffer[position + 1] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+        // abort parsing of cancelled loads, see KOReaderHistFavAsync
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("Parsing interrupted");
+        offset += limit;
+        position = 0;
+        limit = 0;
+        int n;
+        do {
+            n = inputStream.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n == -1)
+            return false;
+        limit = n;
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at byte " + (offset + position));
+    }
+}
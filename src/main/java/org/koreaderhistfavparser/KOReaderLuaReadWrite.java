@@ -24,125 +24,445 @@
 
 package org.koreaderhistfavparser;
 
-// import android.util.Log;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
 /**
- * A class with static functions to read and write lua files and convert their data to and from JSON
+ * A class with static functions to read and write lua files from and to {@link KOReaderLuaTable}
  * objects.<br>
- * Arrays found in lua files are converted to strings with ";;;;" delimiter. This is
- * because in lua files arrays with one element are not distinguishable from single elements.
- * JSON Arrays are not supported in the conversion to lua script.
+ * Files are read and written UTF-8 encoded. Strings with line breaks, as used by KOReader e.g. for
+ * multiple authors, are written with escaped line breaks.<br>
+ * Files are written to a temporary file in the same directory, which then replaces the file by
+ * renaming, so that readers, e.g. KOReader, never read partially written files.<br>
+ * The digests of the content of completely read and of written files are kept, so that writing a
+ * table, which serializes to the content of the unmodified file, is skipped. Tables read from
+ * a file are serialized to the same content, as long as they are not modified, because the keys
+ * are written in the order read.<br>
+ * Single values can be replaced by patching, which copies the other content of the file as is.
  */
 class KOReaderLuaReadWrite {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+    // number of attempts to write a file, which is modified by others in between
+    static final int WRITE_ATTEMPTS = 3;
+    private static volatile KOReaderHistFav.Durability durability = KOReaderHistFav.Durability.SYNC;
+    private static final KOReaderContentDigests contentDigests = new KOReaderContentDigests(1024);
+
+    /**
+     * Returns the durability of written files.
+     *
+     * @return the durability
+     */
+    static KOReaderHistFav.Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Sets the durability of written files.
+     *
+     * @param durability the durability
+     */
+    static void setDurability(KOReaderHistFav.Durability durability) {
+        KOReaderLuaReadWrite.durability = durability;
+    }
+
+    /**
+     * Returns the number of written lua files.
+     *
+     * @return the number of written files
+     */
+    static long getWrittenFiles() {
+        return contentDigests.written();
+    }
+
+    /**
+     * Returns the number of skipped writes of lua files, whose content would not have changed.
+     *
+     * @return the number of skipped writes
+     */
+    static long getSkippedWrites() {
+        return contentDigests.skipped();
+    }
+
     /**
-     * Reads the given lua file and converts the content to a json object.<br>
-     * Arrays found in lua files are converted to strings with ";;;;" delimiter.
+     * Reads the given lua file and returns the content as lua table.
      *
      * @param filePath the file path of the lua file
-     * @return the converted json object, if reading and conversion successful, otherwise null
+     * @return the lua table, if reading and parsing successful, otherwise null
      */
-    static JSONObject readLuaFile(String filePath) {
-        BufferedReader reader;
+    static KOReaderLuaTable readLuaFile(String filePath) {
+        return readLuaFile(filePath, null);
+    }
+
+    /**
+     * Reads only the values of the given projection from the given lua file and returns them as lua
+     * table. All other values are skipped without being materialized and reading stops as soon as
+     * all key paths of the projection have been read.
+     *
+     * @param filePath   the file path of the lua file
+     * @param projection the key paths to be read; null to read all
+     * @return the lua table, if reading and parsing successful, otherwise null
+     */
+    static KOReaderLuaTable readLuaFile(String filePath, KOReaderLuaParser.Projection projection) {
+        File file = new File(filePath);
+        long taken = System.currentTimeMillis();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        DigestInputStream inputStream;
         try {
-            reader = new BufferedReader(new FileReader(filePath));
+            inputStream = new DigestInputStream(new FileInputStream(file),
+                    KOReaderFileStamp.newMessageDigest());
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return null;
         }
-        StringBuilder stringBuilder = new StringBuilder();
-        char[] buffer = new char[10];
         try {
-            while (reader.read(buffer) != -1) {
-                stringBuilder.append(new String(buffer));
-                buffer = new char[10];
-            }
-            reader.close();
+            KOReaderLuaTable table = new KOReaderLuaParser(inputStream).parse(projection);
+            recordStamp(filePath, inputStream, lastModified, length, taken, false);
+            return table;
         } catch (IOException e) {
             e.printStackTrace();
             return null;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-        String content = stringBuilder.toString();
-        // Log.d(KOReaderLuaReadWrite.class.getSimpleName(), "READ:\n" + content);
-        content = content
-                // line comments starting with --
-                .replaceAll("^--.*\n", "")
-                // first code line in KOReader lua files is always "return {"
-                .replaceFirst("return ", "")
-                // "[...] = " --> "...: "
-                //.replaceAll("\\[([0-9]+)\\] =", "\"$1\":")
-                .replaceAll("\\[\"?([^\"\\[\\]{}]+)\"?] =", "\"$1\":")
-                // arrays in lua given with "\" and new line --> strings with ";;;;" delimiter
-                .replaceAll("\\\\\n", ";;;;");
+    }
+
+    /**
+     * Reads the entries of the table with the given key path from the given lua file one by one and
+     * passes them to the handler, without building the table in memory.
+     *
+     * @param filePath the file path of the lua file
+     * @param handler  the handler for the entries
+     * @param keyPath  the keys of the table relative to the returned table; none for the returned
+     *                 table itself
+     * @return true if reading and parsing successful and the table was found, otherwise false
+     */
+    static Boolean readLuaFileEntries(String filePath, KOReaderLuaParser.EntryHandler handler,
+                                      String... keyPath) {
+        File file = new File(filePath);
+        long taken = System.currentTimeMillis();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        DigestInputStream inputStream;
         try {
-            return new JSONObject(content);
-        } catch (JSONException e) {
+            inputStream = new DigestInputStream(new FileInputStream(file),
+                    KOReaderFileStamp.newMessageDigest());
+        } catch (FileNotFoundException e) {
             e.printStackTrace();
-            return null;
+            return false;
+        }
+        try {
+            Boolean found = new KOReaderLuaParser(inputStream).parseEntries(keyPath, handler);
+            if (found)
+                recordStamp(filePath, inputStream, lastModified, length, taken, true);
+            return found;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Records the stamp with the digest of the content read from the given stream, if the stream
+     * has been read completely or after reading the remaining content, if requested.
+     */
+    private static void recordStamp(String filePath, DigestInputStream inputStream,
+                                    long lastModified, long length, long taken,
+                                    boolean readRemaining) throws IOException {
+        if (readRemaining) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (inputStream.read(buffer) != -1)
+                continue;
+        } else if (inputStream.read() != -1) {
+            return;
         }
+        contentDigests.put(filePath, new KOReaderFileStamp(lastModified, length,
+                inputStream.getMessageDigest().digest(), taken));
     }
 
     /**
-     * Converts the given JSON object and writes the content to the lua file with given file path.
-     * <br>
-     * Strings with ";;;;" delimiter are interpreted as arrays of strings. JSON Arrays are not
-     * supported.
+     * Returns the stamp of the given lua file, taken when the file was last read completely or
+     * written.
      *
-     * @param filePath   the file path of the lua file
-     * @param jsonObject the json object to be converted
-     * @return true if conversion and writing successful, otherwise false
+     * @param filePath the file path of the lua file
+     * @return the stamp or null if not known
+     */
+    static KOReaderFileStamp getStamp(String filePath) {
+        return contentDigests.get(filePath);
+    }
+
+    /**
+     * Converts the given lua table and writes the content UTF-8 encoded to the lua file with given
+     * file path. Writing is skipped, if the file has the same content already.
+     *
+     * @param filePath the file path of the lua file
+     * @param table    the lua table to be converted
+     * @return true if conversion and writing successful or skipped, otherwise false
+     */
+    static Boolean writeLuaFile(String filePath, KOReaderLuaTable table) {
+        return writeLuaFile(filePath, table, null);
+    }
+
+    /**
+     * Converts the given lua table and writes the content UTF-8 encoded to the lua file with given
+     * file path, if the file matches the given stamp, i.e. has not been modified by others since
+     * the table was read. Writing is skipped, if the file has the same content already.
+     *
+     * @param filePath the file path of the lua file
+     * @param table    the lua table to be converted
+     * @param expected the stamp of the file, from which the table was read, or null to write
+     *                 regardless of modifications by others
+     * @return true if conversion and writing successful or skipped, false if writing failed or
+     *         the file does not match the stamp
      */
-    static Boolean writeLuaFile(String filePath, JSONObject jsonObject) {
-        String content;
+    static Boolean writeLuaFile(String filePath, KOReaderLuaTable table,
+                                KOReaderFileStamp expected) {
+        ByteArrayOutputStream contentStream = new ByteArrayOutputStream(BUFFER_SIZE);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(contentStream, UTF_8),
+                BUFFER_SIZE);
         try {
-            content = jsonObject.toString(4);
-        } catch (JSONException e) {
+            new KOReaderLuaSerializer(writer).serialize(table);
+            writer.flush();
+        } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
-        if (content.startsWith("{\""))
-            // nice formatting with only "{" in the first line and "}" in the last line
-            content = content.replaceFirst("^\\{", "{\n")
-                    .replaceAll("\n", "\n    ")
-                    .replaceAll("}}$", "}\n}");
-        // first code line in KOReader lua files is always "return {"
-        content = "return " + content
-                // '"1": ' --> '[1] = '
-                .replaceAll("\"([0-9]+)\":", "[$1] =")
-                // '"xyz": ' --> '["xyz"] = '
-                .replaceAll("\"([a-zA-Z_0-9]+)\":", "[\"$1\"] =")
-                // strings with ";;;;" delimiter --> arrays in lua given with "\" and new line
-                .replaceAll(";;;;", "\\\\\n")
-                // nice formatting without one liners like '["a"] = {["b"] = "c"}'
-                .replaceAll("( *)(.*)\\{(.+)\\}", "$1$2{\n$1    $3\n$1}")
-                // paths get messed up with some implementations of JSON
-                .replaceAll("\\\\/", "/")
-                + "\n";
-        // Log.d(KOReaderLuaReadWrite.class.getSimpleName(), "WRITE:\n" + content);
-        FileOutputStream fos;
+        byte[] content = contentStream.toByteArray();
+        byte[] digest = KOReaderFileStamp.digest(content);
+        if (contentDigests.unchanged(filePath, digest))
+            return true;
+
+        File file = new File(filePath);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        File tempFile;
+        FileOutputStream outputStream;
         try {
-            File parent = new File(filePath).getParentFile();
-            if (parent != null)
-                parent.mkdirs();
-            fos = new FileOutputStream(filePath);
-            fos.write(content.getBytes());
-            fos.close();
-        } catch (FileNotFoundException e) {
+            tempFile = File.createTempFile("." + file.getName() + ".", ".tmp", parent);
+            outputStream = new FileOutputStream(tempFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        Boolean success = false;
+        try {
+            outputStream.write(content);
+            if (durability == KOReaderHistFav.Durability.SYNC)
+                outputStream.getFD().sync();
+            success = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            success = false;
+        }
+        if (success && expected != null && !expected.matches(filePath)) {
+            tempFile.delete();
+            return false;
+        }
+        // the modification time is kept by renaming
+        long lastModified = tempFile.lastModified();
+        if (success && replaceFile(tempFile, file)) {
+            contentDigests.put(filePath, new KOReaderFileStamp(lastModified, content.length,
+                    digest, System.currentTimeMillis()));
+            contentDigests.countWrite();
+            return true;
+        }
+        tempFile.delete();
+        contentDigests.invalidate(filePath);
+        return false;
+    }
+
+    /**
+     * Replaces the value with the given key path in the given lua file by the given value, without
+     * parsing and converting the other content of the file, which is copied byte by byte. Like
+     * {@link #writeLuaFile}, the patched content is written to a temporary file first, which only
+     * replaces the file, if the file has not been modified by others since locating the value.
+     * Patching is skipped, if the file has the value already.
+     *
+     * @param filePath the file path of the lua file
+     * @param value    the new value, a string, number or boolean
+     * @param keyPath  the keys of the value relative to the returned table
+     * @return true if patching successful or skipped, false if the file has no value other than a
+     *         table for the key path, has been modified while patching or patching failed
+     */
+    static Boolean patchLuaFile(String filePath, Object value, String... keyPath) {
+        if (value instanceof KOReaderLuaTable)
+            return false;
+        return patchLuaFile(filePath, value, null, keyPath);
+    }
+
+    /**
+     * Replaces the value with the given key path in the given lua file by the given value like
+     * {@link #patchLuaFile(String, Object, String...)}, if the file matches the given stamp, i.e.
+     * has not been modified by others since it was read. A table replaces a table only and is
+     * written with the indentation of the serialized file, so that e.g. one list of a file with
+     * several lists is written without parsing the others.
+     *
+     * @param filePath the file path of the lua file
+     * @param value    the new value, a string, number, boolean or table
+     * @param expected the stamp of the file, from which the value was read, or null to patch
+     *                 regardless of modifications by others
+     * @param keyPath  the keys of the value relative to the returned table
+     * @return true if patching successful or skipped, false if the file has no value of the same
+     *         kind (table or not) for the key path, does not match the stamp, has been modified
+     *         while patching or patching failed
+     */
+    static Boolean patchLuaFile(String filePath, Object value, KOReaderFileStamp expected,
+                                String... keyPath) {
+        if (keyPath.length == 0 || value == null)
+            return false;
+        if (expected != null && !expected.matches(filePath))
+            return false;
+        ByteArrayOutputStream valueStream = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(valueStream, UTF_8);
+        try {
+            new KOReaderLuaSerializer(writer).serializeValue(value, keyPath.length);
+            writer.flush();
+        } catch (IOException e) {
             e.printStackTrace();
             return false;
+        }
+        byte[] replacement = valueStream.toByteArray();
+
+        File file = new File(filePath);
+        long taken = System.currentTimeMillis();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        long[] range;
+        RandomAccessFile source;
+        try {
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                range = new KOReaderLuaParser(inputStream).locate(keyPath);
+            } finally {
+                inputStream.close();
+            }
+            if (range == null)
+                return false;
+            source = new RandomAccessFile(file, "r");
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
-        return true;
+        File tempFile = null;
+        Boolean success = false;
+        try {
+            byte[] current = new byte[(int) (range[1] - range[0])];
+            source.seek(range[0]);
+            source.readFully(current);
+            // tables are only replaced by tables and values by values
+            if ((current[0] == '{') != (value instanceof KOReaderLuaTable))
+                return false;
+            if (Arrays.equals(current, replacement)) {
+                contentDigests.countSkip();
+                return true;
+            }
+            tempFile = File.createTempFile("." + file.getName() + ".", ".tmp",
+                    file.getAbsoluteFile().getParentFile());
+            FileOutputStream fileStream = new FileOutputStream(tempFile);
+            DigestOutputStream outputStream = new DigestOutputStream(fileStream,
+                    KOReaderFileStamp.newMessageDigest());
+            // digest of the content copied from, to detect modifications since locating
+            MessageDigest sourceDigest = KOReaderFileStamp.newMessageDigest();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                copy(source, 0, range[0], outputStream, sourceDigest, buffer);
+                outputStream.write(replacement);
+                sourceDigest.update(current);
+                copy(source, range[1], length, outputStream, sourceDigest, buffer);
+                outputStream.flush();
+                if (durability == KOReaderHistFav.Durability.SYNC)
+                    fileStream.getFD().sync();
+            } finally {
+                outputStream.close();
+            }
+            if (new KOReaderFileStamp(lastModified, length, sourceDigest.digest(), taken)
+                    .matches(filePath)) {
+                long tempLastModified = tempFile.lastModified();
+                long tempLength = tempFile.length();
+                success = replaceFile(tempFile, file);
+                if (success) {
+                    contentDigests.put(filePath, new KOReaderFileStamp(tempLastModified,
+                            tempLength, outputStream.getMessageDigest().digest(),
+                            System.currentTimeMillis()));
+                    contentDigests.countWrite();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (!success && tempFile != null)
+            tempFile.delete();
+        return success;
+    }
+
+    private static void copy(RandomAccessFile source, long start, long end,
+                             OutputStream outputStream, MessageDigest sourceDigest,
+                             byte[] buffer) throws IOException {
+        source.seek(start);
+        long remaining = end - start;
+        while (remaining > 0) {
+            int n = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n == -1)
+                throw new IOException("Unexpected end of file");
+            outputStream.write(buffer, 0, n);
+            sourceDigest.update(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Replaces the given file by the given temporary file, atomically where supported by renaming,
+     * i.e. on Android and other POSIX systems. Deletes the temporary file, if replacing fails.
+     *
+     * @param tempFile the temporary file
+     * @param file the file to be replaced
+     * @return true if replaced, otherwise false
+     */
+    static Boolean replaceFile(File tempFile, File file) {
+        if (tempFile.renameTo(file))
+            return true;
+        // renaming does not replace existing files on all platforms
+        if (file.delete() && tempFile.renameTo(file))
+            return true;
+        tempFile.delete();
+        return false;
     }
 }
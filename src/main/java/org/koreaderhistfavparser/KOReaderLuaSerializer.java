@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A serializer writing a {@link KOReaderLuaTable} in one pass as lua chunk
+ * <code>return {...}</code> in the format of KOReader lua files, i.e. one key per line with
+ * indentation by four spaces, keys in brackets (<code>[1] = </code>, <code>["key"] = </code>) and
+ * strings with line breaks written with escaped line breaks.<br>
+ * The array part is written first, followed by the hash part in insertion order.
+ */
+class KOReaderLuaSerializer {
+    private static final String INDENTATION = "    ";
+
+    private final Writer writer;
+
+    /**
+     * Constructs a new serializer writing to the given writer. The writer is neither flushed nor
+     * closed by the serializer.
+     *
+     * @param writer the writer
+     */
+    KOReaderLuaSerializer(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Writes the lua chunk <code>return {...}</code> for the given table, followed by a line break.
+     *
+     * @param table the lua table
+     * @throws IOException if writing fails or the table contains numbers which are not finite
+     */
+    void serialize(KOReaderLuaTable table) throws IOException {
+        writer.write("return ");
+        writeTable(table, 0);
+        writer.write('\n');
+    }
+
+    /**
+     * Writes the given value as lua value, e.g. to replace a value in a lua file. Tables are
+     * indented for the given depth, i.e. the number of keys of the value relative to the returned
+     * table.
+     *
+     * @param value the value, a string, number, boolean or table
+     * @param depth the depth of the value
+     * @throws IOException if writing fails or the value contains numbers which are not finite
+     */
+    void serializeValue(Object value, int depth) throws IOException {
+        writeValue(value, depth);
+    }
+
+    private void writeTable(KOReaderLuaTable table, int depth) throws IOException {
+        int arraySize = table.arraySize();
+        int hashSize = table.hashSize();
+        boolean empty = true;
+        writer.write('{');
+        for (int i = 1; i <= arraySize; i++) {
+            Object value = table.get(i);
+            if (value == null)
+                continue;
+            empty = writeSeparator(empty, depth + 1);
+            writer.write('[');
+            writer.write(String.valueOf(i));
+            writer.write("] = ");
+            writeValue(value, depth + 1);
+        }
+        for (int i = 0; i < hashSize; i++) {
+            empty = writeSeparator(empty, depth + 1);
+            writer.write('[');
+            writeKey(table.hashKey(i));
+            writer.write("] = ");
+            writeValue(table.hashValue(i), depth + 1);
+        }
+        if (!empty) {
+            writer.write('\n');
+            writeIndentation(depth);
+        }
+        writer.write('}');
+    }
+
+    /**
+     * Writes the separator before a table entry and the indentation.
+     *
+     * @return false, i.e. the table is not empty anymore
+     */
+    private boolean writeSeparator(boolean first, int depth) throws IOException {
+        if (!first)
+            writer.write(',');
+        writer.write('\n');
+        writeIndentation(depth);
+        return false;
+    }
+
+    private void writeIndentation(int depth) throws IOException {
+        for (int i = 0; i < depth; i++)
+            writer.write(INDENTATION);
+    }
+
+    private void writeKey(Object key) throws IOException {
+        if (key instanceof String)
+            writeString((String) key);
+        else
+            writeValue(key, 0);
+    }
+
+    private void writeValue(Object value, int depth) throws IOException {
+        if (value instanceof KOReaderLuaTable) {
+            writeTable((KOReaderLuaTable) value, depth);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            if (Double.isNaN(d) || Double.isInfinite(d))
+                throw new IOException("Number " + d + " not supported");
+            String number = String.valueOf(d);
+            if (number.endsWith(".0"))
+                number = number.substring(0, number.length() - 2);
+            writer.write(number);
+        } else {
+            // integers and booleans
+            writer.write(String.valueOf(value));
+        }
+    }
+
+    private void writeString(String string) throws IOException {
+        writer.write('"');
+        int length = string.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            String escaped;
+            switch (c) {
+                case '"': escaped = "\\\""; break;
+                case '\\': escaped = "\\\\"; break;
+                case '\n': escaped = "\\\n"; break;
+                case '\r': escaped = "\\r"; break;
+                case '\t': escaped = "\\t"; break;
+                case '\b': escaped = "\\b"; break;
+                case '\f': escaped = "\\f"; break;
+                default:
+                    if (c >= 0x20 && c != 0x7f)
+                        continue;
+                    // other control characters as decimal escape with three digits
+                    escaped = "\\" + (c < 10 ? "00" : c < 100 ? "0" : "") + (int) c;
+            }
+            writer.write(string, start, i - start);
+            writer.write(escaped);
+            start = i + 1;
+        }
+        writer.write(string, start, length - start);
+        writer.write('"');
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.util.HashMap;
+
+/**
+ * A lua table as found in KOReader lua files.<br>
+ * Values with the integer keys 1..n are kept in a dense array part, all other keys (strings and
+ * other numbers) in an insertion ordered hash part. Values are strings, booleans, tables or
+ * numbers. Numbers are stored as primitive longs (lua integers) or doubles (lua floats) and only
+ * boxed when requested by {@link #get(Object)}.
+ */
+class KOReaderLuaTable {
+    // markers in the value arrays for numbers stored in the parallel primitive arrays
+    private static final Object INTEGER = new Object();
+    private static final Object FLOAT = new Object();
+    // the hash part is indexed by a map only if it grows larger than this
+    private static final int HASH_INDEX_THRESHOLD = 8;
+
+    private Object[] arrayValues = new Object[0];
+    private long[] arrayNumbers = new long[0];
+    private int arraySize = 0;
+    private Object[] hashKeys = new Object[0];
+    private Object[] hashValues = new Object[0];
+    private long[] hashNumbers = new long[0];
+    private int hashSize = 0;
+    private HashMap<Object, Integer> hashIndex;
+
+    /**
+     * Returns the number of values in the array part, i.e. the largest n with non nil values for
+     * all keys 1..n when the table was built.
+     *
+     * @return the size of the array part
+     */
+    int arraySize() {
+        return arraySize;
+    }
+
+    /**
+     * Returns the number of keys in the hash part.
+     *
+     * @return the size of the hash part
+     */
+    int hashSize() {
+        return hashSize;
+    }
+
+    /**
+     * Returns the key at the given position of the hash part.
+     *
+     * @param position the position in range [0, hashSize())
+     * @return the key, a string or a number
+     */
+    Object hashKey(int position) {
+        return hashKeys[position];
+    }
+
+    /**
+     * Returns the value at the given position of the hash part.
+     *
+     * @param position the position in range [0, hashSize())
+     * @return the value, numbers boxed
+     */
+    Object hashValue(int position) {
+        return box(hashValues[position], hashNumbers[position]);
+    }
+
+    /**
+     * Returns the value for the given key.
+     *
+     * @param key the key, a string or a number
+     * @return the value, numbers boxed; null if not set
+     */
+    Object get(Object key) {
+        int index = arrayIndex(key);
+        if (index != -1)
+            return box(arrayValues[index], arrayNumbers[index]);
+        int position = hashPosition(key);
+        if (position == -1)
+            return null;
+        return box(hashValues[position], hashNumbers[position]);
+    }
+
+    /**
+     * Returns the value for the given index of the array part.
+     *
+     * @param index the index in range [1, arraySize()]
+     * @return the value, numbers boxed; null if not set
+     */
+    Object get(int index) {
+        if (index < 1 || index > arraySize)
+            return get((Object) (long) index);
+        return box(arrayValues[index - 1], arrayNumbers[index - 1]);
+    }
+
+    /**
+     * Returns the table for the given key.
+     *
+     * @param key the key
+     * @return the table; null if not set or not a table
+     */
+    KOReaderLuaTable getTable(Object key) {
+        Object value = get(key);
+        return value instanceof KOReaderLuaTable ? (KOReaderLuaTable) value : null;
+    }
+
+    /**
+     * Returns the table for the given index.
+     *
+     * @param index the index
+     * @return the table; null if not set or not a table
+     */
+    KOReaderLuaTable getTable(int index) {
+        Object value = get(index);
+        return value instanceof KOReaderLuaTable ? (KOReaderLuaTable) value : null;
+    }
+
+    /**
+     * Returns the string for the given key.
+     *
+     * @param key the key
+     * @return the string; null if not set or not a string
+     */
+    String getString(Object key) {
+        Object value = get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Returns true if the value for the given key is a number.
+     *
+     * @param key the key
+     * @return true if the value is a number, otherwise false
+     */
+    boolean isNumber(Object key) {
+        Object marker = marker(key);
+        return marker == INTEGER || marker == FLOAT;
+    }
+
+    /**
+     * Returns the number for the given key as long, without boxing.
+     *
+     * @param key          the key
+     * @param defaultValue the value returned if not set or not a number
+     * @return the number, floats rounded towards zero
+     */
+    long getLong(Object key, long defaultValue) {
+        int index = arrayIndex(key);
+        Object marker;
+        long number;
+        if (index != -1) {
+            marker = arrayValues[index];
+            number = arrayNumbers[index];
+        } else {
+            int position = hashPosition(key);
+            if (position == -1)
+                return defaultValue;
+            marker = hashValues[position];
+            number = hashNumbers[position];
+        }
+        if (marker == INTEGER)
+            return number;
+        if (marker == FLOAT)
+            return (long) Double.longBitsToDouble(number);
+        return defaultValue;
+    }
+
+    /**
+     * Returns the number for the given key as double, without boxing.
+     *
+     * @param key          the key
+     * @param defaultValue the value returned if not set or not a number
+     * @return the number
+     */
+    double getDouble(Object key, double defaultValue) {
+        int index = arrayIndex(key);
+        Object marker;
+        long number;
+        if (index != -1) {
+            marker = arrayValues[index];
+            number = arrayNumbers[index];
+        } else {
+            int position = hashPosition(key);
+            if (position == -1)
+                return defaultValue;
+            marker = hashValues[position];
+            number = hashNumbers[position];
+        }
+        if (marker == INTEGER)
+            return number;
+        if (marker == FLOAT)
+            return Double.longBitsToDouble(number);
+        return defaultValue;
+    }
+
+    /**
+     * Sets the value for the given key. Numbers given as {@link Long}, {@link Integer} or
+     * {@link Double} are unboxed. A null value removes the key.
+     *
+     * @param key   the key, a string or a number
+     * @param value the value, a string, boolean, number or table
+     * @throws IllegalArgumentException if key or value are of unsupported type
+     */
+    void put(Object key, Object value) throws IllegalArgumentException {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte)
+            set(key, INTEGER, ((Number) value).longValue());
+        else if (value instanceof Double || value instanceof Float)
+            set(key, FLOAT, Double.doubleToRawLongBits(((Number) value).doubleValue()));
+        else if (value == null || value instanceof String || value instanceof Boolean
+                || value instanceof KOReaderLuaTable)
+            set(key, value, 0);
+        else
+            throw new IllegalArgumentException("Unsupported lua value " + value);
+    }
+
+    /**
+     * Sets the integer number for the given key.
+     *
+     * @param key   the key, a string or a number
+     * @param value the number
+     */
+    void put(Object key, long value) {
+        set(key, INTEGER, value);
+    }
+
+    /**
+     * Sets the float number for the given key.
+     *
+     * @param key   the key, a string or a number
+     * @param value the number
+     */
+    void put(Object key, double value) {
+        set(key, FLOAT, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Appends the value to the array part.
+     *
+     * @param value the value, a string, boolean, number or table
+     */
+    void add(Object value) {
+        put((long) arraySize + 1, value);
+    }
+
+    /**
+     * Removes the value for the given key.
+     *
+     * @param key the key
+     */
+    void remove(Object key) {
+        set(key, null, 0);
+    }
+
+    private Object marker(Object key) {
+        int index = arrayIndex(key);
+        if (index != -1)
+            return arrayValues[index];
+        int position = hashPosition(key);
+        return position == -1 ? null : hashValues[position];
+    }
+
+    private static Object box(Object value, long number) {
+        if (value == INTEGER)
+            return number;
+        if (value == FLOAT)
+            return Double.longBitsToDouble(number);
+        return value;
+    }
+
+    /**
+     * Normalizes the key, i.e. integers to {@link Long} and floats with integer value to
+     * {@link Long}.
+     */
+    private static Object normalizeKey(Object key) throws IllegalArgumentException {
+        if (key instanceof String || key instanceof Boolean || key instanceof Long)
+            return key;
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte)
+            return ((Number) key).longValue();
+        if (key instanceof Double || key instanceof Float) {
+            double d = ((Number) key).doubleValue();
+            if (d == Math.rint(d) && !Double.isInfinite(d))
+                return (long) d;
+            if (Double.isNaN(d))
+                throw new IllegalArgumentException("Table index is NaN");
+            return d;
+        }
+        throw new IllegalArgumentException("Unsupported lua key " + key);
+    }
+
+    /**
+     * Returns the index in the array part for the given key or -1.
+     */
+    private int arrayIndex(Object key) {
+        long index;
+        if (key instanceof Long || key instanceof Integer)
+            index = ((Number) key).longValue();
+        else if (key instanceof Double && ((Double) key) == Math.rint((Double) key))
+            index = ((Double) key).longValue();
+        else
+            return -1;
+        if (index < 1 || index > arraySize)
+            return -1;
+        return (int) index - 1;
+    }
+
+    /**
+     * Returns the position in the hash part for the given key or -1.
+     */
+    private int hashPosition(Object key) {
+        if (hashSize == 0)
+            return -1;
+        key = normalizeKey(key);
+        if (hashIndex != null) {
+            Integer position = hashIndex.get(key);
+            return position == null ? -1 : position;
+        }
+        for (int i = 0; i < hashSize; i++)
+            if (hashKeys[i].equals(key))
+                return i;
+        return -1;
+    }
+
+    private void set(Object key, Object value, long number) {
+        key = normalizeKey(key);
+        int index = arrayIndex(key);
+        if (index != -1) {
+            if (value == null && index == arraySize - 1) {
+                arrayValues[--arraySize] = null;
+                // shrink over trailing holes
+                while (arraySize > 0 && arrayValues[arraySize - 1] == null)
+                    arraySize--;
+            } else {
+                arrayValues[index] = value;
+                arrayNumbers[index] = number;
+            }
+            return;
+        }
+        if (key instanceof Long && (Long) key == arraySize + 1) {
+            if (value == null)
+                return;
+            appendArray(value, number);
+            removeHash(key);
+            // move following integer keys from the hash part into the array part
+            Object nextKey = (long) arraySize + 1;
+            int position;
+            while ((position = hashPosition(nextKey)) != -1) {
+                appendArray(hashValues[position], hashNumbers[position]);
+                removeHash(nextKey);
+                nextKey = (long) arraySize + 1;
+            }
+            return;
+        }
+        int position = hashPosition(key);
+        if (value == null) {
+            if (position != -1)
+                removeHash(key);
+        } else if (position != -1) {
+            hashValues[position] = value;
+            hashNumbers[position] = number;
+        } else {
+            appendHash(key, value, number);
+        }
+    }
+
+    private void appendArray(Object value, long number) {
+        if (arraySize == arrayValues.length) {
+            int capacity = Math.max(4, 2 * arraySize);
+            Object[] values = new Object[capacity];
+            long[] numbers = new long[capacity];
+            System.arraycopy(arrayValues, 0, values, 0, arraySize);
+            System.arraycopy(arrayNumbers, 0, numbers, 0, arraySize);
+            arrayValues = values;
+            arrayNumbers = numbers;
+        }
+        arrayValues[arraySize] = value;
+        arrayNumbers[arraySize] = number;
+        arraySize++;
+    }
+
+    private void appendHash(Object key, Object value, long number) {
+        if (hashSize == hashKeys.length) {
+            int capacity = Math.max(4, 2 * hashSize);
+            Object[] keys = new Object[capacity];
+            Object[] values = new Object[capacity];
+            long[] numbers = new long[capacity];
+            System.arraycopy(hashKeys, 0, keys, 0, hashSize);
+            System.arraycopy(hashValues, 0, values, 0, hashSize);
+            System.arraycopy(hashNumbers, 0, numbers, 0, hashSize);
+            hashKeys = keys;
+            hashValues = values;
+            hashNumbers = numbers;
+        }
+        hashKeys[hashSize] = key;
+        hashValues[hashSize] = value;
+        hashNumbers[hashSize] = number;
+        if (hashIndex != null) {
+            hashIndex.put(key, hashSize);
+        } else if (hashSize + 1 > HASH_INDEX_THRESHOLD) {
+            hashIndex = new HashMap<>();
+            for (int i = 0; i <= hashSize; i++)
+                hashIndex.put(hashKeys[i], i);
+        }
+        hashSize++;
+    }
+
+    private void removeHash(Object key) {
+        int position = hashPosition(key);
+        if (position == -1)
+            return;
+        int moved = hashSize - position - 1;
+        System.arraycopy(hashKeys, position + 1, hashKeys, position, moved);
+        System.arraycopy(hashValues, position + 1, hashValues, position, moved);
+        System.arraycopy(hashNumbers, position + 1, hashNumbers, position, moved);
+        hashSize--;
+        hashKeys[hashSize] = null;
+        hashValues[hashSize] = null;
+        if (hashIndex != null) {
+            hashIndex.remove(key);
+            for (int i = position; i < hashSize; i++)
+                hashIndex.put(hashKeys[i], i);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the memberships of all books of the library in history and favorites by unique
+ * file path and by directory, so that file browser listings are decorated with one lookup per
+ * file, see {@link KOReaderBookStatus}.<br>
+ * The index is immutable and built for one snapshot of library, history and favorites, so that
+ * it is replaced, whenever they are modified. File paths other than unique file paths are looked
+ * up by their unique file path once and remembered then. The index is thread-safe.
+ */
+final class KOReaderMembershipIndex {
+    private final HashMap<String, KOReaderBookStatus> statuses;
+    // statuses by unique directory path and file name
+    private final HashMap<String, Map<String, KOReaderBookStatus>> directories = new HashMap<>();
+    // statuses of books looked up by other than their unique file paths
+    private final ConcurrentHashMap<String, KOReaderBookStatus> aliases =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new index.
+     *
+     * @param books     the library
+     * @param history   the history
+     * @param favorites the favorites
+     */
+    KOReaderMembershipIndex(Map<String, KOReaderBook> books, List<KOReaderBook> history,
+                            List<KOReaderBook> favorites) {
+        HashSet<KOReaderBook> historySet = new HashSet<>(history);
+        HashSet<KOReaderBook> favoritesSet = new HashSet<>(favorites);
+        statuses = new HashMap<>(2 * books.size());
+        HashMap<String, HashMap<String, KOReaderBookStatus>> directories = new HashMap<>();
+        for (KOReaderBook book : books.values()) {
+            KOReaderBookStatus status = new KOReaderBookStatus(book, historySet.contains(book),
+                    favoritesSet.contains(book));
+            statuses.put(book.getFilePath(), status);
+            File file = new File(book.getFilePath());
+            HashMap<String, KOReaderBookStatus> directory = directories.get(file.getParent());
+            if (directory == null) {
+                directory = new HashMap<>();
+                directories.put(file.getParent(), directory);
+            }
+            directory.put(file.getName(), status);
+        }
+        for (Map.Entry<String, HashMap<String, KOReaderBookStatus>> directory
+                : directories.entrySet())
+            this.directories.put(directory.getKey(),
+                    Collections.unmodifiableMap(directory.getValue()));
+    }
+
+    /**
+     * Returns the status of the book with the given file path.
+     *
+     * @param filePath the file path
+     * @return the status or null if the book is not in the library
+     */
+    KOReaderBookStatus get(String filePath) {
+        KOReaderBookStatus status = statuses.get(filePath);
+        if (status != null)
+            return status;
+        status = aliases.get(filePath);
+        if (status != null)
+            return status;
+        status = statuses.get(KOReaderHistFav.uniqueFilePath(filePath));
+        // only books of the library are remembered, so that the aliases are bounded
+        if (status != null)
+            aliases.put(filePath, status);
+        return status;
+    }
+
+    /**
+     * Returns the statuses of the books of the library in the directory with the given unique
+     * path by their file names.
+     *
+     * @param directoryPath the unique directory path
+     * @return the unmodifiable statuses, empty if the directory has no books of the library
+     */
+    Map<String, KOReaderBookStatus> getDirectory(String directoryPath) {
+        Map<String, KOReaderBookStatus> directory = directories.get(directoryPath);
+        return directory != null ? directory
+                : Collections.<String, KOReaderBookStatus>emptyMap();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A preloader reading the sdr files of books in parallel by a bounded pool of daemon threads,
+ * which are started on demand and terminate after one second without work. The books are read in
+ * the given order, so that e.g. the first books of a list are available first.
+ */
+class KOReaderMetadataPreloader {
+    private static final long KEEP_ALIVE_TIME = 1000;
+
+    private final int parallelism;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Constructs a new preloader.
+     *
+     * @param parallelism the maximum number of sdr files read in parallel
+     * @throws IllegalArgumentException if the parallelism is less than one
+     */
+    KOReaderMetadataPreloader(int parallelism) throws IllegalArgumentException {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism " + parallelism + " less than one");
+        this.parallelism = parallelism;
+        executor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_TIME,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "KOReaderMetadataPreloader-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the maximum number of sdr files read in parallel.
+     *
+     * @return the parallelism
+     */
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Reads the sdr files of the given books in parallel, if not read yet or modified.
+     *
+     * @param books the books
+     * @param listener the listener or null
+     * @return the future of the number of loaded books, which interrupts reading if cancelled
+     */
+    Future<Integer> preload(Collection<KOReaderBook> books,
+                            KOReaderHistFav.PreloadListener listener) {
+        Preload preload = new Preload(books.size(), listener);
+        synchronized (preload.tasks) {
+            for (KOReaderBook book : books)
+                preload.tasks.add(executor.submit(preload.new BookTask(book)));
+        }
+        if (books.isEmpty())
+            preload.complete(0);
+        return preload;
+    }
+
+    /**
+     * The future of one preload, completed after all books have been loaded or failed to load.
+     * If loading a book or the listener failed, the future is completed with the first exception.
+     */
+    private static class Preload extends KOReaderSettableFuture<Integer> {
+        private final int total;
+        private final KOReaderHistFav.PreloadListener listener;
+        private final AtomicInteger loaded = new AtomicInteger();
+        private final ArrayList<Future<?>> tasks = new ArrayList<>();
+        private final AtomicReference<RuntimeException> exception = new AtomicReference<>();
+
+        Preload(int total, KOReaderHistFav.PreloadListener listener) {
+            this.total = total;
+            this.listener = listener;
+        }
+
+        void complete(int loaded) {
+            if (exception.get() == null)
+                set(loaded);
+            else
+                setException(exception.get());
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(false))
+                return false;
+            synchronized (tasks) {
+                for (Future<?> task : tasks)
+                    task.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        private class BookTask implements Runnable {
+            private final KOReaderBook book;
+
+            BookTask(KOReaderBook book) {
+                this.book = book;
+            }
+
+            @Override
+            public void run() {
+                if (isCancelled())
+                    return;
+                // counted in any case, so that the preload completes even if loading failed
+                int loadedBooks = 0;
+                try {
+                    try {
+                        book.loadSdr();
+                    } catch (RuntimeException e) {
+                        failed(e);
+                    }
+                    loadedBooks = loaded.incrementAndGet();
+                    if (listener != null && !isCancelled())
+                        listener.onBookLoaded(book, loadedBooks, total);
+                } catch (RuntimeException e) {
+                    failed(e);
+                } finally {
+                    if (loadedBooks == 0)
+                        loadedBooks = loaded.incrementAndGet();
+                    if (loadedBooks == total)
+                        complete(loadedBooks);
+                }
+            }
+
+            private void failed(RuntimeException e) {
+                exception.compareAndSet(null, e);
+            }
+        }
+    }
+}
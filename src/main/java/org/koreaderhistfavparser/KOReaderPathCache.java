@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least recently used cache of file paths to unique file paths, see
+ * {@link KOReaderHistFav#uniqueFilePath}.<br>
+ * Each unique file path is cached as unique file path of itself as well, so that paths already
+ * known to be unique, e.g. file paths of {@link KOReaderBook}s passed back to
+ * {@link KOReaderHistFav}, are not canonicalized again. The cache is thread-safe.
+ */
+class KOReaderPathCache {
+    private final Map<String, String> uniqueFilePaths;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param capacity the maximum number of cached file paths
+     */
+    KOReaderPathCache(final int capacity) {
+        uniqueFilePaths = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached unique file path for the given file path and counts a hit or miss.
+     *
+     * @param filePath the file path
+     * @return the unique file path or null if not cached
+     */
+    synchronized String get(String filePath) {
+        String uniqueFilePath = uniqueFilePaths.get(filePath);
+        if (uniqueFilePath == null)
+            misses++;
+        else
+            hits++;
+        return uniqueFilePath;
+    }
+
+    /**
+     * Caches the unique file path for the given file path and for itself.
+     *
+     * @param filePath the file path
+     * @param uniqueFilePath the unique file path
+     */
+    synchronized void put(String filePath, String uniqueFilePath) {
+        uniqueFilePaths.put(uniqueFilePath, uniqueFilePath);
+        uniqueFilePaths.put(filePath, uniqueFilePath);
+    }
+
+    /**
+     * Removes the given file path and all file paths with the same unique file path from the
+     * cache, e.g. after a file or one of its directories has been moved or replaced by a link.
+     *
+     * @param filePath the file path
+     */
+    synchronized void invalidate(String filePath) {
+        String uniqueFilePath = uniqueFilePaths.remove(filePath);
+        if (uniqueFilePath != null)
+            uniqueFilePaths.values().removeAll(Collections.singleton(uniqueFilePath));
+    }
+
+    /**
+     * Removes all file paths from the cache, e.g. after a change of the external storage path.
+     */
+    synchronized void invalidateAll() {
+        uniqueFilePaths.clear();
+    }
+
+    /**
+     * Returns the number of cached file paths.
+     *
+     * @return the number of cached file paths
+     */
+    synchronized int size() {
+        return uniqueFilePaths.size();
+    }
+
+    /**
+     * Returns the number of lookups of cached file paths.
+     *
+     * @return the number of hits
+     */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups of file paths which were not cached.
+     *
+     * @return the number of misses
+     */
+    synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the ratio of hits to all lookups.
+     *
+     * @return the hit rate between 0 and 1, 0 if there were no lookups
+     */
+    synchronized double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A trie of the directories of all books of the library with aggregate statistics per directory,
+ * so that the statistics of a directory are returned in O(depth), see
+ * {@link KOReaderDirectoryStats}. Each node stores only the name of its directory, so that the
+ * common parent directories are shared by all books.<br>
+ * The trie is built from all books of the library on the first query and updated incrementally
+ * afterwards: on each query only the books added to or removed from the library since, see
+ * {@link #libraryChanged}, the books whose membership in history or favorites or time of last
+ * reading changed, found by comparing history and favorites with the ones synchronized last, and
+ * the books, whose properties have been read again from their sdr files, see
+ * {@link #invalidate}, are updated. The trie is thread-safe.
+ */
+final class KOReaderPathTrie {
+    private final Node root = new Node(null, "");
+    // the contributions of the books by unique file path
+    private final HashMap<String, Contribution> contributions = new HashMap<>();
+    // true once built from all books of the library, recording the changes of the library since
+    private volatile boolean complete = false;
+    // the history and favorites synchronized last
+    private List<KOReaderBook> history = Collections.emptyList();
+    private List<KOReaderBook> favorites = Collections.emptyList();
+    private HashMap<String, KOReaderBook> historyBooks = new HashMap<>();
+    private HashSet<String> favoritePaths = new HashSet<>();
+    // file paths of books added to or removed from the library, not synchronized yet
+    private final Set<String> changedPaths =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // books with modified properties, not synchronized yet
+    private final Set<KOReaderBook> invalidBooks =
+            Collections.newSetFromMap(new ConcurrentHashMap<KOReaderBook, Boolean>());
+
+    /**
+     * A library with history and favorites, e.g. a snapshot of {@link KOReaderHistFav}.
+     */
+    interface Library {
+        Map<String, KOReaderBook> getBooks();
+
+        List<KOReaderBook> getHistory();
+
+        List<KOReaderBook> getFavorites();
+    }
+
+    /**
+     * Marks the book with the given file path added to or removed from the library. To be called
+     * after publishing the library with the modification, see {@link #stats}.
+     *
+     * @param filePath the unique file path of the book
+     */
+    void libraryChanged(String filePath) {
+        // not needed before the trie is built from all books
+        if (complete)
+            changedPaths.add(filePath);
+    }
+
+    /**
+     * Marks the properties of the given book modified, e.g. after reading its sdr file again. To
+     * be called by the book without holding any lock of the trie.
+     *
+     * @param book the book
+     */
+    void invalidate(KOReaderBook book) {
+        invalidBooks.add(book);
+    }
+
+    /**
+     * Returns the statistics of the given directory after synchronizing the trie with the current
+     * library. The library is read after taking the marked changes of the library, so that all of
+     * them are contained in it. On first call, the trie is built from all books of the library,
+     * reading their sdr files.
+     *
+     * @param library       the reference to the current library
+     * @param directoryPath the unique directory path
+     * @return the statistics
+     */
+    synchronized KOReaderDirectoryStats stats(AtomicReference<? extends Library> library,
+                                              String directoryPath) {
+        ArrayList<String> changedPaths = new ArrayList<>(this.changedPaths);
+        this.changedPaths.removeAll(changedPaths);
+        boolean build = !complete;
+        complete = true;
+        synchronize(library.get(), build, changedPaths);
+        Node node = root;
+        for (String name : names(directoryPath)) {
+            node = node.children.get(name);
+            if (node == null)
+                return new KOReaderDirectoryStats(0, 0, 0, 0, null, 0);
+        }
+        return new KOReaderDirectoryStats(node.books, node.readBooks, node.favoriteBooks,
+                node.finishedBooks, node.progressBooks > 0
+                        ? node.progressSum / node.progressBooks : null, node.lastRead);
+    }
+
+    /**
+     * Removes all books from the trie, so that it is built again on next query.
+     */
+    synchronized void clear() {
+        complete = false;
+        changedPaths.clear();
+        for (Contribution contribution : contributions.values())
+            contribution.book.setPathTrie(null);
+        contributions.clear();
+        root.children.clear();
+        root.contributions.clear();
+        root.books = root.readBooks = root.favoriteBooks = root.finishedBooks = 0;
+        root.progressBooks = 0;
+        root.progressSum = 0;
+        root.lastRead = 0;
+        history = favorites = Collections.emptyList();
+        historyBooks = new HashMap<>();
+        favoritePaths = new HashSet<>();
+    }
+
+    private void synchronize(Library library, boolean build, List<String> changedPaths) {
+        Map<String, KOReaderBook> books = library.getBooks();
+        HashSet<String> paths = new HashSet<>(changedPaths);
+        List<KOReaderBook> history = library.getHistory();
+        if (history != this.history) {
+            HashMap<String, KOReaderBook> historyBooks = new HashMap<>(2 * history.size());
+            for (KOReaderBook book : history) {
+                historyBooks.put(book.getFilePath(), book);
+                KOReaderBook previousBook = this.historyBooks.get(book.getFilePath());
+                if (previousBook == null || !previousBook.getLastRead().equals(book.getLastRead()))
+                    paths.add(book.getFilePath());
+            }
+            for (String filePath : this.historyBooks.keySet())
+                if (!historyBooks.containsKey(filePath))
+                    paths.add(filePath);
+            this.history = history;
+            this.historyBooks = historyBooks;
+        }
+        List<KOReaderBook> favorites = library.getFavorites();
+        if (favorites != this.favorites) {
+            HashSet<String> favoritePaths = new HashSet<>(2 * favorites.size());
+            for (KOReaderBook book : favorites)
+                if (favoritePaths.add(book.getFilePath())
+                        && !this.favoritePaths.contains(book.getFilePath()))
+                    paths.add(book.getFilePath());
+            for (String filePath : this.favoritePaths)
+                if (!favoritePaths.contains(filePath))
+                    paths.add(filePath);
+            this.favorites = favorites;
+            this.favoritePaths = favoritePaths;
+        }
+        if (build)
+            paths.addAll(books.keySet());
+        for (String filePath : paths)
+            synchronizeBook(filePath, books.get(filePath));
+        Iterator<KOReaderBook> iterator = invalidBooks.iterator();
+        while (iterator.hasNext()) {
+            KOReaderBook book = iterator.next();
+            iterator.remove();
+            Contribution contribution = contributions.get(book.getFilePath());
+            if (contribution == null || !contribution.book.isCopyOf(book))
+                continue;
+            Boolean finished = book.getFinished();
+            Double progress = book.getPercentFinished();
+            if (finished.equals(contribution.finished) && (progress == null
+                    ? contribution.progress == null : progress.equals(contribution.progress)))
+                continue;
+            remove(contribution);
+            contribution.finished = finished;
+            contribution.progress = progress;
+            add(contribution);
+        }
+    }
+
+    /**
+     * Updates the contribution of the book with the given file path according to the library,
+     * history and favorites synchronized last.
+     *
+     * @param filePath the unique file path
+     * @param book     the book of the library or null if not in the library
+     */
+    private void synchronizeBook(String filePath, KOReaderBook book) {
+        Contribution contribution = contributions.get(filePath);
+        if (contribution != null && (book == null || !book.isCopyOf(contribution.book))) {
+            // removed from the library, possibly added again as new book
+            contributions.remove(filePath);
+            remove(contribution);
+            contribution.book.setPathTrie(null);
+            contribution = null;
+        }
+        if (book == null)
+            return;
+        KOReaderBook historyBook = historyBooks.get(filePath);
+        boolean read = historyBook != null;
+        boolean favorite = favoritePaths.contains(filePath);
+        // the time of last reading of books removed from history is kept by the book
+        long lastRead = read ? historyBook.getLastRead() : 0;
+        if (contribution == null) {
+            contribution = new Contribution(book);
+            book.setPathTrie(this);
+            contribution.finished = book.getFinished();
+            contribution.progress = book.getPercentFinished();
+            contributions.put(filePath, contribution);
+        } else if (contribution.read != read || contribution.favorite != favorite
+                || contribution.lastRead != lastRead) {
+            remove(contribution);
+        } else {
+            return;
+        }
+        contribution.read = read;
+        contribution.favorite = favorite;
+        contribution.lastRead = lastRead;
+        add(contribution);
+    }
+
+    /**
+     * Adds the contribution of a book to its directory and all parent directories.
+     */
+    private void add(Contribution contribution) {
+        File file = new File(contribution.book.getFilePath());
+        Node node = root;
+        for (String name : names(file.getParent())) {
+            update(node, contribution, 1);
+            Node child = node.children.get(name);
+            if (child == null) {
+                child = new Node(node, name);
+                node.children.put(name, child);
+            }
+            node = child;
+        }
+        update(node, contribution, 1);
+        node.contributions.put(file.getName(), contribution);
+        contribution.node = node;
+    }
+
+    /**
+     * Removes the contribution of a book from its directory and all parent directories. Empty
+     * directories are removed and the most recent time of last reading is determined again, if
+     * it was the book's.
+     */
+    private void remove(Contribution contribution) {
+        Node node = contribution.node;
+        node.contributions.remove(new File(contribution.book.getFilePath()).getName());
+        boolean lastReadRemoved = contribution.lastRead > 0;
+        for (; node != null; node = node.parent) {
+            update(node, contribution, -1);
+            if (lastReadRemoved && node.lastRead == contribution.lastRead) {
+                node.lastRead = 0;
+                for (Contribution child : node.contributions.values())
+                    node.lastRead = Math.max(node.lastRead, child.lastRead);
+                for (Node child : node.children.values())
+                    node.lastRead = Math.max(node.lastRead, child.lastRead);
+            } else {
+                lastReadRemoved = false;
+            }
+            if (node.books == 0 && node.parent != null)
+                node.parent.children.remove(node.name);
+        }
+        contribution.node = null;
+    }
+
+    private static void update(Node node, Contribution contribution, int sign) {
+        node.books += sign;
+        if (contribution.read)
+            node.readBooks += sign;
+        if (contribution.favorite)
+            node.favoriteBooks += sign;
+        if (contribution.finished)
+            node.finishedBooks += sign;
+        if (contribution.progress != null) {
+            node.progressBooks += sign;
+            // summed again from zero, so that no rounding errors accumulate in empty directories
+            node.progressSum = node.progressBooks == 0 ? 0
+                    : node.progressSum + sign * contribution.progress;
+        }
+        if (sign > 0)
+            node.lastRead = Math.max(node.lastRead, contribution.lastRead);
+    }
+
+    /**
+     * Returns the names of the directories of the given path, from the root directory on.
+     *
+     * @param directoryPath the directory path
+     * @return the names
+     */
+    private static List<String> names(String directoryPath) {
+        ArrayList<String> names = new ArrayList<>();
+        if (directoryPath == null)
+            return names;
+        for (String name : directoryPath.split("/"))
+            if (!name.isEmpty())
+                names.add(name);
+        return names;
+    }
+
+    /**
+     * A directory with the aggregate statistics of its books and the books of its subdirectories.
+     */
+    private static final class Node {
+        final Node parent;
+        final String name;
+        final HashMap<String, Node> children = new HashMap<>();
+        // the books of the directory by file name
+        final HashMap<String, Contribution> contributions = new HashMap<>();
+        int books;
+        int readBooks;
+        int favoriteBooks;
+        int finishedBooks;
+        int progressBooks;
+        double progressSum;
+        long lastRead;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
+    /**
+     * The values of a book contributing to the statistics, as last synchronized.
+     */
+    private static final class Contribution {
+        final KOReaderBook book;
+        Node node;
+        boolean read;
+        boolean favorite;
+        boolean finished;
+        Double progress;
+        long lastRead;
+
+        Contribution(KOReaderBook book) {
+            this.book = book;
+        }
+    }
+}
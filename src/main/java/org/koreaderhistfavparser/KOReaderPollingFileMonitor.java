@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+/**
+ * A file monitor comparing the modification time of a file with the one recorded at the last
+ * reading. With a revalidation interval greater than zero, the modification time is compared at
+ * most once per interval, i.e. modifications by other applications may be detected with a delay of
+ * up to the revalidation interval.
+ */
+public class KOReaderPollingFileMonitor extends KOReaderFileMonitor {
+    // default monitor comparing the modification time on each access
+    static final KOReaderPollingFileMonitor DEFAULT = new KOReaderPollingFileMonitor();
+
+    private final long revalidationInterval;
+
+    /**
+     * Constructs a new KOReaderPollingFileMonitor comparing the modification time on each access.
+     */
+    public KOReaderPollingFileMonitor() {
+        this(0);
+    }
+
+    /**
+     * Constructs a new KOReaderPollingFileMonitor with the given revalidation interval.
+     *
+     * @param revalidationInterval the revalidation interval in milliseconds
+     * @throws IllegalArgumentException if the revalidation interval is negative
+     */
+    public KOReaderPollingFileMonitor(long revalidationInterval) throws IllegalArgumentException {
+        if (revalidationInterval < 0)
+            throw new IllegalArgumentException("Revalidation interval " + revalidationInterval
+                    + " negative");
+        this.revalidationInterval = revalidationInterval;
+    }
+
+    /**
+     * Returns the revalidation interval.
+     *
+     * @return the revalidation interval in milliseconds
+     */
+    public long getRevalidationInterval() {
+        return revalidationInterval;
+    }
+
+    @Override
+    Watch watch(String filePath) {
+        return new PollingWatch(filePath);
+    }
+
+    private class PollingWatch extends Watch {
+        private volatile long lastChecked = 0;
+
+        PollingWatch(String filePath) {
+            super(filePath);
+        }
+
+        @Override
+        boolean modified() {
+            if (revalidationInterval == 0)
+                return modificationTimeChanged();
+            long now = System.currentTimeMillis();
+            if (now >= lastChecked && now - lastChecked < revalidationInterval)
+                return false;
+            if (modificationTimeChanged())
+                return true;
+            // only revalidate unmodified files with delay
+            lastChecked = now;
+            return false;
+        }
+
+        @Override
+        void update() {
+            super.update();
+            lastChecked = System.currentTimeMillis();
+        }
+
+        @Override
+        void invalidate() {
+            super.invalidate();
+            lastChecked = 0;
+        }
+    }
+}
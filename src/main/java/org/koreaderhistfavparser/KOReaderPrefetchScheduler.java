@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A scheduler prefetching the metadata of the visible books of a scrolled list, so that showing
+ * the list does not read sdr files. After each hint of the visible range by
+ * {@link #setVisibleRange}, the visible books are loaded first in order, followed by the books of
+ * the next page. Pending loads of books scrolled away are dropped and running ones interrupted.
+ * At most the given number of sdr files are read concurrently.<br>
+ * Use {@link KOReaderBook#isMetadataLoaded} to show a placeholder for books not loaded yet and the
+ * listener to update them once loaded.
+ */
+public class KOReaderPrefetchScheduler {
+    private final static String TAG = "KOReaderPrefetchScheduler";
+    private final KOReaderHistFav.PreloadListener listener;
+    // books to load, visible books first
+    private final ArrayDeque<KOReaderBook> pending = new ArrayDeque<>();
+    // books being loaded and their threads
+    private final HashMap<KOReaderBook, Thread> running = new HashMap<>();
+    // threads interrupted for books scrolled away
+    private final HashSet<Thread> interrupted = new HashSet<>();
+    private int loaded = 0;
+    private int total = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructs a new KOReaderPrefetchScheduler and starts its threads.
+     *
+     * @param maxConcurrentReads the maximum number of sdr files read concurrently
+     * @param listener the listener called after each loaded book of the current visible range and
+     *                 next page, or null
+     * @throws IllegalArgumentException if the maximum number of reads is less than one
+     */
+    public KOReaderPrefetchScheduler(int maxConcurrentReads,
+                                     KOReaderHistFav.PreloadListener listener)
+            throws IllegalArgumentException {
+        if (maxConcurrentReads < 1)
+            throw new IllegalArgumentException("Maximum number of concurrent reads "
+                    + maxConcurrentReads + " less than one");
+        this.listener = listener;
+        for (int i = 1; i <= maxConcurrentReads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "KOReaderPrefetchScheduler-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Sets the range of visible books in the given list, replacing the previous range. Loads the
+     * visible books and the books of the next page (of the same size) not loaded yet.
+     *
+     * @param books the list of books
+     * @param first the index of the first visible book
+     * @param last the index of the last visible book
+     */
+    public synchronized void setVisibleRange(List<KOReaderBook> books, int first, int last) {
+        first = Math.max(0, first);
+        last = Math.min(books.size() - 1, last);
+        LinkedHashSet<KOReaderBook> scheduled = new LinkedHashSet<>();
+        if (first <= last) {
+            scheduled.addAll(books.subList(first, last + 1));
+            // next page of the same size
+            scheduled.addAll(books.subList(last + 1,
+                    Math.min(books.size(), 2 * last - first + 2)));
+        }
+        for (Map.Entry<KOReaderBook, Thread> entry : running.entrySet()) {
+            if (!scheduled.contains(entry.getKey()) && interrupted.add(entry.getValue()))
+                entry.getValue().interrupt();
+        }
+        pending.clear();
+        for (KOReaderBook book : scheduled) {
+            // books scrolled away and back while loading are loaded again, as interrupted
+            Thread thread = running.get(book);
+            if (thread == null || interrupted.contains(thread))
+                pending.add(book);
+        }
+        loaded = 0;
+        total = scheduled.size();
+        notifyAll();
+    }
+
+    /**
+     * Drops all pending loads and interrupts the running ones.
+     */
+    public void cancel() {
+        setVisibleRange(Collections.<KOReaderBook>emptyList(), 0, -1);
+    }
+
+    /**
+     * Cancels all loads and stops the threads.
+     */
+    public synchronized void close() {
+        cancel();
+        closed = true;
+        notifyAll();
+    }
+
+    private void work() {
+        while (true) {
+            KOReaderBook book;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // stopped only by close()
+                    }
+                }
+                if (closed)
+                    return;
+                book = pending.poll();
+                running.put(book, Thread.currentThread());
+                // only interrupted for books scrolled away, not by others
+                Thread.interrupted();
+            }
+            boolean cancelled;
+            int loadedBooks;
+            int totalBooks;
+            try {
+                book.loadSdr();
+            } catch (RuntimeException e) {
+                // counted in any case, like books without sdr file
+                Log.w(TAG, "--- work(): Loading " + book.getFilePath() + " failed.", e);
+            } finally {
+                synchronized (this) {
+                    // possibly loaded again by another thread after scrolling back
+                    if (running.get(book) == Thread.currentThread())
+                        running.remove(book);
+                    cancelled = interrupted.remove(Thread.currentThread());
+                    // clear the interruption for books scrolled away
+                    if (cancelled)
+                        Thread.interrupted();
+                    else
+                        loaded++;
+                    loadedBooks = loaded;
+                    totalBooks = total;
+                }
+            }
+            if (!cancelled && listener != null) {
+                try {
+                    listener.onBookLoaded(book, loadedBooks, totalBooks);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "--- work(): Listener failed for " + book.getFilePath() + ".", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A policy for retaining the complete parsed sdr documents of {@link KOReaderBook}s, including
+ * highlights, bookmarks and all other KOReader values. The book's properties are always kept in
+ * compact form, the complete document is only needed to write back changes of the finished state,
+ * see {@link KOReaderBook#setFinished()} and {@link KOReaderBook#setReading()}, and parsed again
+ * on demand, if it has not been retained. Available policies are
+ * <ul>
+ *     <li>{@link #DROP_AFTER_PARSE}: parses only the values needed for the book's properties and
+ *     retains no documents (default),</li>
+ *     <li>{@link #softReferences()}: retains the documents by soft references, which are cleared
+ *     by the garbage collector on memory shortage and</li>
+ *     <li>{@link #leastRecentlyUsed(long)}: retains the least recently used documents up to a
+ *     budget of sdr file bytes.</li>
+ * </ul>
+ * The policy is set for all books by {@link KOReaderBook#setSdrRetention}.
+ */
+public abstract class KOReaderSdrRetention {
+    /**
+     * The policy retaining no documents.
+     */
+    public static final KOReaderSdrRetention DROP_AFTER_PARSE = new KOReaderSdrRetention() {
+        @Override
+        boolean retainsDocuments() {
+            return false;
+        }
+
+        @Override
+        void retain(KOReaderBook book, Document document) {}
+
+        @Override
+        Document take(KOReaderBook book) {
+            return null;
+        }
+
+        @Override
+        void release(KOReaderBook book) {}
+
+        @Override
+        void releaseAll() {}
+    };
+
+    /**
+     * Returns a new policy retaining the documents by soft references.
+     *
+     * @return the policy
+     */
+    public static KOReaderSdrRetention softReferences() {
+        return new SoftRetention();
+    }
+
+    /**
+     * Returns a new policy retaining the least recently used documents, as long as the summed
+     * size of their sdr files does not exceed the given budget. The memory used by a parsed
+     * document is a small multiple of the size of its sdr file.
+     *
+     * @param byteBudget the budget in bytes of sdr files
+     * @return the policy
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public static KOReaderSdrRetention leastRecentlyUsed(long byteBudget)
+            throws IllegalArgumentException {
+        if (byteBudget < 0)
+            throw new IllegalArgumentException("Byte budget " + byteBudget + " negative");
+        return new LruRetention(byteBudget);
+    }
+
+    /**
+     * Returns true if complete documents are to be parsed for retention, otherwise false, i.e. if
+     * only the values needed for the book's properties are to be parsed.
+     *
+     * @return true if documents are retained, otherwise false
+     */
+    abstract boolean retainsDocuments();
+
+    /**
+     * Retains the document of the given book, replacing any document retained before.
+     *
+     * @param book the book
+     * @param document the document
+     */
+    abstract void retain(KOReaderBook book, Document document);
+
+    /**
+     * Returns and releases the retained document of the given book, so that the caller may modify
+     * it.
+     *
+     * @param book the book
+     * @return the document or null if not retained
+     */
+    abstract Document take(KOReaderBook book);
+
+    /**
+     * Releases the document of the given book, e.g. after removal of the book from library.
+     *
+     * @param book the book
+     */
+    abstract void release(KOReaderBook book);
+
+    /**
+     * Releases all documents, e.g. after the policy has been replaced.
+     */
+    abstract void releaseAll();
+
+    /**
+     * A complete parsed sdr document with the stamp of its sdr file at parsing, so that it is only
+     * used as long as the sdr file has not been modified.
+     */
+    static final class Document {
+        final KOReaderLuaTable sdrTable;
+        final KOReaderFileStamp stamp;
+        final long size;
+
+        Document(KOReaderLuaTable sdrTable, KOReaderFileStamp stamp) {
+            this.sdrTable = sdrTable;
+            this.stamp = stamp;
+            this.size = stamp.length;
+        }
+    }
+
+    static class SoftRetention extends KOReaderSdrRetention {
+        // weak keys, so that documents of unreferenced books are released as well
+        private final WeakHashMap<KOReaderBook, SoftReference<Document>> documents =
+                new WeakHashMap<>();
+
+        @Override
+        boolean retainsDocuments() {
+            return true;
+        }
+
+        @Override
+        synchronized void retain(KOReaderBook book, Document document) {
+            documents.put(book, new SoftReference<>(document));
+        }
+
+        @Override
+        synchronized Document take(KOReaderBook book) {
+            SoftReference<Document> reference = documents.remove(book);
+            return reference == null ? null : reference.get();
+        }
+
+        @Override
+        synchronized void release(KOReaderBook book) {
+            documents.remove(book);
+        }
+
+        @Override
+        synchronized void releaseAll() {
+            documents.clear();
+        }
+    }
+
+    static class LruRetention extends KOReaderSdrRetention {
+        private final long byteBudget;
+        private final LinkedHashMap<KOReaderBook, Document> documents =
+                new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes = 0;
+
+        LruRetention(long byteBudget) {
+            this.byteBudget = byteBudget;
+        }
+
+        @Override
+        boolean retainsDocuments() {
+            return true;
+        }
+
+        @Override
+        synchronized void retain(KOReaderBook book, Document document) {
+            release(book);
+            if (document.size > byteBudget)
+                return;
+            documents.put(book, document);
+            bytes += document.size;
+            Iterator<Map.Entry<KOReaderBook, Document>> iterator =
+                    documents.entrySet().iterator();
+            while (bytes > byteBudget) {
+                bytes -= iterator.next().getValue().size;
+                iterator.remove();
+            }
+        }
+
+        @Override
+        synchronized Document take(KOReaderBook book) {
+            Document document = documents.remove(book);
+            if (document != null)
+                bytes -= document.size;
+            return document;
+        }
+
+        @Override
+        synchronized void release(KOReaderBook book) {
+            take(book);
+        }
+
+        @Override
+        synchronized void releaseAll() {
+            documents.clear();
+            bytes = 0;
+        }
+
+        synchronized long retainedBytes() {
+            return bytes;
+        }
+    }
+}
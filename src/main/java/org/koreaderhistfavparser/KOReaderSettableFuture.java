@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future completed by calling {@link #set} or {@link #setException}, e.g. by tasks run
+ * elsewhere, instead of running a computation itself. Only the first completion or cancellation
+ * takes effect.
+ *
+ * @param <T> the type of the result
+ */
+class KOReaderSettableFuture<T> implements Future<T> {
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private int state = PENDING;
+    private T result;
+    private Throwable exception;
+
+    /**
+     * Completes the future with the given result.
+     *
+     * @param result the result
+     * @return true if completed, false if completed or cancelled already
+     */
+    boolean set(T result) {
+        return complete(SUCCEEDED, result, null);
+    }
+
+    /**
+     * Completes the future with the given exception, which is thrown by {@link #get} wrapped in
+     * an {@link ExecutionException}.
+     *
+     * @param exception the exception
+     * @return true if completed, false if completed or cancelled already
+     */
+    boolean setException(Throwable exception) {
+        return complete(FAILED, null, exception);
+    }
+
+    /**
+     * Cancels the future. There is no thread running the future itself, so that subclasses
+     * interrupt the tasks completing it, if requested.
+     *
+     * @param mayInterruptIfRunning whether the tasks completing the future may be interrupted
+     * @return true if cancelled, false if completed or cancelled already
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(CANCELLED, null, null);
+    }
+
+    /**
+     * Called once after completion or cancellation, by the completing or cancelling thread.
+     */
+    void done() {
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit))
+            throw new TimeoutException();
+        return report();
+    }
+
+    private boolean complete(int state, T result, Throwable exception) {
+        synchronized (this) {
+            if (this.state != PENDING)
+                return false;
+            this.state = state;
+            this.result = result;
+            this.exception = exception;
+        }
+        latch.countDown();
+        done();
+        return true;
+    }
+
+    private synchronized T report() throws ExecutionException {
+        if (state == CANCELLED)
+            throw new CancellationException();
+        if (state == FAILED)
+            throw new ExecutionException(exception);
+        return result;
+    }
+}
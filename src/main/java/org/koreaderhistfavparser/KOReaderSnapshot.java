@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A snapshot of library, history and favorites in a compact binary format, so that a new process
+ * does not need to parse the history, collection and sdr files again, see
+ * {@link KOReaderHistFav#KOReaderHistFav(String, KOReaderFileMonitor, String)}.<br>
+ * The history and favorites are tagged with the paths and stamps of the history and collection
+ * files, from which they have been read. The properties of each book are tagged with the stamp of
+ * its sdr file and read again, if the sdr file does not match it later, see
+ * {@link KOReaderFileStamp}.
+ */
+class KOReaderSnapshot {
+    private static final int MAGIC = 0x4b4f5348; // "KOSH"
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 8192;
+
+    final String historyFilePath;
+    final KOReaderFileStamp historyStamp;
+    final String collectionFilePath;
+    final KOReaderFileStamp collectionStamp;
+    final Collection<KOReaderBook> books;
+    final List<KOReaderBook> history;
+    final List<KOReaderBook> favorites;
+
+    /**
+     * Constructs a new snapshot.
+     *
+     * @param historyFilePath the file path of the history file
+     * @param historyStamp the stamp of the history file
+     * @param collectionFilePath the file path of the collection file
+     * @param collectionStamp the stamp of the collection file
+     * @param books the books in library
+     * @param history the books in history, all contained in library
+     * @param favorites the books in favorites, all contained in library
+     */
+    KOReaderSnapshot(String historyFilePath, KOReaderFileStamp historyStamp,
+                     String collectionFilePath, KOReaderFileStamp collectionStamp,
+                     Collection<KOReaderBook> books, List<KOReaderBook> history,
+                     List<KOReaderBook> favorites) {
+        this.historyFilePath = historyFilePath;
+        this.historyStamp = historyStamp;
+        this.collectionFilePath = collectionFilePath;
+        this.collectionStamp = collectionStamp;
+        this.books = books;
+        this.history = history;
+        this.favorites = favorites;
+    }
+
+    /**
+     * Reads the snapshot from the given file. The books are created with the given file monitor.
+     *
+     * @param filePath the file path of the snapshot file
+     * @param fileMonitor the file monitor
+     * @return the snapshot or null if the file does not exist or is invalid
+     */
+    static KOReaderSnapshot read(String filePath, KOReaderFileMonitor fileMonitor) {
+        if (!new File(filePath).isFile())
+            return null;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath),
+                    BUFFER_SIZE));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                return null;
+            String historyFilePath = input.readUTF();
+            KOReaderFileStamp historyStamp = readStamp(input);
+            String collectionFilePath = input.readUTF();
+            KOReaderFileStamp collectionStamp = readStamp(input);
+            int numberOfBooks = input.readInt();
+            ArrayList<KOReaderBook> books = new ArrayList<>(numberOfBooks);
+            for (int i = 0; i < numberOfBooks; i++) {
+                KOReaderBook book = new KOReaderBook(input.readUTF(), fileMonitor);
+                book.readSnapshot(input);
+                books.add(book);
+            }
+            return new KOReaderSnapshot(historyFilePath, historyStamp, collectionFilePath,
+                    collectionStamp, books, readBooks(input, books), readBooks(input, books));
+        } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (input != null)
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    /**
+     * Returns whether the history of the snapshot has been read from the given history file and
+     * the file has not been modified since.
+     *
+     * @param filePath the file path of the history file
+     * @return true if the history is valid, otherwise false
+     */
+    Boolean historyMatches(String filePath) {
+        return filePath.equals(historyFilePath) && historyStamp != null
+                && historyStamp.matches(filePath);
+    }
+
+    /**
+     * Returns whether the favorites of the snapshot have been read from the given collection file
+     * and the file has not been modified since.
+     *
+     * @param filePath the file path of the collection file
+     * @return true if the favorites are valid, otherwise false
+     */
+    Boolean collectionMatches(String filePath) {
+        return filePath.equals(collectionFilePath) && collectionStamp != null
+                && collectionStamp.matches(filePath);
+    }
+
+    /**
+     * Writes the snapshot to the given file. Like the lua files, the snapshot is written to a
+     * temporary file in the same directory first, which replaces the file only after the snapshot
+     * has been written completely, see {@link KOReaderLuaReadWrite#replaceFile}.
+     *
+     * @param filePath the file path of the snapshot file
+     * @return true if writing successful, otherwise false
+     */
+    Boolean write(String filePath) {
+        File file = new File(filePath);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        File tempFile;
+        try {
+            tempFile = File.createTempFile("." + file.getName() + ".", ".tmp", parent);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        DataOutputStream output = null;
+        Boolean success = false;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile), BUFFER_SIZE));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(historyFilePath);
+            writeStamp(output, historyStamp);
+            output.writeUTF(collectionFilePath);
+            writeStamp(output, collectionStamp);
+            output.writeInt(books.size());
+            HashMap<KOReaderBook, Integer> indices = new HashMap<>(2 * books.size());
+            for (KOReaderBook book : books) {
+                indices.put(book, indices.size());
+                output.writeUTF(book.getFilePath());
+                book.writeSnapshot(output);
+            }
+            writeBooks(output, history, indices);
+            writeBooks(output, favorites, indices);
+            success = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (output != null)
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    success = false;
+                }
+        }
+        if (success)
+            return KOReaderLuaReadWrite.replaceFile(tempFile, file);
+        tempFile.delete();
+        return false;
+    }
+
+    private static ArrayList<KOReaderBook> readBooks(DataInput input, ArrayList<KOReaderBook> books)
+            throws IOException {
+        int size = input.readInt();
+        ArrayList<KOReaderBook> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(books.get(input.readInt()));
+        return list;
+    }
+
+    private static void writeBooks(DataOutput output, List<KOReaderBook> list,
+                                   HashMap<KOReaderBook, Integer> indices) throws IOException {
+        output.writeInt(list.size());
+        for (KOReaderBook book : list)
+            output.writeInt(indices.get(book));
+    }
+
+    /**
+     * Writes the given string, which may be null.
+     *
+     * @param output the output
+     * @param string the string or null
+     * @throws IOException if writing fails
+     */
+    static void writeString(DataOutput output, String string) throws IOException {
+        output.writeBoolean(string != null);
+        if (string != null)
+            output.writeUTF(string);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     *
+     * @param input the input
+     * @return the string or null
+     * @throws IOException if reading fails
+     */
+    static String readString(DataInput input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    /**
+     * Writes the given string array, which may be null.
+     *
+     * @param output the output
+     * @param strings the string array or null
+     * @throws IOException if writing fails
+     */
+    static void writeStrings(DataOutput output, String[] strings) throws IOException {
+        output.writeInt(strings == null ? -1 : strings.length);
+        if (strings != null)
+            for (String string : strings)
+                writeString(output, string);
+    }
+
+    /**
+     * Reads a string array written by {@link #writeStrings}.
+     *
+     * @param input the input
+     * @return the string array or null
+     * @throws IOException if reading fails
+     */
+    static String[] readStrings(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0)
+            return null;
+        String[] strings = new String[length];
+        for (int i = 0; i < length; i++)
+            strings[i] = readString(input);
+        return strings;
+    }
+
+    /**
+     * Writes the given file stamp, which may be null.
+     *
+     * @param output the output
+     * @param stamp the file stamp or null
+     * @throws IOException if writing fails
+     */
+    static void writeStamp(DataOutput output, KOReaderFileStamp stamp) throws IOException {
+        output.writeBoolean(stamp != null);
+        if (stamp == null)
+            return;
+        output.writeLong(stamp.lastModified);
+        output.writeLong(stamp.length);
+        output.writeLong(stamp.taken);
+        output.writeInt(stamp.digest == null ? -1 : stamp.digest.length);
+        if (stamp.digest != null)
+            output.write(stamp.digest);
+    }
+
+    /**
+     * Reads a file stamp written by {@link #writeStamp}.
+     *
+     * @param input the input
+     * @return the file stamp or null
+     * @throws IOException if reading fails
+     */
+    static KOReaderFileStamp readStamp(DataInput input) throws IOException {
+        if (!input.readBoolean())
+            return null;
+        long lastModified = input.readLong();
+        long length = input.readLong();
+        long taken = input.readLong();
+        int digestLength = input.readInt();
+        byte[] digest = null;
+        if (digestLength >= 0) {
+            digest = new byte[digestLength];
+            input.readFully(digest);
+        }
+        return new KOReaderFileStamp(lastModified, length, digest, taken);
+    }
+}
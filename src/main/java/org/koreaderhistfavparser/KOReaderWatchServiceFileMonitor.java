@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ *
+ * The author(s) of this library permit(s) the redistribution and/or
+ * modification of the source code in src/main/ to the author(s) of
+ * the Relaunch application <https://github.com/yiselieren/ReLaunch>
+ * and any fork of the Relaunch application under the terms of the
+ * GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or any later version.
+ */
+
+package org.koreaderhistfavparser;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+
+/**
+ * A file monitor getting notified about modifications by a {@link WatchService} of the default
+ * file system, which is available on Android API level 26 and above. The events are processed by
+ * a daemon thread until the monitor is closed.
+ */
+public class KOReaderWatchServiceFileMonitor extends KOReaderEventFileMonitor {
+    private final WatchService watchService;
+    private final HashMap<String, WatchKey> watchKeys = new HashMap<>();
+    private final HashMap<WatchKey, String> directoryPaths = new HashMap<>();
+
+    /**
+     * Constructs a new KOReaderWatchServiceFileMonitor and starts processing events.
+     *
+     * @throws IOException if the watch service could not be created
+     */
+    public KOReaderWatchServiceFileMonitor() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processEvents();
+            }
+        }, "KOReaderWatchServiceFileMonitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    synchronized boolean startWatching(String directoryPath) {
+        try {
+            WatchKey watchKey = Paths.get(directoryPath).register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchKeys.put(directoryPath, watchKey);
+            directoryPaths.put(watchKey, directoryPath);
+            return true;
+        } catch (IOException | ClosedWatchServiceException e) {
+            return false;
+        }
+    }
+
+    @Override
+    synchronized void stopWatching(String directoryPath) {
+        WatchKey watchKey = watchKeys.remove(directoryPath);
+        if (watchKey != null) {
+            directoryPaths.remove(watchKey);
+            watchKey.cancel();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            synchronized (this) {
+                String directoryPath = directoryPaths.get(watchKey);
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (directoryPath == null)
+                        continue;
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        onFileEvent(directoryPath, null);
+                    else
+                        onFileEvent(directoryPath, ((Path) event.context()).toString());
+                }
+                if (!watchKey.reset() && directoryPath != null)
+                    onDirectoryInvalid(directoryPath);
+            }
+        }
+    }
+}
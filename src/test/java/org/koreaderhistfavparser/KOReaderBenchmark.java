@@ -0,0 +1,730 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ */
+
+package org.koreaderhistfavparser;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Simple benchmarks for the lua parsing and writing, not run as unit tests. Run the main method
+ * with the test class path, e.g. from the IDE. Allocated bytes are measured with the HotSpot
+ * specific thread allocation counter, if available.
+ */
+public class KOReaderBenchmark {
+    private static final String BENCHMARK_DIR = "build/benchmark";
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 20;
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new File(BENCHMARK_DIR).mkdirs();
+        benchmarkReadWrite();
+        benchmarkReadSdr();
+        benchmarkReloadHistory();
+        benchmarkFileMonitor();
+        benchmarkPreload();
+        benchmarkFormat();
+        benchmarkColdStart();
+        benchmarkSetFinished();
+        benchmarkDirectoryStatuses();
+        benchmarkDirectoryStats();
+    }
+
+    /**
+     * Compares reading and writing a history.lua with 3000 entries with the legacy regex based
+     * implementation.
+     */
+    static void benchmarkReadWrite() throws Exception {
+        final String historyFilePath = writeHistoryFile(BENCHMARK_DIR + "/history.lua", 3000);
+        System.out.println("Read history.lua with 3000 entries ("
+                + new File(historyFilePath).length() + " bytes)");
+        measure("  regex chain (legacy) ", new Task() {
+            @Override
+            public void run() {
+                legacyReadLuaFile(historyFilePath);
+            }
+        });
+        measure("  single pass parser   ", new Task() {
+            @Override
+            public void run() {
+                KOReaderLuaReadWrite.readLuaFile(historyFilePath);
+            }
+        });
+        measure("  streamed entries     ", new Task() {
+            @Override
+            public void run() {
+                KOReaderLuaReadWrite.readLuaFileEntries(historyFilePath,
+                        new KOReaderLuaParser.EntryHandler() {
+                            @Override
+                            public boolean onEntry(Object key, Object value) {
+                                return true;
+                            }
+                        });
+            }
+        });
+
+        final String writeFilePath = BENCHMARK_DIR + "/history_write.lua";
+        final JSONObject historyJson = legacyReadLuaFile(historyFilePath);
+        final KOReaderLuaTable historyTable = KOReaderLuaReadWrite.readLuaFile(historyFilePath);
+        System.out.println("Write history.lua with 3000 entries");
+        measure("  regex chain (legacy) ", new Task() {
+            @Override
+            public void run() throws Exception {
+                legacyWriteLuaFile(writeFilePath, historyJson);
+            }
+        });
+        measure("  streaming serializer ", new Task() {
+            @Override
+            public void run() {
+                KOReaderLuaReadWrite.writeLuaFile(writeFilePath, historyTable);
+            }
+        });
+    }
+
+    /**
+     * Compares the complete and the projected parsing of an annotated sdr file.
+     */
+    static void benchmarkReadSdr() throws Exception {
+        final String sdrFilePath = writeSdrFile(BENCHMARK_DIR + "/book.sdr/metadata.epub.lua",
+                2000);
+        System.out.println("Read annotated metadata.epub.lua with 2000 bookmarks ("
+                + new File(sdrFilePath).length() + " bytes)");
+        measure("  complete             ", new Task() {
+            @Override
+            public void run() {
+                KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
+            }
+        });
+        final KOReaderBook book = new KOReaderBook(BENCHMARK_DIR + "/book.epub");
+        measure("  projection (getters) ", new Task() {
+            @Override
+            public void run() {
+                new File(sdrFilePath).setLastModified(System.currentTimeMillis());
+                book.getTitle();
+            }
+        });
+    }
+
+    /**
+     * Measures the reload of the history with 1000, 10000 and 100000 entries, and the legacy
+     * insertion sort with duplicate detection by indexOf alone, which is skipped for 100000 entries
+     * as it takes minutes.
+     */
+    static void benchmarkReloadHistory() throws Exception {
+        String koreaderDirectoryPath = BENCHMARK_DIR + "/koreader";
+        new File(koreaderDirectoryPath).mkdirs();
+        final KOReaderHistFav histFav = new KOReaderHistFav(koreaderDirectoryPath);
+        // increasing modification times to trigger the reload
+        final long[] lastModified = {System.currentTimeMillis()};
+        for (final int entries : new int[] {1000, 10000, 100000}) {
+            final File historyFile = new File(writeHistoryFile(
+                    histFav.getKoreaderHistoryFilePath(), entries));
+            System.out.println("Reload history with " + entries + " entries");
+            measure("  reload (dedup, sort) ", 5, new Task() {
+                @Override
+                public void run() {
+                    lastModified[0] += 1000;
+                    historyFile.setLastModified(lastModified[0]);
+                    if (histFav.getHistory().size() != entries)
+                        throw new IllegalStateException("History not reloaded");
+                }
+            });
+            if (entries > 10000)
+                continue;
+            final ArrayList<KOReaderBook> books = new ArrayList<>();
+            for (int i = 1; i <= entries; i++) {
+                KOReaderBook book = new KOReaderBook("/storage/emulated/0/Books/Book " + i
+                        + ".epub");
+                book.setLastRead((long) 1574871597 - i);
+                books.add(book);
+            }
+            measure("  legacy insertion sort", 5, new Task() {
+                @Override
+                public void run() {
+                    legacySortHistory(books);
+                }
+            });
+        }
+    }
+
+    /**
+     * Compares rendering a list of 500 books (all getters of each book) with the different file
+     * monitors, without modifications of the sdr files.
+     */
+    static void benchmarkFileMonitor() throws Exception {
+        final int numberOfBooks = 500;
+        for (int i = 0; i < numberOfBooks; i++)
+            writeSdrFile(BENCHMARK_DIR + "/monitor/book" + i + ".sdr/metadata.epub.lua", 0);
+        System.out.println("Render list of " + numberOfBooks + " books");
+        KOReaderWatchServiceFileMonitor watchServiceFileMonitor =
+                new KOReaderWatchServiceFileMonitor();
+        String[] names = {"  polling             ", "  polling (1 s)       ",
+                "  watch service       "};
+        KOReaderFileMonitor[] fileMonitors = {new KOReaderPollingFileMonitor(),
+                new KOReaderPollingFileMonitor(1000), watchServiceFileMonitor};
+        for (int i = 0; i < fileMonitors.length; i++) {
+            final KOReaderBook[] books = new KOReaderBook[numberOfBooks];
+            for (int j = 0; j < numberOfBooks; j++)
+                books[j] = new KOReaderBook(BENCHMARK_DIR + "/monitor/book" + j + ".epub",
+                        fileMonitors[i]);
+            measure(names[i], new Task() {
+                @Override
+                public void run() {
+                    for (KOReaderBook book : books)
+                        book.toString();
+                }
+            });
+        }
+        watchServiceFileMonitor.close();
+    }
+
+    /**
+     * Compares reading the sdr files of 500 books with 100 bookmarks each sequentially and by
+     * parallel preloading.
+     */
+    static void benchmarkPreload() throws Exception {
+        final int numberOfBooks = 500;
+        final ArrayList<String> filePaths = new ArrayList<>();
+        for (int i = 0; i < numberOfBooks; i++) {
+            writeSdrFile(BENCHMARK_DIR + "/preload/book" + i + ".sdr/metadata.epub.lua", 100);
+            filePaths.add(BENCHMARK_DIR + "/preload/book" + i + ".epub");
+        }
+        System.out.println("Load metadata of " + numberOfBooks + " books with " + 100
+                + " bookmarks each");
+        measure("  sequential          ", 5, new Task() {
+            @Override
+            public void run() {
+                for (String filePath : filePaths)
+                    new KOReaderBook(filePath).getTitle();
+            }
+        });
+        final KOReaderHistFav histFav = new KOReaderHistFav(BENCHMARK_DIR);
+        for (final int parallelism : new int[] {2, 4}) {
+            histFav.setPreloadParallelism(parallelism);
+            measure("  preload (" + parallelism + " threads) ", 5, new Task() {
+                @Override
+                public void run() throws Exception {
+                    ArrayList<KOReaderBook> books = new ArrayList<>();
+                    for (String filePath : filePaths)
+                        books.add(new KOReaderBook(filePath));
+                    histFav.preloadMetadata(books, null).get();
+                }
+            });
+        }
+    }
+
+    /**
+     * Compares rendering a list of 1000 books with loaded properties with the legacy regex based
+     * implementation of {@link KOReaderBook#toString} and with the cached labels of the books.
+     */
+    static void benchmarkFormat() throws Exception {
+        final int numberOfBooks = 1000;
+        writeSdrFile(BENCHMARK_DIR + "/format/book.sdr/metadata.epub.lua", 0);
+        final KOReaderBook[] books = new KOReaderBook[numberOfBooks];
+        for (int i = 0; i < numberOfBooks; i++) {
+            books[i] = new KOReaderBook(BENCHMARK_DIR + "/format/book.epub");
+            books[i].getTitle();
+        }
+        final String stringFormat = "[(series %s[, %l]) ]%a: %t[ (%p%)]";
+        final KOReaderBookFormat bookFormat = new KOReaderBookFormat(stringFormat);
+        System.out.println("Format list of " + numberOfBooks + " books as " + stringFormat);
+        measure("  regex (legacy)      ", new Task() {
+            @Override
+            public void run() {
+                for (KOReaderBook book : books)
+                    legacyToString(book, stringFormat);
+            }
+        });
+        measure("  compiled format     ", new Task() {
+            @Override
+            public void run() {
+                for (KOReaderBook book : books)
+                    bookFormat.render(book);
+            }
+        });
+        measure("  cached label        ", new Task() {
+            @Override
+            public void run() {
+                for (KOReaderBook book : books)
+                    bookFormat.format(book);
+            }
+        });
+    }
+
+    /**
+     * Compares the start with a history of 5000 books, until all books of the history are
+     * rendered, with and without snapshot. The file path cache is cleared before each start.
+     */
+    static void benchmarkColdStart() throws Exception {
+        final int numberOfBooks = 5000;
+        final String koreaderDirectoryPath = BENCHMARK_DIR + "/coldstart/koreader";
+        new File(koreaderDirectoryPath).mkdirs();
+        KOReaderLuaTable historyTable = new KOReaderLuaTable();
+        for (int i = 0; i < numberOfBooks; i++) {
+            writeSdrFile(BENCHMARK_DIR + "/coldstart/book" + i + ".sdr/metadata.epub.lua", 20);
+            KOReaderLuaTable entryTable = new KOReaderLuaTable();
+            entryTable.put("file", BENCHMARK_DIR + "/coldstart/book" + i + ".epub");
+            entryTable.put("time", (long) 1574871597 - i);
+            historyTable.add(entryTable);
+        }
+        KOReaderLuaReadWrite.writeLuaFile(koreaderDirectoryPath + "/history.lua", historyTable);
+        final String snapshotFilePath = BENCHMARK_DIR + "/coldstart/snapshot.bin";
+        new File(snapshotFilePath).delete();
+        System.out.println("Start with history of " + numberOfBooks + " books with 20 bookmarks"
+                + " each");
+        measure("  lua files           ", 5, new Task() {
+            @Override
+            public void run() throws Exception {
+                KOReaderHistFav.invalidateFilePathCache();
+                for (KOReaderBook book : new KOReaderHistFav(koreaderDirectoryPath).getHistory())
+                    book.toString();
+            }
+        });
+        KOReaderHistFav histFav = new KOReaderHistFav(koreaderDirectoryPath,
+                KOReaderPollingFileMonitor.DEFAULT, snapshotFilePath);
+        histFav.preloadLibrary(null).get();
+        histFav.saveSnapshot();
+        System.out.println("  (snapshot " + new File(snapshotFilePath).length() + " bytes)");
+        measure("  snapshot            ", 5, new Task() {
+            @Override
+            public void run() throws Exception {
+                KOReaderHistFav.invalidateFilePathCache();
+                for (KOReaderBook book : new KOReaderHistFav(koreaderDirectoryPath,
+                        KOReaderPollingFileMonitor.DEFAULT, snapshotFilePath).getHistory())
+                    book.toString();
+            }
+        });
+    }
+
+    /**
+     * Compares toggling the status of 200 books with 100 bookmarks each by writing the complete
+     * sdr files and by patching the status.
+     */
+    static void benchmarkSetFinished() throws Exception {
+        final int numberOfBooks = 200;
+        final ArrayList<KOReaderBook> books = new ArrayList<>();
+        for (int i = 0; i < numberOfBooks; i++) {
+            writeSdrFile(BENCHMARK_DIR + "/finished/book" + i + ".sdr/metadata.epub.lua", 100);
+            books.add(new KOReaderBook(BENCHMARK_DIR + "/finished/book" + i + ".epub"));
+        }
+        System.out.println("Toggle status of " + numberOfBooks + " books with 100 bookmarks each");
+        measure("  complete sdr files  ", 6, new Task() {
+            private String status = "reading";
+
+            @Override
+            public void run() {
+                status = status.equals("reading") ? "complete" : "reading";
+                for (int i = 0; i < numberOfBooks; i++) {
+                    String sdrFilePath = BENCHMARK_DIR + "/finished/book" + i
+                            + ".sdr/metadata.epub.lua";
+                    KOReaderLuaTable sdrTable = KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
+                    sdrTable.getTable("summary").put("status", status);
+                    KOReaderLuaReadWrite.writeLuaFile(sdrFilePath, sdrTable);
+                }
+            }
+        });
+        measure("  patched status      ", 6, new Task() {
+            @Override
+            public void run() {
+                for (KOReaderBook book : books)
+                    book.setFinished(!book.getFinished());
+            }
+        });
+    }
+
+    /**
+     * Compares decorating a file browser listing of 1000 files, 30 of them in a library of 3000
+     * books, by looking up each file with getBook and by the statuses of the directory.
+     */
+    static void benchmarkDirectoryStatuses() throws Exception {
+        String koreaderDirectoryPath = BENCHMARK_DIR + "/koreader";
+        new File(koreaderDirectoryPath).mkdirs();
+        final KOReaderHistFav histFav = new KOReaderHistFav(koreaderDirectoryPath);
+        writeHistoryFile(histFav.getKoreaderHistoryFilePath(), 3000);
+        final String directoryPath = "/storage/emulated/0/Books/Author 1";
+        final ArrayList<String> names = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++)
+            names.add("Book " + (i <= 30 ? 100 * i - 99 : -i) + ".epub");
+        if (histFav.getLibrary().size() != 3000)
+            throw new IllegalStateException("History not read");
+        System.out.println("Decorate listing of " + names.size() + " files");
+        measure("  getBook per file    ", new Task() {
+            @Override
+            public void run() {
+                int found = 0;
+                for (String name : names) {
+                    KOReaderBook book = histFav.getBook(directoryPath + "/" + name);
+                    if (book != null && histFav.getHistory().contains(book))
+                        found++;
+                }
+                if (found != 30)
+                    throw new IllegalStateException("Books not found");
+            }
+        });
+        measure("  directory statuses  ", new Task() {
+            @Override
+            public void run() {
+                int found = 0;
+                Map<String, KOReaderBookStatus> statuses =
+                        histFav.getDirectoryStatuses(directoryPath);
+                for (String name : names) {
+                    KOReaderBookStatus status = statuses.get(name);
+                    if (status != null && status.isInHistory())
+                        found++;
+                }
+                if (found != 30)
+                    throw new IllegalStateException("Books not found");
+            }
+        });
+    }
+
+    /**
+     * Compares the statistics of 100 folders of a library of 3000 books by iterating the library
+     * for each folder and by the path trie.
+     */
+    static void benchmarkDirectoryStats() throws Exception {
+        String koreaderDirectoryPath = BENCHMARK_DIR + "/koreader";
+        new File(koreaderDirectoryPath).mkdirs();
+        final KOReaderHistFav histFav = new KOReaderHistFav(koreaderDirectoryPath);
+        writeHistoryFile(histFav.getKoreaderHistoryFilePath(), 3000);
+        if (histFav.getLibrary().size() != 3000)
+            throw new IllegalStateException("History not read");
+        System.out.println("Statistics of 100 folders of " + histFav.getLibrary().size()
+                + " books");
+        measure("  library per folder  ", new Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    String directoryPath = "/storage/emulated/0/Books/Author " + i + "/";
+                    int read = 0;
+                    long lastRead = 0;
+                    for (KOReaderBook book : histFav.getLibrary().values()) {
+                        if (book.getFilePath().startsWith(directoryPath)) {
+                            read++;
+                            lastRead = Math.max(lastRead, book.getLastRead());
+                        }
+                    }
+                    if (read != 30 || lastRead == 0)
+                        throw new IllegalStateException("Books not found");
+                }
+            }
+        });
+        measure("  path trie           ", new Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    KOReaderDirectoryStats stats = histFav.getDirectoryStats(
+                            "/storage/emulated/0/Books/Author " + i);
+                    if (stats.getReadBooks() != 30 || stats.getLastRead() == 0)
+                        throw new IllegalStateException("Books not found");
+                }
+            }
+        });
+    }
+
+    static void measure(String name, Task task) throws Exception {
+        measure(name, ITERATIONS, task);
+    }
+
+    /**
+     * Runs the task the given number of times after warming up and prints the mean time and
+     * allocated bytes per run.
+     *
+     * @param name       the name of the task
+     * @param iterations the number of measured runs
+     * @param task       the task
+     * @throws Exception if the task fails
+     */
+    static void measure(String name, int iterations, Task task) throws Exception {
+        for (int i = 0; i < Math.min(WARMUP_ITERATIONS, iterations); i++)
+            task.run();
+        long bytes = allocatedBytes();
+        long time = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            task.run();
+        time = System.nanoTime() - time;
+        long bytesAfter = allocatedBytes();
+        System.out.printf("%s: %8.2f ms, %10d bytes allocated per run%n", name,
+                time / 1e6 / iterations, bytes < 0 ? -1 : (bytesAfter - bytes) / iterations);
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread or a negative number, if not supported by
+     * the virtual machine.
+     *
+     * @return the allocated bytes
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes a history file in KOReader format with the given number of entries.
+     *
+     * @param filePath the file path of the history file
+     * @param entries  the number of entries
+     * @return the file path
+     * @throws IOException if writing fails
+     */
+    static String writeHistoryFile(String filePath, int entries) throws IOException {
+        StringBuilder stringBuilder = new StringBuilder("return {\n");
+        for (int i = 1; i <= entries; i++) {
+            stringBuilder.append("    [").append(i).append("] = {\n")
+                    .append("        [\"file\"] = \"/storage/emulated/0/Books/Author ")
+                    .append(i % 100).append("/Book ").append(i).append(".epub\",\n")
+                    .append("        [\"time\"] = ").append(1574871597 - i).append("\n")
+                    .append(i == entries ? "    }\n" : "    },\n");
+        }
+        stringBuilder.append("}\n");
+        FileOutputStream fos = new FileOutputStream(filePath);
+        fos.write(stringBuilder.toString().getBytes("UTF-8"));
+        fos.close();
+        return filePath;
+    }
+
+    /**
+     * Writes a sdr metadata file in KOReader format with the given number of bookmarks and as many
+     * highlights before the book's properties.
+     *
+     * @param filePath  the file path of the sdr file
+     * @param bookmarks the number of bookmarks
+     * @return the file path
+     * @throws IOException if writing fails
+     */
+    static String writeSdrFile(String filePath, int bookmarks) throws IOException {
+        StringBuilder stringBuilder = new StringBuilder("-- we can read Lua syntax here!\n"
+                + "return {\n    [\"bookmarks\"] = {\n");
+        for (int i = 1; i <= bookmarks; i++) {
+            stringBuilder.append("        [").append(i).append("] = {\n")
+                    .append("            [\"datetime\"] = \"2019-11-27 17:19:57\",\n")
+                    .append("            [\"highlighted\"] = true,\n")
+                    .append("            [\"notes\"] = \"Some highlighted text on page ")
+                    .append(i).append(", long enough to be realistic\\\nwith a line break\",\n")
+                    .append("            [\"page\"] = ").append(i).append(",\n")
+                    .append("            [\"pos0\"] = \"/body/DocFragment[").append(i)
+                    .append("]/body/p[5]/text().0\",\n")
+                    .append("            [\"pos1\"] = \"/body/DocFragment[").append(i)
+                    .append("]/body/p[5]/text().97\"\n")
+                    .append(i == bookmarks ? "        }\n" : "        },\n");
+        }
+        stringBuilder.append("    },\n    [\"highlight\"] = {\n");
+        for (int i = 1; i <= bookmarks; i++) {
+            stringBuilder.append("        [").append(i).append("] = {\n")
+                    .append("            [1] = {\n")
+                    .append("                [\"chapter\"] = \"Chapter ").append(i).append("\",\n")
+                    .append("                [\"text\"] = \"Some highlighted text\"\n")
+                    .append("            }\n")
+                    .append(i == bookmarks ? "        }\n" : "        },\n");
+        }
+        stringBuilder.append("    },\n"
+                + "    [\"doc_props\"] = {\n"
+                + "        [\"authors\"] = \"Max Brod\\\nFranz Kafka\",\n"
+                + "        [\"keywords\"] = \"Abenteuer\",\n"
+                + "        [\"language\"] = \"de\",\n"
+                + "        [\"series\"] = \"\",\n"
+                + "        [\"title\"] = \"Richard und Samuel\"\n"
+                + "    },\n"
+                + "    [\"percent_finished\"] = 0.5,\n"
+                + "    [\"stats\"] = {\n"
+                + "        [\"pages\"] = 60\n"
+                + "    },\n"
+                + "    [\"summary\"] = {\n"
+                + "        [\"status\"] = \"reading\"\n"
+                + "    }\n"
+                + "}\n");
+        new File(filePath).getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(filePath);
+        fos.write(stringBuilder.toString().getBytes("UTF-8"));
+        fos.close();
+        return filePath;
+    }
+
+    /**
+     * The regex based implementation of {@link KOReaderLuaReadWrite#readLuaFile} before the
+     * single pass parser, kept for comparison.
+     *
+     * @param filePath the file path of the lua file
+     * @return the converted json object, if reading and conversion successful, otherwise null
+     */
+    static JSONObject legacyReadLuaFile(String filePath) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(filePath));
+            StringBuilder stringBuilder = new StringBuilder();
+            char[] buffer = new char[10];
+            while (reader.read(buffer) != -1) {
+                stringBuilder.append(new String(buffer));
+                buffer = new char[10];
+            }
+            reader.close();
+            String content = stringBuilder.toString()
+                    .replaceAll("^--.*\n", "")
+                    .replaceFirst("return ", "")
+                    .replaceAll("\\[\"?([^\"\\[\\]{}]+)\"?] =", "\"$1\":")
+                    .replaceAll("\\\\\n", ";;;;");
+            return new JSONObject(content);
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The regex based implementation of {@link KOReaderBook#toString} before the compiled
+     * {@link KOReaderBookFormat}, kept for comparison.
+     *
+     * @param book         the book
+     * @param stringFormat the string format
+     * @return the formatted string
+     */
+    static String legacyToString(KOReaderBook book, String stringFormat) {
+        String output = stringFormat;
+        if (output.contains("%t")) {
+            String title = book.getTitle();
+            if (title != null && !title.equals(""))
+                output = output.replace("%t", title);
+        }
+        if (output.contains("%a")) {
+            String[] authors = book.getAuthors();
+            if (authors != null && authors.length != 0 && authors[0] != null)
+                output = output.replace("%a", authors[0]);
+        }
+        if (output.contains("%p")) {
+            Double percentFinished = book.getPercentFinished();
+            if (percentFinished != null)
+                output = output.replace("%p", String.valueOf(Math.round(100 * percentFinished)));
+        }
+        if (output.contains("%s")) {
+            String series = book.getSeries();
+            if (series != null && !series.equals(""))
+                output = output.replace("%s", series);
+        }
+        if (output.contains("%l")) {
+            String language = book.getLanguage();
+            if (language != null && !language.equals(""))
+                output = output.replace("%l", language);
+        }
+        if (output.contains("%f")) {
+            String fileName = new File(book.getFilePath()).getName();
+            output = output.replace("%f", fileName);
+        }
+        if (output.contains("%d")) {
+            String dirName = new File(book.getFilePath()).getParent();
+            if (dirName != null)
+                output = output.replace("%d", dirName);
+        }
+        String r1 = "\\[[^\\[\\]]*%[tapslfd][^\\[\\]]*\\]";
+        String r2 = "\\[([^\\[\\]]*)\\]";
+        while (output.matches(".*" + r2 + ".*")) {
+            while (output.matches(".*" + r1 + ".*")) {
+                output = output.replaceAll(r1, "");
+            }
+            output = output.replaceAll(r2, "$1");
+        }
+        output = output.replaceAll("%t", "(no title)");
+        output = output.replaceAll("%a", "(no author)");
+        output = output.replaceAll("%p", "0");
+        output = output.replaceAll("%s", "(no series)");
+        output = output.replaceAll("%l", "(no language)");
+        output = output.replaceAll("%f", "(no file)");
+        output = output.replaceAll("%d", "(no directory)");
+        return output;
+    }
+
+    /**
+     * The regex based implementation of {@link KOReaderLuaReadWrite#writeLuaFile} before the
+     * streaming serializer, kept for comparison.
+     *
+     * @param filePath   the file path of the lua file
+     * @param jsonObject the json object to be converted
+     * @throws IOException   if writing fails
+     * @throws JSONException if conversion fails
+     */
+    static void legacyWriteLuaFile(String filePath, JSONObject jsonObject)
+            throws IOException, JSONException {
+        String content = jsonObject.toString(4);
+        if (content.startsWith("{\""))
+            content = content.replaceFirst("^\\{", "{\n")
+                    .replaceAll("\n", "\n    ")
+                    .replaceAll("}}$", "}\n}");
+        content = "return " + content
+                .replaceAll("\"([0-9]+)\":", "[$1] =")
+                .replaceAll("\"([a-zA-Z_0-9]+)\":", "[\"$1\"] =")
+                .replaceAll(";;;;", "\\\\\n")
+                .replaceAll("( *)(.*)\\{(.+)\\}", "$1$2{\n$1    $3\n$1}")
+                .replaceAll("\\\\/", "/")
+                + "\n";
+        FileOutputStream fos = new FileOutputStream(filePath);
+        fos.write(content.getBytes());
+        fos.close();
+    }
+
+    /**
+     * The insertion sort with duplicate detection of KOReaderHistFav.readHistory before the linear
+     * time deduplication, kept for comparison.
+     *
+     * @param books the books in order of the history file
+     * @return the books sorted by last reading
+     */
+    static ArrayList<KOReaderBook> legacySortHistory(ArrayList<KOReaderBook> books) {
+        ArrayList<KOReaderBook> history = new ArrayList<>();
+        for (KOReaderBook book : books) {
+            int iBookInHistory = history.indexOf(book);
+            if (iBookInHistory != -1) {
+                if (book.getLastRead() > history.get(iBookInHistory).getLastRead())
+                    history.remove(iBookInHistory);
+                else
+                    continue;
+            }
+            int historySize = history.size();
+            if (historySize == 0) {
+                history.add(book);
+            } else {
+                for (int i = 0; i < historySize; i++) {
+                    if (book.getLastRead() > history.get(i).getLastRead()) {
+                        history.add(i, book);
+                        break;
+                    } else if (i == historySize - 1) {
+                        history.add(book);
+                        break;
+                    }
+                }
+            }
+        }
+        return history;
+    }
+}
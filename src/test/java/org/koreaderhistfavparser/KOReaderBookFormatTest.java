@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ */
+
+package org.koreaderhistfavparser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for KOReaderBookFormat class.
+ */
+public class KOReaderBookFormatTest extends KOReaderCommonTest {
+    @Test
+    public void testFormat() {
+        KOReaderBookFormat format = new KOReaderBookFormat("[(series %s[, %l]) ]%a[ (%l)]");
+        assertEquals("[(series %s[, %l]) ]%a[ (%l)]", format.getFormat());
+        assertEquals("Karl May (de)", format.format(books[0].koBook));
+        assertEquals("(no author)", format.format(books[2].koBook));
+        format = new KOReaderBookFormat("[[%t] %s] %%p [%x] [%d]/%f");
+        // group omitted with empty series, group without classifiers kept
+        assertEquals(" %0 %x " + books[0].filePath, format.format(books[0].koBook));
+    }
+
+    @Test
+    public void testUnmatchedBrackets() {
+        assertEquals(books[0].title + "]",
+                new KOReaderBookFormat("[%t]]").format(books[0].koBook));
+        // unmatched opening bracket kept, its classifiers not optional
+        assertEquals("[" + books[0].title + " de",
+                new KOReaderBookFormat("[%t [%l][%s]").format(books[0].koBook));
+        assertEquals("[(no title) ",
+                new KOReaderBookFormat("[%t [%l][%s]").format(books[2].koBook));
+        assertEquals("", new KOReaderBookFormat("").format(books[0].koBook));
+    }
+
+    @Test
+    public void testFormatTo() throws IOException {
+        KOReaderBookFormat format = new KOReaderBookFormat("%t[ (%p%)]");
+        StringBuilder stringBuilder = new StringBuilder("1. ");
+        format.formatTo(books[1].koBook, stringBuilder);
+        assertEquals("1. " + books[1].title + " (2%)", stringBuilder.toString());
+        StringWriter writer = new StringWriter();
+        format.formatTo(books[2].koBook, writer);
+        assertEquals("(no title)", writer.toString());
+        // appending leaves the string cached by format untouched
+        KOReaderBookFormat titleFormat = new KOReaderBookFormat("%t");
+        String label = titleFormat.format(books[1].koBook);
+        format.formatTo(books[1].koBook, new StringBuilder());
+        assertSame(label, titleFormat.format(books[1].koBook));
+    }
+
+    @Test
+    public void testLabelCache() {
+        KOReaderBookFormat[] formats = new KOReaderBookFormat[KOReaderBook.LABEL_CACHE_SIZE + 1];
+        for (int i = 0; i < formats.length; i++)
+            formats[i] = new KOReaderBookFormat(i + ". %t");
+        // the strings of formats used alternately are cached
+        String list = formats[0].format(books[0].koBook);
+        String details = formats[1].format(books[0].koBook);
+        assertSame(list, formats[0].format(books[0].koBook));
+        assertSame(details, formats[1].format(books[0].koBook));
+        // the string of the least recently cached format is dropped
+        for (int i = 1; i < formats.length; i++)
+            formats[i].format(books[0].koBook);
+        String again = formats[0].format(books[0].koBook);
+        assertNotSame(list, again);
+        assertEquals(list, again);
+    }
+
+    @Test
+    public void testLegacyFormat() {
+        String[] formats = {"[%a: ]%t[ (%p%)]", "[(series %s[, %l]) ]%a[ (%l)]", "%d/%f",
+                "[%t[ %a[ %s]]] %p%", "[[%t] [%x]]", "%t %a %p %s %l %f %d", "[%s]]["};
+        for (String format : formats)
+            for (TestBook book : books)
+                assertEquals(KOReaderBenchmark.legacyToString(book.koBook, format),
+                        new KOReaderBookFormat(format).format(book.koBook));
+    }
+}
@@ -20,6 +20,8 @@ package org.koreaderhistfavparser;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 
 import static org.junit.Assert.*;
 
@@ -66,7 +68,13 @@ public class KOReaderBookTest extends KOReaderCommonTest {
 
         assertFalse(book0.getFinished());
         assertTrue(book0.setFinished());
+        // own modification not read again
+        assertTrue(book0.isMetadataLoaded());
         assertTrue(book0.getFinished());
+        // unchanged sdr file not written again
+        long skippedWrites = KOReaderHistFav.getSkippedWrites();
+        assertTrue(new KOReaderBook(books[0].filePath).setFinished());
+        assertEquals(skippedWrites + 1, KOReaderHistFav.getSkippedWrites());
         assertTrue(book0.setReading());
         assertFalse(book0.getFinished());
 
@@ -78,6 +86,95 @@ public class KOReaderBookTest extends KOReaderCommonTest {
         assertFalse(book2.getFinished());
     }
 
+    @Test
+    public void testPatchSdrStatus() throws IOException {
+        KOReaderBook book = books[0].koBook;
+        File sdrFile = new File(booksDir + "/book1.sdr/metadata.epub.lua");
+        // status added by writing the complete sdr file
+        assertTrue(book.setFinished());
+
+        // status replaced by patching, the other content kept as is
+        String content = "-- comment\n"
+                + new String(Files.readAllBytes(sdrFile.toPath()), "UTF-8");
+        long lastModified = sdrFile.lastModified();
+        Files.write(sdrFile.toPath(), content.getBytes("UTF-8"));
+        sdrFile.setLastModified(lastModified + 1000);
+        assertTrue(book.getFinished());
+        assertTrue(book.setReading());
+        assertFalse(book.getFinished());
+        assertEquals(content.replace("\"complete\"", "\"reading\""),
+                new String(Files.readAllBytes(sdrFile.toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void testSdrRetention() {
+        KOReaderSdrRetention.LruRetention retention = (KOReaderSdrRetention.LruRetention)
+                KOReaderSdrRetention.leastRecentlyUsed(1 << 20);
+        KOReaderBook.setSdrRetention(retention);
+        try {
+            KOReaderBook book = new KOReaderBook(books[0].filePath);
+            String sdrFilePath = booksDir + "/book1.sdr/metadata.epub.lua";
+            File sdrFile = new File(sdrFilePath);
+            assertEquals(books[0].title, book.getTitle());
+            assertEquals(sdrFile.length(), retention.retainedBytes());
+
+            // retained document written back, values not needed for the properties kept
+            assertTrue(book.setFinished());
+            KOReaderLuaTable sdrTable = KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
+            assertEquals("complete", sdrTable.getTable("summary").getString("status"));
+            assertNotNull(sdrTable.getTable("stats"));
+            assertEquals(sdrFile.length(), retention.retainedBytes());
+
+            // retained document not used after modification by others
+            sdrTable.getTable("doc_props").put("title", "Modified title");
+            assertTrue(KOReaderLuaReadWrite.writeLuaFile(sdrFilePath, sdrTable));
+            sdrFile.setLastModified(sdrFile.lastModified() + 1000);
+            assertTrue(book.setReading());
+            sdrTable = KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
+            assertEquals("reading", sdrTable.getTable("summary").getString("status"));
+            assertEquals("Modified title", sdrTable.getTable("doc_props").getString("title"));
+
+            // documents released on close, on replacement of the policy and if exceeding budget
+            book.close();
+            assertEquals(0, retention.retainedBytes());
+            assertEquals("Modified title", book.getTitle());
+            KOReaderBook.setSdrRetention(null);
+            assertEquals(KOReaderSdrRetention.DROP_AFTER_PARSE, KOReaderBook.getSdrRetention());
+            assertEquals(0, retention.retainedBytes());
+            retention = (KOReaderSdrRetention.LruRetention)
+                    KOReaderSdrRetention.leastRecentlyUsed(sdrFile.length() - 1);
+            KOReaderBook.setSdrRetention(retention);
+            assertEquals(books[1].title, new KOReaderBook(books[1].filePath).getTitle());
+            assertEquals(0, retention.retainedBytes());
+        } finally {
+            KOReaderBook.setSdrRetention(null);
+        }
+    }
+
+    @Test
+    public void testLabelCache() {
+        KOReaderBook book = books[0].koBook;
+        String label = book.toString();
+        assertSame(label, book.toString());
+
+        // invalidated by modification of the sdr file
+        String sdrFilePath = booksDir + "/book1.sdr/metadata.epub.lua";
+        KOReaderLuaTable sdrTable = KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
+        sdrTable.getTable("doc_props").put("title", "Modified title");
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(sdrFilePath, sdrTable));
+        File sdrFile = new File(sdrFilePath);
+        sdrFile.setLastModified(sdrFile.lastModified() + 1000);
+        assertEquals(books[0].authors[0] + ": Modified title (0%)", book.toString());
+
+        // invalidated by change of the string format
+        KOReaderBook.setStringFormat("%t");
+        assertEquals("Modified title", book.toString());
+        KOReaderBook.setStringFormat(null);
+        KOReaderBookFormat format = new KOReaderBookFormat("%l");
+        assertEquals("de", format.format(book));
+        assertEquals(books[0].authors[0] + ": Modified title (0%)", book.toString());
+    }
+
     @Test
     public void testEqualsHashCode() {
         assertNotEquals(books[0], books[1]);
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ */
+
+package org.koreaderhistfavparser;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for KOReaderFileMonitor implementations KOReaderPollingFileMonitor and
+ * KOReaderWatchServiceFileMonitor.
+ */
+public class KOReaderFileMonitorTest extends KOReaderCommonTest {
+    // deadline for events of watch services, which may poll every ten seconds on some platforms
+    private static final long EVENT_TIMEOUT = 30000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private void writeFile(File file, String content) throws IOException {
+        long lastModified = file.lastModified();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(content.getBytes("UTF-8"));
+        fos.close();
+        // make sure the modification is detected despite coarse file time resolution
+        file.setLastModified(Math.max(lastModified + 1000, file.lastModified()));
+    }
+
+    private boolean waitForModification(KOReaderFileMonitor.Watch watch)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + EVENT_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (watch.modified())
+                return true;
+            Thread.sleep(50);
+        }
+        return watch.modified();
+    }
+
+    @Test
+    public void testPollingFileMonitor() throws IOException {
+        File file = new File(resBuildDir + "/polling.lua");
+        writeFile(file, "return {}");
+        KOReaderFileMonitor.Watch watch = new KOReaderPollingFileMonitor().watch(file.getPath());
+        assertTrue(watch.modified());
+        watch.update();
+        assertFalse(watch.modified());
+        writeFile(file, "return { 1 }");
+        assertTrue(watch.modified());
+
+        // modification not detected until revalidation interval elapsed
+        watch = new KOReaderPollingFileMonitor(60000).watch(file.getPath());
+        watch.update();
+        writeFile(file, "return { 2 }");
+        assertFalse(watch.modified());
+        assertEquals(60000, new KOReaderPollingFileMonitor(60000).getRevalidationInterval());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPollingFileMonitorInvalid() {
+        new KOReaderPollingFileMonitor(-1);
+    }
+
+    @Test
+    public void testWatchServiceFileMonitor() throws IOException, InterruptedException {
+        KOReaderWatchServiceFileMonitor monitor = new KOReaderWatchServiceFileMonitor();
+        // directory of file created after start of watching, in a new folder for each run
+        File directory = new File(temporaryFolder.getRoot(), "watched.sdr");
+        File file = new File(directory, "metadata.epub.lua");
+        KOReaderFileMonitor.Watch watch = monitor.watch(file.getPath());
+        assertFalse(watch.modified());
+        assertFalse(watch.modified());
+        assertTrue(directory.mkdir());
+        writeFile(file, "return {}");
+        assertTrue(waitForModification(watch));
+        watch.update();
+        assertFalse(watch.modified());
+        writeFile(file, "return { 1 }");
+        assertTrue(waitForModification(watch));
+        watch.update();
+
+        // no modification detected after own write and update
+        KOReaderHistFav histFav = new KOReaderHistFav(resBuildDir + "/koreader", monitor);
+        assertEquals(2, histFav.getHistory().size());
+        assertTrue(histFav.addBookToHistory(books[2].filePath));
+        assertEquals(3, histFav.getHistory().size());
+        assertEquals(books[2].koBook, histFav.getHistory().get(0));
+        assertEquals(books[1].title, histFav.getHistory().get(2).getTitle());
+        histFav.close();
+
+        // modifications detected on each access after closing
+        monitor.close();
+        writeFile(file, "return { 2 }");
+        assertTrue(watch.modified());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ */
+
+package org.koreaderhistfavparser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for KOReaderHistFavAsync class.
+ */
+public class KOReaderHistFavAsyncTest extends KOReaderCommonTest {
+    private KOReaderHistFav histFav;
+    // executors running their tasks only on demand
+    private QueueExecutor executor = new QueueExecutor();
+    private QueueExecutor callbackExecutor = new QueueExecutor();
+    private KOReaderHistFavAsync histFavAsync;
+
+    private class QueueExecutor implements Executor {
+        ArrayList<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll() {
+            while (!runnables.isEmpty())
+                runnables.remove(0).run();
+        }
+    }
+
+    private class RecordingCallback<T> implements KOReaderHistFavAsync.Callback<T> {
+        ArrayList<T> results = new ArrayList<>();
+        ArrayList<Exception> exceptions = new ArrayList<>();
+
+        @Override
+        public void onResult(T result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            exceptions.add(exception);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        super.setUp();
+        histFav = new KOReaderHistFav(resBuildDir + "/koreader");
+        histFavAsync = new KOReaderHistFavAsync(histFav, executor, callbackExecutor);
+    }
+
+    @Test
+    public void testCallbacks() throws ExecutionException, InterruptedException {
+        RecordingCallback<List<KOReaderBook>> callback = new RecordingCallback<>();
+        Future<List<KOReaderBook>> future = histFavAsync.getHistoryAsync(callback);
+        assertFalse(future.isDone());
+        executor.runAll();
+        assertTrue(future.isDone());
+        assertEquals(2, future.get().size());
+        // callback run by the callback executor
+        assertEquals(0, callback.results.size());
+        callbackExecutor.runAll();
+        assertEquals(1, callback.results.size());
+        assertSame(future.get(), callback.results.get(0));
+
+        RecordingCallback<Boolean> addCallback = new RecordingCallback<>();
+        histFavAsync.addBookToHistoryAsync(books[2].filePath, addCallback);
+        histFavAsync.addBookToFavoritesAsync(books[1].filePath, addCallback);
+        histFavAsync.addBookToHistoryAsync(booksDir + "/no_extension", addCallback);
+        executor.runAll();
+        callbackExecutor.runAll();
+        assertEquals(2, addCallback.results.size());
+        assertTrue(addCallback.results.get(0));
+        assertTrue(addCallback.results.get(1));
+        assertEquals(1, addCallback.exceptions.size());
+        assertEquals(IllegalArgumentException.class, addCallback.exceptions.get(0).getClass());
+        assertEquals(books[2].koBook, histFav.getHistory().get(0));
+        assertEquals(books[1].koBook, histFav.getFavorites().get(0));
+    }
+
+    @Test
+    public void testCoalescing() throws ExecutionException, InterruptedException {
+        RecordingCallback<List<KOReaderBook>> callback = new RecordingCallback<>();
+        Future<List<KOReaderBook>> future1 = histFavAsync.getFavoritesAsync(callback);
+        Future<List<KOReaderBook>> future2 = histFavAsync.getFavoritesAsync(callback);
+        histFavAsync.getHistoryAsync(null);
+        // one load for the favorites and one for the history
+        assertEquals(2, executor.runnables.size());
+        executor.runAll();
+        callbackExecutor.runAll();
+        assertSame(future1.get(), future2.get());
+        assertEquals(2, callback.results.size());
+
+        // new load after completion
+        histFavAsync.getFavoritesAsync(callback);
+        assertEquals(1, executor.runnables.size());
+        executor.runAll();
+    }
+
+    @Test
+    public void testCancellation() throws ExecutionException, InterruptedException {
+        RecordingCallback<List<KOReaderBook>> callback = new RecordingCallback<>();
+        Future<List<KOReaderBook>> future1 = histFavAsync.getHistoryAsync(callback);
+        Future<List<KOReaderBook>> future2 = histFavAsync.getHistoryAsync(callback);
+        assertTrue(future1.cancel(true));
+        assertTrue(future1.isCancelled());
+        executor.runAll();
+        callbackExecutor.runAll();
+        assertEquals(1, callback.results.size());
+        assertEquals(2, future2.get().size());
+
+        // load not run, if all requests cancelled
+        RecordingCallback<Map<String, KOReaderBook>> libraryCallback = new RecordingCallback<>();
+        Future<Map<String, KOReaderBook>> future3 = histFavAsync.getLibraryAsync(libraryCallback);
+        assertTrue(future3.cancel(false));
+        assertFalse(future3.cancel(false));
+        Future<Boolean> future4 = histFavAsync.removeBookFromLibraryAsync(books[0].filePath, null);
+        future4.cancel(true);
+        executor.runAll();
+        callbackExecutor.runAll();
+        assertEquals(2, histFav.getHistory().size());
+        assertEquals(0, libraryCallback.results.size());
+    }
+
+    @Test
+    public void testInterruptedLoad() throws IOException {
+        // an interrupted load is repeated on next access
+        String historyFilePath = histFav.getKoreaderHistoryFilePath();
+        assertEquals(2, histFav.getHistory().size());
+        KOReaderLuaTable historyTable = KOReaderLuaReadWrite.readLuaFile(historyFilePath);
+        historyTable.remove(2L);
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(historyFilePath, historyTable));
+        File historyFile = new File(historyFilePath);
+        historyFile.setLastModified(historyFile.lastModified() + 1000);
+        Thread.currentThread().interrupt();
+        assertEquals(2, histFav.getHistory().size());
+        assertTrue(Thread.interrupted());
+        assertEquals(1, histFav.getHistory().size());
+    }
+}
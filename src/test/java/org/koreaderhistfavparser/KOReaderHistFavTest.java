@@ -20,8 +20,22 @@ package org.koreaderhistfavparser;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -42,6 +56,16 @@ public class KOReaderHistFavTest extends KOReaderCommonTest {
             koBooks[i] = books[i].koBook;
     }
 
+    private void writeFile(String filePath, String content) throws IOException {
+        File file = new File(filePath);
+        long lastModified = file.lastModified();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(content.getBytes("UTF-8"));
+        fos.close();
+        // make sure the modification is detected despite coarse file time resolution
+        file.setLastModified(Math.max(lastModified + 1000, file.lastModified()));
+    }
+
     @Test
     public void testGetters() throws FileNotFoundException {
         assertEquals(koreaderDir, histFav.getKoreaderDirectoryPath());
@@ -69,6 +93,501 @@ public class KOReaderHistFavTest extends KOReaderCommonTest {
         assertEquals(3, histFav.getLibrary().size());
     }
 
+    @Test
+    public void testReadHistoryDuplicates() throws IOException {
+        String[] filePaths = new String[3];
+        for (int i = 0; i < 3; i++)
+            filePaths[i] = koBooks[i].getFilePath();
+        // book2 twice with newer time second, book3 twice with same time
+        writeFile(histFav.getKoreaderHistoryFilePath(), "return {\n"
+                + "    [1] = { [\"file\"] = \"" + filePaths[1] + "\", [\"time\"] = 10 },\n"
+                + "    [2] = { [\"file\"] = \"" + filePaths[0] + "\", [\"time\"] = 20 },\n"
+                + "    [3] = { [\"file\"] = \"" + filePaths[2] + "\", [\"time\"] = 20 },\n"
+                + "    [4] = { [\"file\"] = \"" + filePaths[1] + "\", [\"time\"] = 30 },\n"
+                + "    [5] = { [\"file\"] = \"" + filePaths[2] + "\", [\"time\"] = 20 }\n"
+                + "}\n");
+        assertEquals(3, histFav.getHistory().size());
+        assertEquals(koBooks[1], histFav.getHistory().get(0));
+        assertEquals((long) 30, (long) histFav.getHistory().get(0).getLastRead());
+        assertEquals(koBooks[0], histFav.getHistory().get(1));
+        assertEquals(koBooks[2], histFav.getHistory().get(2));
+        // duplicates removed from file
+        histFav = new KOReaderHistFav(koreaderDir);
+        assertEquals(3, histFav.getHistory().size());
+        assertEquals(3, KOReaderLuaReadWrite.readLuaFile(
+                histFav.getKoreaderHistoryFilePath()).arraySize());
+    }
+
+    @Test
+    public void testReadFavoritesDuplicates() throws IOException {
+        String[] filePaths = new String[3];
+        for (int i = 0; i < 3; i++)
+            filePaths[i] = koBooks[i].getFilePath();
+        // book1 twice with lower order second, book3 twice with same order
+        writeFile(histFav.getKoreaderCollectionFilePath(), "return {\n"
+                + "    [\"favorites\"] = {\n"
+                + "        [1] = { [\"file\"] = \"" + filePaths[0] + "\", [\"order\"] = 3 },\n"
+                + "        [2] = { [\"file\"] = \"" + filePaths[2] + "\", [\"order\"] = 2 },\n"
+                + "        [3] = { [\"file\"] = \"" + filePaths[1] + "\", [\"order\"] = 2 },\n"
+                + "        [4] = { [\"file\"] = \"" + filePaths[0] + "\", [\"order\"] = 1 },\n"
+                + "        [5] = { [\"file\"] = \"" + filePaths[2] + "\", [\"order\"] = 2 }\n"
+                + "    },\n"
+                + "    other = { file = \"kept\" } -- as is\n"
+                + "}\n");
+        assertEquals(3, histFav.getFavorites().size());
+        assertEquals(koBooks[0], histFav.getFavorites().get(0));
+        assertEquals(koBooks[2], histFav.getFavorites().get(1));
+        assertEquals(koBooks[1], histFav.getFavorites().get(2));
+        // duplicates removed from file, other collections kept
+        KOReaderLuaTable collectionTable = KOReaderLuaReadWrite.readLuaFile(
+                histFav.getKoreaderCollectionFilePath());
+        assertEquals(3, collectionTable.getTable("favorites").arraySize());
+        assertNotNull(collectionTable.getTable("other"));
+        // only the favorites replaced
+        String content = new String(Files.readAllBytes(
+                new File(histFav.getKoreaderCollectionFilePath()).toPath()), "UTF-8");
+        assertTrue(content, content.endsWith(
+                "    },\n    other = { file = \"kept\" } -- as is\n}\n"));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        // readers iterate over snapshots while writers modify history, favorites and library and
+        // read books of the history again
+        final int numberOfReaders = 8;
+        final int numberOfWriters = 3;
+        final int iterations = 200;
+        final AtomicInteger writersRunning = new AtomicInteger(numberOfWriters);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numberOfReaders; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (writersRunning.get() > 0) {
+                            List<KOReaderBook> history = histFav.getHistory();
+                            int size = history.size();
+                            HashSet<KOReaderBook> uniqueBooks = new HashSet<>();
+                            long previousLastRead = Long.MAX_VALUE;
+                            for (KOReaderBook book : history) {
+                                assertTrue(uniqueBooks.add(book));
+                                // the order of a snapshot matches its times of last reading
+                                long lastRead = book.getLastRead();
+                                assertTrue(lastRead <= previousLastRead);
+                                previousLastRead = lastRead;
+                            }
+                            assertEquals(size, history.size());
+                            previousLastRead = Long.MAX_VALUE;
+                            for (KOReaderBook book : history) {
+                                assertTrue(book.getLastRead() <= previousLastRead);
+                                previousLastRead = book.getLastRead();
+                            }
+                            for (KOReaderBook book : histFav.getFavorites())
+                                assertNotNull(book.getFilePath());
+                            for (KOReaderBook book : histFav.getLibrary().values())
+                                assertNotNull(book);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int j = 0; j < iterations; j++)
+                        assertTrue(histFav.addBookToHistory(books[j % 2].filePath));
+                } catch (Throwable e) {
+                    errors.add(e);
+                } finally {
+                    writersRunning.decrementAndGet();
+                }
+            }
+        }));
+        for (int i = 0; i < numberOfWriters - 1; i++) {
+            final String filePath = booksDir + "/concurrent" + i + ".epub";
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < iterations; j++) {
+                            assertTrue(histFav.addBookToHistory(filePath));
+                            assertTrue(histFav.addBookToFavorites(filePath));
+                            assertTrue(histFav.removeBookFromLibrary(filePath));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        writersRunning.decrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(errors.toString(), 0, errors.size());
+        assertEquals(2, histFav.getHistory().size());
+        assertEquals(2, histFav.getFavorites().size());
+        assertEquals(3, histFav.getLibrary().size());
+        // snapshots are unmodifiable
+        try {
+            histFav.getHistory().clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            assertEquals(2, histFav.getHistory().size());
+        }
+    }
+
+    @Test
+    public void testPreloadLibrary() throws ExecutionException, InterruptedException,
+            TimeoutException {
+        final List<KOReaderBook> loadedBooks =
+                Collections.synchronizedList(new ArrayList<KOReaderBook>());
+        final AtomicInteger maxLoaded = new AtomicInteger();
+        KOReaderHistFav.PreloadListener listener = new KOReaderHistFav.PreloadListener() {
+            @Override
+            public void onBookLoaded(KOReaderBook book, int loaded, int total) {
+                assertEquals(3, total);
+                loadedBooks.add(book);
+                maxLoaded.set(Math.max(maxLoaded.get(), loaded));
+            }
+        };
+        histFav.setPreloadParallelism(2);
+        assertEquals(2, histFav.getPreloadParallelism());
+        assertEquals(3, (int) histFav.preloadLibrary(listener).get());
+        assertEquals(3, loadedBooks.size());
+        assertEquals(3, maxLoaded.get());
+        assertTrue(loadedBooks.containsAll(histFav.getLibrary().values()));
+        assertEquals(books[1].title, histFav.getBook(books[1].filePath).getTitle());
+        assertEquals(0, (int) histFav.preloadMetadata(new ArrayList<KOReaderBook>(), null).get());
+
+        // cancelled before all books loaded
+        histFav.setPreloadParallelism(1);
+        ArrayList<KOReaderBook> manyBooks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            manyBooks.add(new KOReaderBook(booksDir + "/many" + i + ".epub"));
+        final AtomicInteger loadedManyBooks = new AtomicInteger();
+        Future<Integer> future = histFav.preloadMetadata(manyBooks,
+                new KOReaderHistFav.PreloadListener() {
+            @Override
+            public void onBookLoaded(KOReaderBook book, int loaded, int total) {
+                loadedManyBooks.incrementAndGet();
+            }
+        });
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        Thread.sleep(100);
+        assertTrue(loadedManyBooks.get() < 1000);
+
+        // completed with the exception of a failed listener
+        final AtomicInteger calls = new AtomicInteger();
+        future = histFav.preloadLibrary(new KOReaderHistFav.PreloadListener() {
+            @Override
+            public void onBookLoaded(KOReaderBook book, int loaded, int total) {
+                if (calls.incrementAndGet() == 1)
+                    throw new IllegalStateException("Listener failed");
+            }
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(IllegalStateException.class, e.getCause().getClass());
+        }
+        assertEquals(3, calls.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPreloadParallelismInvalid() {
+        histFav.setPreloadParallelism(0);
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        String snapshotFilePath = resBuildDir + "/cache/snapshot.bin";
+        // sdr files modified within the time resolution of their stamps would be read again
+        File[] sdrDirs = new File(booksDir).listFiles();
+        for (File sdrDir : sdrDirs)
+            if (sdrDir.getName().endsWith(".sdr"))
+                for (File sdrFile : sdrDir.listFiles())
+                    sdrFile.setLastModified(System.currentTimeMillis() - 10000);
+        histFav = new KOReaderHistFav(koreaderDir, KOReaderPollingFileMonitor.DEFAULT,
+                snapshotFilePath);
+        assertEquals(books[1].title, histFav.getHistory().get(1).getTitle());
+        assertTrue(histFav.addBookToHistory(books[2].filePath));
+        assertTrue(histFav.saveSnapshot());
+        assertArrayEquals(new String[]{"snapshot.bin"},
+                new File(resBuildDir + "/cache").list());
+        assertFalse(new KOReaderHistFav(koreaderDir).saveSnapshot());
+
+        // restored without reading history, collection and unmodified sdr files
+        KOReaderHistFav restoredHistFav = new KOReaderHistFav(koreaderDir,
+                KOReaderPollingFileMonitor.DEFAULT, snapshotFilePath);
+        assertEquals(histFav.getLibrary(), restoredHistFav.getLibrary());
+        assertEquals(histFav.getHistory(), restoredHistFav.getHistory());
+        assertEquals(histFav.getFavorites(), restoredHistFav.getFavorites());
+        KOReaderBook book = restoredHistFav.getHistory().get(2);
+        assertTrue(book.isMetadataLoaded());
+        assertEquals(books[1].title, book.getTitle());
+        assertEquals(histFav.getHistory().get(2).getLastRead(), book.getLastRead());
+        assertArrayEquals(books[1].authors, book.getAuthors());
+        assertEquals(books[1].percentFinished, book.getPercentFinished());
+
+        // modified files read again
+        writeFile(koreaderDir + "/history.lua", "return {}");
+        String sdrFilePath = booksDir + "/book2.sdr/metadata.epub.lua";
+        KOReaderLuaTable sdrTable = KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
+        sdrTable.getTable("doc_props").put("title", "Modified title");
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(sdrFilePath, sdrTable));
+        File sdrFile = new File(sdrFilePath);
+        sdrFile.setLastModified(sdrFile.lastModified() + 1000);
+        restoredHistFav = new KOReaderHistFav(koreaderDir, KOReaderPollingFileMonitor.DEFAULT,
+                snapshotFilePath);
+        assertEquals(0, restoredHistFav.getHistory().size());
+        assertEquals(histFav.getFavorites(), restoredHistFav.getFavorites());
+        book = restoredHistFav.getBook(books[1].filePath);
+        assertFalse(book.isMetadataLoaded());
+        assertEquals("Modified title", book.getTitle());
+
+        // invalid snapshot ignored
+        writeFile(snapshotFilePath, "invalid");
+        restoredHistFav = new KOReaderHistFav(koreaderDir, KOReaderPollingFileMonitor.DEFAULT,
+                snapshotFilePath);
+        assertEquals(histFav.getFavorites(), restoredHistFav.getFavorites());
+        assertEquals(2, restoredHistFav.getLibrary().size());
+    }
+
+    @Test
+    public void testWriteBehind() throws IOException, InterruptedException {
+        String historyFilePath = histFav.getKoreaderHistoryFilePath();
+        String collectionFilePath = histFav.getKoreaderCollectionFilePath();
+        histFav.setWriteDelay(60000);
+        assertEquals(60000, histFav.getWriteDelay());
+        assertTrue(histFav.removeBookFromHistory(books[0].filePath));
+        assertTrue(histFav.removeBookFromHistory(books[1].filePath));
+        assertTrue(histFav.addBookToFavorites(books[1].filePath));
+        assertEquals(0, histFav.getHistory().size());
+        assertEquals(2, KOReaderLuaReadWrite.readLuaFile(historyFilePath).arraySize());
+        assertEquals(2, KOReaderLuaReadWrite.readLuaFile(collectionFilePath)
+                .getTable("favorites").arraySize());
+        assertTrue(histFav.flush());
+        assertEquals(0, new KOReaderHistFav(koreaderDir).getHistory().size());
+        assertEquals(3, new KOReaderHistFav(koreaderDir).getFavorites().size());
+
+        // written after the delay
+        histFav.setWriteDelay(100);
+        assertTrue(histFav.addBookToHistory(books[0].filePath));
+        KOReaderLuaTable historyTable = null;
+        for (int i = 0; i < 100 && (historyTable == null || historyTable.arraySize() == 0); i++) {
+            Thread.sleep(50);
+            // null while partially written
+            historyTable = KOReaderLuaReadWrite.readLuaFile(historyFilePath);
+        }
+        assertEquals(1, historyTable.arraySize());
+
+        // pending modifications merged with the file modified by others, which removed book 0
+        histFav.setWriteDelay(60000);
+        assertTrue(histFav.addBookToHistory(books[1].filePath));
+        writeFile(historyFilePath, "return {}");
+        assertEquals(1, histFav.getHistory().size());
+        assertEquals(books[1].koBook, histFav.getHistory().get(0));
+        assertEquals(1, KOReaderLuaReadWrite.readLuaFile(historyFilePath).arraySize());
+
+        // pending modifications written on close
+        assertTrue(histFav.removeBookFromFavorites(books[1].filePath));
+        histFav.close();
+        assertEquals(0, histFav.getWriteDelay());
+        assertEquals(2, new KOReaderHistFav(koreaderDir).getFavorites().size());
+    }
+
+    @Test
+    public void testBookStatus() {
+        Map<String, KOReaderBookStatus> statuses =
+                histFav.getDirectoryStatuses(booksDir + "/../books");
+        assertEquals(3, statuses.size());
+        KOReaderBookStatus status = statuses.get("book1.epub");
+        assertEquals(koBooks[0], status.getBook());
+        assertTrue(status.isInHistory());
+        assertTrue(status.isInFavorites());
+        assertTrue(statuses.get("book2.epub").isInHistory());
+        assertFalse(statuses.get("book2.epub").isInFavorites());
+        assertTrue(statuses.get("book2.epub").getFinished());
+        assertEquals(books[1].percentFinished, statuses.get("book2.epub").getPercentFinished());
+        assertFalse(statuses.get("book3.epub").isInHistory());
+        assertTrue(statuses.get("book3.epub").isInFavorites());
+        assertTrue(histFav.getDirectoryStatuses(resBuildDir).isEmpty());
+
+        // looked up by other than the unique file path
+        assertSame(status, histFav.getBookStatus(booksDir + "/../books/book1.epub"));
+        assertSame(status, histFav.getBookStatus(booksDir + "/../books/book1.epub"));
+        assertNull(histFav.getBookStatus(booksDir + "/no_book.epub"));
+
+        // index replaced after modification, earlier snapshot unchanged
+        assertTrue(histFav.addBookToHistory(books[2].filePath));
+        assertTrue(histFav.getBookStatus(books[2].filePath).isInHistory());
+        assertTrue(histFav.getDirectoryStatuses(booksDir).get("book3.epub").isInHistory());
+        assertFalse(statuses.get("book3.epub").isInHistory());
+    }
+
+    @Test
+    public void testDirectoryStats() throws IOException {
+        long lastRead = histFav.getHistory().get(0).getLastRead();
+        for (String directoryPath : new String[] {booksDir, resBuildDir + "/../test-res"}) {
+            KOReaderDirectoryStats stats = histFav.getDirectoryStats(directoryPath);
+            assertEquals(3, stats.getBooks());
+            assertEquals(2, stats.getReadBooks());
+            assertEquals(2, stats.getFavoriteBooks());
+            assertEquals(1, stats.getFinishedBooks());
+            assertEquals((books[0].percentFinished + books[1].percentFinished) / 2,
+                    stats.getAverageProgress(), 1e-9);
+            assertEquals(lastRead, (long) stats.getLastRead());
+        }
+        KOReaderDirectoryStats stats = histFav.getDirectoryStats(booksDir + "/missing");
+        assertEquals(0, stats.getBooks());
+        assertNull(stats.getAverageProgress());
+
+        // updated with history, favorites and properties
+        assertTrue(histFav.removeBookFromHistory(books[0].filePath));
+        assertTrue(histFav.getBook(books[0].filePath).setFinished());
+        assertTrue(histFav.removeBookFromLibrary(books[2].filePath));
+        String sdrFilePath = booksDir + "/book2.sdr/metadata.epub.lua";
+        KOReaderLuaTable sdrTable = KOReaderLuaReadWrite.readLuaFile(sdrFilePath);
+        sdrTable.put("percent_finished", 0.5);
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(sdrFilePath, sdrTable));
+        File sdrFile = new File(sdrFilePath);
+        sdrFile.setLastModified(sdrFile.lastModified() + 1000);
+        assertEquals(0.5, histFav.getBook(books[1].filePath).getPercentFinished(), 1e-9);
+        stats = histFav.getDirectoryStats(booksDir);
+        assertEquals(2, stats.getBooks());
+        assertEquals(1, stats.getReadBooks());
+        assertEquals(1, stats.getFavoriteBooks());
+        assertEquals(2, stats.getFinishedBooks());
+        assertEquals((books[0].percentFinished + 0.5) / 2, stats.getAverageProgress(), 1e-9);
+        assertEquals((long) histFav.getHistory().get(0).getLastRead(), (long) stats.getLastRead());
+        assertTrue(stats.getLastRead() < lastRead);
+
+        // updated with books added to the library, also by an edit action
+        assertTrue(histFav.addBookToHistory(books[2].filePath));
+        assertTrue(histFav.edit(new KOReaderHistFav.EditAction() {
+            @Override
+            public void edit(KOReaderHistFav.Editor editor) {
+                editor.addBookToFavorites(booksDir + "/sub/added.epub");
+            }
+        }));
+        stats = histFav.getDirectoryStats(booksDir);
+        assertEquals(4, stats.getBooks());
+        assertEquals(2, stats.getReadBooks());
+        assertEquals(2, stats.getFavoriteBooks());
+        assertEquals((long) histFav.getHistory().get(0).getLastRead(), (long) stats.getLastRead());
+        assertEquals(1, histFav.getDirectoryStats(booksDir + "/sub").getFavoriteBooks());
+        assertTrue(histFav.removeBookFromLibrary(booksDir + "/sub/added.epub"));
+        assertEquals(0, histFav.getDirectoryStats(booksDir + "/sub").getBooks());
+        assertEquals(3, histFav.getDirectoryStats(booksDir).getBooks());
+    }
+
+    @Test
+    public void testMergeModificationsByOthers() throws IOException {
+        // modifications by others not detected until revalidation interval elapsed
+        histFav = new KOReaderHistFav(koreaderDir, new KOReaderPollingFileMonitor(60000));
+        String historyFilePath = histFav.getKoreaderHistoryFilePath();
+        String collectionFilePath = histFav.getKoreaderCollectionFilePath();
+        assertEquals(2, histFav.getHistory().size());
+        assertEquals(2, histFav.getFavorites().size());
+
+        // KOReader removed book 1 and added book 3 to the history
+        long[] lastReads = {0, histFav.getHistory().get(1).getLastRead(), 2000000000L};
+        KOReaderLuaTable historyTable = new KOReaderLuaTable();
+        for (int i : new int[] {2, 1}) {
+            KOReaderLuaTable entryTable = new KOReaderLuaTable();
+            entryTable.put("file", koBooks[i].getFilePath());
+            entryTable.put("time", lastReads[i]);
+            historyTable.add(entryTable);
+        }
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(historyFilePath, historyTable));
+        assertTrue(histFav.removeBookFromHistory(koBooks[1].getFilePath()));
+        assertEquals(Collections.singletonList(koBooks[2]), histFav.getHistory());
+        historyTable = KOReaderLuaReadWrite.readLuaFile(historyFilePath);
+        assertEquals(1, historyTable.arraySize());
+        assertEquals(koBooks[2].getFilePath(), historyTable.getTable(1L).getString("file"));
+
+        // KOReader added book 2 to the favorites
+        KOReaderLuaTable collectionTable = KOReaderLuaReadWrite.readLuaFile(collectionFilePath);
+        KOReaderLuaTable entryTable = new KOReaderLuaTable();
+        entryTable.put("file", koBooks[1].getFilePath());
+        entryTable.put("order", 3L);
+        collectionTable.getTable("favorites").add(entryTable);
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(collectionFilePath, collectionTable));
+        assertTrue(histFav.removeBookFromFavorites(koBooks[2].getFilePath()));
+        assertEquals(Arrays.asList(koBooks[0], koBooks[1]), histFav.getFavorites());
+        assertEquals(Arrays.asList(koBooks[0], koBooks[1]),
+                new KOReaderHistFav(koreaderDir).getFavorites());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteDelayInvalid() {
+        histFav.setWriteDelay(-1);
+    }
+
+    @Test
+    public void testEdit() throws FileNotFoundException {
+        String[] filePaths = {books[0].filePath, books[1].filePath, books[2].filePath};
+        assertTrue(histFav.removeBooksFromLibrary(Arrays.asList(filePaths[0], filePaths[1])));
+        assertEquals(0, histFav.getHistory().size());
+        assertEquals(Collections.singletonList(koBooks[2]), histFav.getFavorites());
+        assertEquals(1, histFav.getLibrary().size());
+        assertTrue(histFav.addBooksToHistory(Arrays.asList(filePaths[0], filePaths[1])));
+        assertTrue(histFav.addBooksToFavorites(Arrays.asList(filePaths)));
+        assertEquals(Arrays.asList(koBooks[1], koBooks[0]), histFav.getHistory());
+        assertEquals(Arrays.asList(koBooks[2], koBooks[1], koBooks[0]), histFav.getFavorites());
+        assertTrue(histFav.removeBooksFromFavorites(Arrays.asList(filePaths[0], filePaths[0])));
+        assertTrue(histFav.removeBooksFromHistory(Collections.singletonList(filePaths[1])));
+
+        // written at once
+        final KOReaderHistFav.Editor[] editors = new KOReaderHistFav.Editor[1];
+        assertTrue(histFav.edit(new KOReaderHistFav.EditAction() {
+            @Override
+            public void edit(KOReaderHistFav.Editor editor) {
+                assertTrue(editor.moveBookInFavorites(books[2].filePath, 1));
+                assertFalse(editor.moveBookInFavorites(books[0].filePath, 0));
+                assertTrue(editor.addBookToHistory(books[2].filePath));
+                assertTrue(editor.removeBookFromLibrary(books[0].filePath));
+                assertFalse(editor.removeBookFromHistory(books[0].filePath));
+                editors[0] = editor;
+            }
+        }));
+        KOReaderHistFav readHistFav = new KOReaderHistFav(koreaderDir);
+        assertEquals(Collections.singletonList(koBooks[2]), readHistFav.getHistory());
+        assertEquals(Arrays.asList(koBooks[1], koBooks[2]), readHistFav.getFavorites());
+        assertEquals(readHistFav.getLibrary().keySet(), histFav.getLibrary().keySet());
+        try {
+            editors[0].addBookToLibrary(books[0].filePath);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(2, histFav.getLibrary().size());
+        }
+
+        // nothing applied if the edit action fails
+        try {
+            histFav.edit(new KOReaderHistFav.EditAction() {
+                @Override
+                public void edit(KOReaderHistFav.Editor editor) {
+                    editor.addBookToLibrary(books[0].filePath);
+                    editor.removeBookFromLibrary(books[1].filePath);
+                    editor.moveBookInFavorites(books[2].filePath, 2);
+                }
+            });
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            assertEquals(readHistFav.getLibrary().keySet(), histFav.getLibrary().keySet());
+            assertEquals(readHistFav.getFavorites(), histFav.getFavorites());
+        }
+    }
+
     @Test
     public void testExternalStoragePath() throws FileNotFoundException {
         assertEquals("/storage/emulated/0", KOReaderHistFav.getExternalStoragePath());
@@ -76,6 +595,33 @@ public class KOReaderHistFavTest extends KOReaderCommonTest {
         assertEquals(booksDir, KOReaderHistFav.getExternalStoragePath());
     }
 
+    @Test
+    public void testFilePathCache() throws IOException {
+        String filePath = resBuildDir + "/moved/book1.epub";
+        String uniqueFilePath = KOReaderHistFav.uniqueFilePath(filePath);
+        assertEquals(new File(filePath).getCanonicalPath(), uniqueFilePath);
+        long hits = KOReaderHistFav.getFilePathCacheHits();
+        long misses = KOReaderHistFav.getFilePathCacheMisses();
+        assertEquals(uniqueFilePath, KOReaderHistFav.uniqueFilePath(filePath));
+        // unique file paths are known to be unique
+        assertEquals(uniqueFilePath, KOReaderHistFav.uniqueFilePath(uniqueFilePath));
+        assertEquals(hits + 2, KOReaderHistFav.getFilePathCacheHits());
+        assertEquals(misses, KOReaderHistFav.getFilePathCacheMisses());
+        assertTrue(KOReaderHistFav.getFilePathCacheHitRate() > 0);
+
+        // cached until invalidated
+        File link = new File(resBuildDir + "/moved");
+        link.delete();
+        Files.createSymbolicLink(link.toPath(), new File(booksDir).getAbsoluteFile().toPath());
+        assertEquals(uniqueFilePath, KOReaderHistFav.uniqueFilePath(filePath));
+        KOReaderHistFav.invalidateFilePathCache(filePath);
+        assertEquals(koBooks[0].getFilePath(), KOReaderHistFav.uniqueFilePath(filePath));
+        assertEquals(misses + 1, KOReaderHistFav.getFilePathCacheMisses());
+        link.delete();
+        KOReaderHistFav.invalidateFilePathCache();
+        assertEquals(uniqueFilePath, KOReaderHistFav.uniqueFilePath(filePath));
+    }
+
     @Test
     public void testAddRemoveBook() {
         // manipulates KOReader setting files history.lua and settings/collection.lua
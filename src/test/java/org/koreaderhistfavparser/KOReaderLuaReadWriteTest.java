@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ */
+
+package org.koreaderhistfavparser;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for KOReaderLuaReadWrite, KOReaderLuaParser, KOReaderLuaSerializer and
+ * KOReaderLuaTable classes.
+ */
+public class KOReaderLuaReadWriteTest extends KOReaderCommonTest {
+    private String writeFile(String fileName, String content) throws IOException {
+        String filePath = resBuildDir + "/" + fileName;
+        FileOutputStream fos = new FileOutputStream(filePath);
+        fos.write(content.getBytes("UTF-8"));
+        fos.close();
+        return filePath;
+    }
+
+    private String readFile(String filePath) throws IOException {
+        return new String(Files.readAllBytes(new File(filePath).toPath()), "UTF-8");
+    }
+
+    @Test
+    public void testReadSdr() {
+        KOReaderLuaTable sdrTable = KOReaderLuaReadWrite.readLuaFile(
+                booksDir + "/book2.sdr/metadata.epub.lua");
+        assertNotNull(sdrTable);
+        assertEquals("complete", sdrTable.getTable("summary").getString("status"));
+        assertEquals("Max Brod\nFranz Kafka", sdrTable.getTable("doc_props").getString("authors"));
+        assertEquals(books[1].title, sdrTable.getTable("doc_props").getString("title"));
+        assertEquals(60, sdrTable.getTable("stats").getLong("pages", 0));
+        assertEquals(0.017543859649123, sdrTable.getDouble("percent_finished", 0), 0);
+        assertEquals(Boolean.TRUE, sdrTable.get("bookmarks_sorted"));
+        assertEquals(0, sdrTable.getTable("bookmarks").arraySize());
+        assertEquals(0, sdrTable.getTable("bookmarks").hashSize());
+    }
+
+    @Test
+    public void testReadSyntax() throws IOException {
+        String filePath = writeFile("syntax.lua", "-- comment\n"
+                + "--[[ block\ncomment ]]\n"
+                + "return {\n"
+                + "    [1] = \"a\\\"b\\\\c\\nd\\65\\x42\",\n"
+                + "    [\"key\"] = 'single',\n"
+                + "    name = -1.5e3, -- trailing comment\n"
+                + "    [\"nested\"] = { \"x\", 'y'; nil, false, },\n"
+                + "    [\"hex\"] = 0x1F,\n"
+                + "    [3] = 3,\n"
+                + "    [2.0] = 2,\n"
+                + "}\n");
+        KOReaderLuaTable table = KOReaderLuaReadWrite.readLuaFile(filePath);
+        assertNotNull(table);
+        assertEquals("a\"b\\c\ndAB", table.getString(1L));
+        assertEquals("single", table.getString("key"));
+        assertEquals(-1500, table.getDouble("name", 0), 0);
+        assertEquals(Double.class, table.get("name").getClass());
+        KOReaderLuaTable nested = table.getTable("nested");
+        assertEquals(2, nested.arraySize());
+        assertEquals("x", nested.getString(1L));
+        assertEquals("y", nested.getString(2L));
+        assertNull(nested.get(3));
+        assertEquals(Boolean.FALSE, nested.get(4));
+        assertEquals(31, table.getLong("hex", 0));
+        assertEquals(Long.class, table.get("hex").getClass());
+        // [2.0] is the same key as [2] and moves [3] to the array part
+        assertEquals(3, table.arraySize());
+        assertEquals(2, table.getLong(2L, 0));
+        assertEquals(3, table.getLong(3.0, 0));
+    }
+
+    @Test
+    public void testReadNonFinite() throws IOException {
+        // as serialized by KOReader for nan, inf and -inf
+        String filePath = writeFile("nonfinite.lua", "return {\n"
+                + "    [\"skipped\"] = { nan, inf, -inf, 0/0, 1/0, -1/0 },\n"
+                + "    [\"a\"] = nan,\n"
+                + "    [\"b\"] = inf,\n"
+                + "    [\"c\"] = -inf,\n"
+                + "    [\"d\"] = 0/0,\n"
+                + "    [\"e\"] = 1/0,\n"
+                + "    [\"f\"] = -1/0,\n"
+                + "    [1] = nan,\n"
+                + "}\n");
+        KOReaderLuaTable table = KOReaderLuaReadWrite.readLuaFile(filePath);
+        assertNotNull(table);
+        assertTrue(Double.isNaN(table.getDouble("a", 0)));
+        assertEquals(Double.POSITIVE_INFINITY, table.getDouble("b", 0), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, table.getDouble("c", 0), 0);
+        assertTrue(Double.isNaN(table.getDouble("d", 0)));
+        assertEquals(Double.POSITIVE_INFINITY, table.getDouble("e", 0), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, table.getDouble("f", 0), 0);
+        assertTrue(Double.isNaN(table.getDouble(1L, 0)));
+        assertEquals(6, table.getTable("skipped").arraySize());
+        assertEquals(Double.NEGATIVE_INFINITY, table.getTable("skipped").getDouble(6L, 0), 0);
+
+        // skipped in subtrees not projected
+        table = KOReaderLuaReadWrite.readLuaFile(filePath,
+                KOReaderLuaParser.Projection.of("f"));
+        assertNotNull(table);
+        assertEquals(1, table.hashSize());
+        assertEquals(Double.NEGATIVE_INFINITY, table.getDouble("f", 0), 0);
+        assertNull(KOReaderLuaReadWrite.readLuaFile(writeFile("invalid6.lua",
+                "return { [\"a\"] = 1/ }")));
+    }
+
+    @Test
+    public void testReadProjection() throws IOException {
+        KOReaderLuaParser.Projection projection = KOReaderLuaParser.Projection.of(
+                "summary.status", "doc_props.authors", "stats", "stats.pages", "font_hinting");
+        KOReaderLuaTable sdrTable = KOReaderLuaReadWrite.readLuaFile(
+                booksDir + "/book2.sdr/metadata.epub.lua", projection);
+        assertNotNull(sdrTable);
+        assertEquals(0, sdrTable.arraySize());
+        assertEquals(4, sdrTable.hashSize());
+        assertEquals("complete", sdrTable.getTable("summary").getString("status"));
+        assertEquals(1, sdrTable.getTable("doc_props").hashSize());
+        assertEquals("Max Brod\nFranz Kafka", sdrTable.getTable("doc_props").getString("authors"));
+        // whole table for "stats", although "stats.pages" given as well
+        assertEquals(9, sdrTable.getTable("stats").hashSize());
+        assertEquals(2, sdrTable.getLong("font_hinting", 0));
+        assertNull(sdrTable.get("bookmarks"));
+        assertNull(sdrTable.get("percent_finished"));
+
+        // parsing stops after all key paths have been read, skipped values are still validated
+        String filePath = writeFile("projection.lua", "return {\n"
+                + "    [\"skipped\"] = { [1] = \"}\\\"{\", [\"a\"] = { 'x', -0.5 } },\n"
+                + "    [1] = { [\"b\"] = 2, [\"c\"] = 3 },\n"
+                + "    [\"last\"] = true,\n"
+                + "} invalid");
+        KOReaderLuaTable table = KOReaderLuaReadWrite.readLuaFile(filePath,
+                KOReaderLuaParser.Projection.of("1.c", "last"));
+        assertNotNull(table);
+        assertEquals(1, table.arraySize());
+        assertEquals(1, table.getTable(1L).hashSize());
+        assertEquals(3, table.getTable(1L).getLong("c", 0));
+        assertEquals(Boolean.TRUE, table.get("last"));
+        assertNull(KOReaderLuaReadWrite.readLuaFile(filePath,
+                KOReaderLuaParser.Projection.of("missing")));
+        assertNull(KOReaderLuaReadWrite.readLuaFile(writeFile("invalid5.lua",
+                "return { [\"skipped\"] = { \"a\" , [\"last\"] = 1 }"),
+                KOReaderLuaParser.Projection.of("last")));
+    }
+
+    @Test
+    public void testReadEntries() throws IOException {
+        final ArrayList<Object> keys = new ArrayList<>();
+        final ArrayList<Object> values = new ArrayList<>();
+        KOReaderLuaParser.EntryHandler handler = new KOReaderLuaParser.EntryHandler() {
+            @Override
+            public boolean onEntry(Object key, Object value) {
+                keys.add(key);
+                values.add(value);
+                return keys.size() < 3;
+            }
+        };
+        assertTrue(KOReaderLuaReadWrite.readLuaFileEntries(
+                resBuildDir + "/koreader/settings/collection.lua", handler, "favorites"));
+        assertEquals(2, keys.size());
+        assertEquals(1L, keys.get(0));
+        assertEquals("build/test-res/books/book3.epub",
+                ((KOReaderLuaTable) values.get(1)).getString("file"));
+
+        keys.clear();
+        values.clear();
+        String filePath = writeFile("entries.lua", "return {\n"
+                + "    [\"other\"] = { [\"favorites\"] = { 1 } },\n"
+                + "    [\"favorites\"] = { 'a', [\"b\"] = 2.5, 'c', nil, true, 'e' },\n"
+                + "} invalid");
+        assertTrue(KOReaderLuaReadWrite.readLuaFileEntries(filePath, handler, "favorites"));
+        // handler stops after the third entry
+        assertEquals(3, keys.size());
+        assertEquals("a", values.get(0));
+        assertEquals("b", keys.get(1));
+        assertEquals(2.5, values.get(1));
+        assertEquals(2L, keys.get(2));
+        assertFalse(KOReaderLuaReadWrite.readLuaFileEntries(filePath, handler, "missing"));
+        assertFalse(KOReaderLuaReadWrite.readLuaFileEntries(filePath, handler, "other", "1"));
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        // files written by KOReader are reproduced, except for the comment in the first line
+        String[] filePaths = {booksDir + "/book1.sdr/metadata.epub.lua",
+                booksDir + "/book2.sdr/metadata.epub.lua", resBuildDir + "/koreader/history.lua",
+                resBuildDir + "/koreader/settings/collection.lua"};
+        for (String filePath : filePaths) {
+            String content = readFile(filePath).replaceFirst("^--.*\n", "");
+            assertTrue(KOReaderLuaReadWrite.writeLuaFile(filePath,
+                    KOReaderLuaReadWrite.readLuaFile(filePath)));
+            assertEquals(content, readFile(filePath));
+        }
+
+        KOReaderLuaTable table = new KOReaderLuaTable();
+        KOReaderLuaTable nested = new KOReaderLuaTable();
+        nested.add("a\"b\\c\nd\te\u0001/f");
+        nested.put("x y", 2.0);
+        nested.put("z", 0.25);
+        table.put("nested", nested);
+        table.put("empty", new KOReaderLuaTable());
+        table.put(5L, false);
+        String filePath = resBuildDir + "/write.lua";
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(filePath, table));
+        assertEquals("return {\n"
+                + "    [\"nested\"] = {\n"
+                + "        [1] = \"a\\\"b\\\\c\\\nd\\te\\001/f\",\n"
+                + "        [\"x y\"] = 2,\n"
+                + "        [\"z\"] = 0.25\n"
+                + "    },\n"
+                + "    [\"empty\"] = {},\n"
+                + "    [5] = false\n"
+                + "}\n", readFile(filePath));
+        KOReaderLuaTable readTable = KOReaderLuaReadWrite.readLuaFile(filePath);
+        assertEquals(nested.get(1), readTable.getTable("nested").get(1));
+
+        nested.put("z", Double.NaN);
+        assertFalse(KOReaderLuaReadWrite.writeLuaFile(filePath, table));
+    }
+
+    @Test
+    public void testPatch() throws IOException {
+        String content = "-- comment\nreturn {\n    [\"a\"] = { [\"b\"] = \"x\", c = {} },\n"
+                + "    [\"d\"] = 1\n}\n";
+        String filePath = writeFile("patch.lua", content);
+        assertTrue(KOReaderLuaReadWrite.patchLuaFile(filePath, "y\"z", "a", "b"));
+        content = content.replace("\"x\"", "\"y\\\"z\"");
+        assertEquals(content, readFile(filePath));
+        assertTrue(KOReaderLuaReadWrite.patchLuaFile(filePath, 2.5, "d"));
+        content = content.replace("= 1", "= 2.5");
+        assertEquals(content, readFile(filePath));
+        assertEquals("y\"z", KOReaderLuaReadWrite.readLuaFile(filePath).getTable("a").get("b"));
+
+        // unchanged value not written
+        long skippedWrites = KOReaderHistFav.getSkippedWrites();
+        assertTrue(KOReaderLuaReadWrite.patchLuaFile(filePath, 2.5, "d"));
+        assertEquals(skippedWrites + 1, KOReaderHistFav.getSkippedWrites());
+
+        // tables replaced by tables, indented for their depth
+        KOReaderLuaTable table = new KOReaderLuaTable();
+        table.add("e");
+        KOReaderFileStamp stamp = null;
+        assertTrue(KOReaderLuaReadWrite.patchLuaFile(filePath, table, stamp, "a", "c"));
+        content = content.replace("c = {}", "c = {\n            [1] = \"e\"\n        }");
+        assertEquals(content, readFile(filePath));
+        assertFalse(KOReaderLuaReadWrite.patchLuaFile(filePath, table, stamp, "d"));
+        // not patched, if modified since the stamp was taken
+        stamp = new KOReaderFileStamp(1, 1, null, 0);
+        assertFalse(KOReaderLuaReadWrite.patchLuaFile(filePath, table, stamp, "a"));
+
+        // missing values and tables not patched
+        assertFalse(KOReaderLuaReadWrite.patchLuaFile(filePath, 1L, "a", "c"));
+        assertFalse(KOReaderLuaReadWrite.patchLuaFile(filePath, 1L, "a", "e"));
+        assertFalse(KOReaderLuaReadWrite.patchLuaFile(filePath, 1L, "d", "b"));
+        assertFalse(KOReaderLuaReadWrite.patchLuaFile(resBuildDir + "/missing.lua", 1L, "d"));
+        assertEquals(content, readFile(filePath));
+    }
+
+    @Test
+    public void testSkipUnchangedWrite() throws IOException {
+        String filePath = writeFile("skip.lua", "return {\n    [1] = \"a\",\n    [\"b\"] = 2\n}\n");
+        File file = new File(filePath);
+        // not modified within the resolution of modification times
+        file.setLastModified(file.lastModified() - 10000);
+        long lastModified = file.lastModified();
+        long writtenFiles = KOReaderHistFav.getWrittenFiles();
+        long skippedWrites = KOReaderHistFav.getSkippedWrites();
+
+        // unmodified table read completely not written
+        KOReaderLuaTable table = KOReaderLuaReadWrite.readLuaFile(filePath);
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(filePath, table));
+        assertEquals(skippedWrites + 1, KOReaderHistFav.getSkippedWrites());
+        assertEquals(writtenFiles, KOReaderHistFav.getWrittenFiles());
+        assertEquals(lastModified, file.lastModified());
+
+        // modified table written once
+        table.put("b", 3L);
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(filePath, table));
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(filePath, table));
+        assertEquals(skippedWrites + 2, KOReaderHistFav.getSkippedWrites());
+        assertEquals(writtenFiles + 1, KOReaderHistFav.getWrittenFiles());
+        assertEquals(3, KOReaderLuaReadWrite.readLuaFile(filePath).getLong("b", 0));
+
+        // modification by others with same modification time and length detected
+        String content = readFile(filePath);
+        lastModified = file.lastModified();
+        writeFile("skip.lua", content.replace("3", "4"));
+        file.setLastModified(lastModified);
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(filePath, table));
+        assertEquals(writtenFiles + 2, KOReaderHistFav.getWrittenFiles());
+        assertEquals(content, readFile(filePath));
+    }
+
+    @Test
+    public void testConditionalWrite() throws IOException {
+        String filePath = writeFile("conditional.lua", "return {\n    [\"a\"] = 1\n}\n");
+        File file = new File(filePath);
+        KOReaderLuaTable table = KOReaderLuaReadWrite.readLuaFile(filePath);
+        KOReaderFileStamp stamp = KOReaderLuaReadWrite.getStamp(filePath);
+        assertTrue(stamp.matches(filePath));
+
+        // not written after modification by others, even within the time resolution
+        long lastModified = file.lastModified();
+        writeFile("conditional.lua", "return {\n    [\"a\"] = 2\n}\n");
+        file.setLastModified(lastModified);
+        assertFalse(stamp.matches(filePath));
+        table.put("b", 3L);
+        assertFalse(KOReaderLuaReadWrite.writeLuaFile(filePath, table, stamp));
+        assertEquals(2, KOReaderLuaReadWrite.readLuaFile(filePath).getLong("a", 0));
+        assertEquals(0, new File(resBuildDir).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".tmp");
+            }
+        }).length);
+
+        // written after reading again
+        table = KOReaderLuaReadWrite.readLuaFile(filePath);
+        stamp = KOReaderLuaReadWrite.getStamp(filePath);
+        table.put("b", 3L);
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(filePath, table, stamp));
+        assertEquals(3, KOReaderLuaReadWrite.readLuaFile(filePath).getLong("b", 0));
+
+        // missing file
+        assertTrue(KOReaderFileStamp.MISSING.matches(resBuildDir + "/missing.lua"));
+        assertFalse(KOReaderFileStamp.MISSING.matches(filePath));
+    }
+
+    @Test
+    public void testAtomicWrite() throws InterruptedException {
+        final String filePath = resBuildDir + "/atomic.lua";
+        final KOReaderLuaTable[] tables = {new KOReaderLuaTable(), new KOReaderLuaTable()};
+        for (int i = 0; i < 2000; i++) {
+            tables[0].add("entry " + i);
+            tables[1].add((long) i);
+        }
+        KOReaderHistFav.setWriteDurability(KOReaderHistFav.Durability.NONE);
+        assertEquals(KOReaderHistFav.Durability.NONE, KOReaderHistFav.getWriteDurability());
+        assertTrue(KOReaderLuaReadWrite.writeLuaFile(filePath, tables[0]));
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger partialReads = new AtomicInteger();
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (writing.get()) {
+                        KOReaderLuaTable table = KOReaderLuaReadWrite.readLuaFile(filePath);
+                        if (table == null || table.arraySize() != 2000)
+                            partialReads.incrementAndGet();
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        try {
+            for (int i = 0; i < 50; i++)
+                assertTrue(KOReaderLuaReadWrite.writeLuaFile(filePath, tables[i % 2]));
+        } finally {
+            writing.set(false);
+            for (Thread reader : readers)
+                reader.join();
+            KOReaderHistFav.setWriteDurability(null);
+        }
+        assertEquals(0, partialReads.get());
+        assertEquals(KOReaderHistFav.Durability.SYNC, KOReaderHistFav.getWriteDurability());
+        // no temporary files left
+        assertEquals(1, new File(resBuildDir).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.contains("atomic.lua");
+            }
+        }).length);
+    }
+
+    @Test
+    public void testLuaTable() {
+        KOReaderLuaTable table = new KOReaderLuaTable();
+        for (int i = 1; i <= 20; i++)
+            table.put("key" + i, (long) i);
+        table.put(2L, "b");
+        assertEquals(0, table.arraySize());
+        assertEquals(21, table.hashSize());
+        // appending [1] moves [2] from the hash part to the array part
+        table.add("a");
+        assertEquals(2, table.arraySize());
+        table.add("c");
+        assertEquals(3, table.arraySize());
+        assertEquals("b", table.get(2));
+        assertEquals(20, table.hashSize());
+        table.remove("key1");
+        assertEquals(19, table.hashSize());
+        assertEquals(20, table.getLong("key20", 0));
+        assertEquals("key2", table.hashKey(0));
+        assertEquals(3, table.getDouble("key3", 3.5), 0);
+        table.put("key3", 0.5);
+        assertEquals(0, table.getLong("key3", 3));
+        assertEquals(0.5, table.hashValue(1));
+        table.remove(3L);
+        assertEquals(2, table.arraySize());
+        assertNull(table.get("key1"));
+        assertEquals(-1, table.getLong("missing", -1));
+    }
+
+    @Test
+    public void testReadInvalid() throws IOException {
+        assertNull(KOReaderLuaReadWrite.readLuaFile(resBuildDir + "/does_not_exist.lua"));
+        assertNull(KOReaderLuaReadWrite.readLuaFile(writeFile("invalid1.lua", "{}")));
+        assertNull(KOReaderLuaReadWrite.readLuaFile(writeFile("invalid2.lua", "return {")));
+        assertNull(KOReaderLuaReadWrite.readLuaFile(
+                writeFile("invalid3.lua", "return { [\"a\"] = \"b }")));
+        assertNull(KOReaderLuaReadWrite.readLuaFile(
+                writeFile("invalid4.lua", "return { [\"a\"] = 1 [\"b\"] = 2 }")));
+    }
+}
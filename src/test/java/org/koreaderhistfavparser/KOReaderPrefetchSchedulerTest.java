@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 Robert Wolff <https://github.com/mahlzahn>
+ *
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library. If not, see <https://www.gnu.org/licenses>.
+ */
+
+package org.koreaderhistfavparser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for KOReaderPrefetchScheduler class.
+ */
+public class KOReaderPrefetchSchedulerTest extends KOReaderCommonTest {
+    private final ArrayList<KOReaderBook> list = new ArrayList<>();
+    private final List<KOReaderBook> loadedBooks =
+            Collections.synchronizedList(new ArrayList<KOReaderBook>());
+
+    @Before
+    public void setUp() throws IOException {
+        super.setUp();
+        // 30 books with a copy of the sdr file of book2
+        Path sdrFile = Paths.get(booksDir, "book2.sdr", "metadata.epub.lua");
+        for (int i = 0; i < 30; i++) {
+            Path sdrDir = Files.createDirectories(Paths.get(booksDir, "list" + i + ".sdr"));
+            Files.copy(sdrFile, sdrDir.resolve("metadata.epub.lua"),
+                    StandardCopyOption.REPLACE_EXISTING);
+            list.add(new KOReaderBook(booksDir + "/list" + i + ".epub"));
+        }
+    }
+
+    private void waitForLoadedBooks(int number) throws InterruptedException {
+        for (int i = 0; i < 100 && loadedBooks.size() < number; i++)
+            Thread.sleep(50);
+        assertEquals(number, loadedBooks.size());
+    }
+
+    @Test
+    public void testVisibleRange() throws InterruptedException {
+        KOReaderPrefetchScheduler scheduler = new KOReaderPrefetchScheduler(1,
+                new KOReaderHistFav.PreloadListener() {
+            @Override
+            public void onBookLoaded(KOReaderBook book, int loaded, int total) {
+                assertEquals(10, total);
+                assertEquals(loadedBooks.size() + 1, loaded);
+                loadedBooks.add(book);
+            }
+        });
+        scheduler.setVisibleRange(list, 10, 14);
+        waitForLoadedBooks(10);
+        // visible books first, then next page
+        assertEquals(list.subList(10, 20), loadedBooks);
+        for (int i = 0; i < list.size(); i++)
+            assertEquals(i >= 10 && i < 20, list.get(i).isMetadataLoaded());
+        assertEquals(books[1].title, list.get(10).getTitle());
+        scheduler.close();
+    }
+
+    @Test
+    public void testScrolledAway() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        KOReaderPrefetchScheduler scheduler = new KOReaderPrefetchScheduler(1,
+                new KOReaderHistFav.PreloadListener() {
+            @Override
+            public void onBookLoaded(KOReaderBook book, int loaded, int total) {
+                loadedBooks.add(book);
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    fail();
+                }
+            }
+        });
+        scheduler.setVisibleRange(list, 0, 4);
+        waitForLoadedBooks(1);
+        // pending books 1 to 9 dropped, next page clipped to the end of the list
+        scheduler.setVisibleRange(list, 26, 28);
+        latch.countDown();
+        waitForLoadedBooks(5);
+        assertEquals(list.get(0), loadedBooks.get(0));
+        assertEquals(list.subList(26, 30), loadedBooks.subList(1, 5));
+        assertFalse(list.get(1).isMetadataLoaded());
+
+        scheduler.cancel();
+        scheduler.setVisibleRange(list, 40, 50);
+        scheduler.close();
+        scheduler.setVisibleRange(list, 5, 6);
+        Thread.sleep(100);
+        assertEquals(5, loadedBooks.size());
+    }
+
+    @Test
+    public void testScrolledBackWhileLoading() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        list.set(0, new KOReaderBook(list.get(0).getFilePath()) {
+            @Override
+            Boolean loadSdr() {
+                started.countDown();
+                awaitUninterruptibly(latch);
+                return super.loadSdr();
+            }
+        });
+        KOReaderPrefetchScheduler scheduler = new KOReaderPrefetchScheduler(1,
+                new KOReaderHistFav.PreloadListener() {
+            @Override
+            public void onBookLoaded(KOReaderBook book, int loaded, int total) {
+                assertEquals(2, total);
+                assertEquals(loadedBooks.size() + 1, loaded);
+                loadedBooks.add(book);
+            }
+        });
+        scheduler.setVisibleRange(list, 0, 0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // scrolled away and back while book 0 is loading, loaded again
+        scheduler.setVisibleRange(list, 5, 5);
+        scheduler.setVisibleRange(list, 0, 0);
+        latch.countDown();
+        waitForLoadedBooks(2);
+        assertEquals(list.subList(0, 2), loadedBooks);
+        assertTrue(list.get(0).isMetadataLoaded());
+        assertFalse(list.get(5).isMetadataLoaded());
+        scheduler.close();
+    }
+
+    @Test
+    public void testFailures() throws InterruptedException {
+        list.set(2, new KOReaderBook(list.get(2).getFilePath()) {
+            @Override
+            Boolean loadSdr() {
+                throw new IllegalStateException("Loading failed");
+            }
+        });
+        KOReaderPrefetchScheduler scheduler = new KOReaderPrefetchScheduler(1,
+                new KOReaderHistFav.PreloadListener() {
+            @Override
+            public void onBookLoaded(KOReaderBook book, int loaded, int total) {
+                loadedBooks.add(book);
+                if (loadedBooks.size() == 1)
+                    throw new IllegalStateException("Listener failed");
+            }
+        });
+        // failures of loading and the listener counted and logged, the thread keeps working
+        scheduler.setVisibleRange(list, 0, 2);
+        waitForLoadedBooks(6);
+        assertEquals(list.subList(0, 6), loadedBooks);
+        assertTrue(list.get(1).isMetadataLoaded());
+
+        // interrupts of idle threads by others ignored
+        Thread.sleep(100);
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().startsWith("KOReaderPrefetchScheduler-"))
+                thread.interrupt();
+        scheduler.setVisibleRange(list, 5, 6);
+        waitForLoadedBooks(10);
+        assertEquals(list.subList(5, 9), loadedBooks.subList(6, 10));
+        assertTrue(list.get(8).isMetadataLoaded());
+        scheduler.close();
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        new KOReaderPrefetchScheduler(0, null);
+    }
+}